@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves a fixed number of uris from one producer to a varying number of consumer
+ * threads, comparing a DiskQueue guarded by a lock with a ConcurrentDiskQueue.
+ *
+ * Run with: ./gradlew :marklogic-data-hub:jmh -PjmhInclude=DiskQueueBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class DiskQueueBenchmark {
+
+    private static final int URI_COUNT = 1_000_000;
+    private static final int MAX_IN_MEMORY = 5000;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"1", "4", "16", "64"})
+    public int consumers;
+
+    private String[] uris;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uris = new String[URI_COUNT];
+        for (int i = 0; i < URI_COUNT; i++) {
+            uris[i] = "/staging/customer/" + i + ".json";
+        }
+    }
+
+    @Benchmark
+    public long diskQueue() throws InterruptedException {
+        DiskQueue<String> queue = new DiskQueue<>(MAX_IN_MEMORY);
+        Object lock = new Object();
+        AtomicLong consumed = new AtomicLong();
+        boolean[] closed = { false };
+
+        List<Thread> threads = startConsumers(() -> {
+            String[] batch = new String[BATCH_SIZE];
+            while (true) {
+                int n;
+                synchronized (lock) {
+                    while (queue.isEmpty() && !closed[0]) {
+                        lock.wait();
+                    }
+                    n = queue.drainTo(batch, BATCH_SIZE);
+                }
+                if (n == 0) {
+                    return;
+                }
+                consumed.addAndGet(n);
+            }
+        });
+
+        for (String uri : uris) {
+            synchronized (lock) {
+                queue.add(uri);
+                lock.notifyAll();
+            }
+        }
+        synchronized (lock) {
+            closed[0] = true;
+            lock.notifyAll();
+        }
+        return join(threads, consumed);
+    }
+
+    @Benchmark
+    public long concurrentDiskQueue() throws InterruptedException {
+        ConcurrentDiskQueue queue = new ConcurrentDiskQueue(MAX_IN_MEMORY);
+        AtomicLong consumed = new AtomicLong();
+
+        List<Thread> threads = startConsumers(() -> {
+            String[] batch = new String[BATCH_SIZE];
+            int n;
+            while ((n = queue.take(batch, BATCH_SIZE)) > 0) {
+                consumed.addAndGet(n);
+            }
+        });
+
+        for (String uri : uris) {
+            queue.add(uri);
+        }
+        queue.close();
+        return join(threads, consumed);
+    }
+
+    private List<Thread> startConsumers(Consumer consumer) {
+        List<Thread> threads = new ArrayList<>(consumers);
+        for (int i = 0; i < consumers; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    consumer.run();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private long join(List<Thread> threads, AtomicLong consumed) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (consumed.get() != URI_COUNT) {
+            throw new IllegalStateException("consumed " + consumed.get() + " of " + URI_COUNT + " uris");
+        }
+        return consumed.get();
+    }
+
+    @FunctionalInterface
+    private interface Consumer {
+        void run() throws InterruptedException;
+    }
+}
@@ -16,8 +16,10 @@
 
 package com.marklogic.hub;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.flow.FlowRunner;
+import com.marklogic.hub.flow.InputFlowRunner;
 import com.marklogic.hub.flow.FlowType;
 import com.marklogic.hub.flow.impl.FlowImpl;
 import com.marklogic.hub.impl.FlowManagerImpl;
@@ -121,4 +123,23 @@ public interface FlowManager {
      * @return FlowRunner object with current hubconfig already set
      */
     FlowRunner newFlowRunner();
+
+    /**
+     * Creates and returns a new InputFlowRunner object using the FlowManager's hubconfig
+     * @return InputFlowRunner object with current hubconfig already set
+     */
+    InputFlowRunner newInputFlowRunner();
+
+    /**
+     * Describes the flow definitions and main functions that the staging app server has cached
+     * @return a json array with the key, source uris and last timestamp check of each cache entry
+     */
+    JsonNode getFlowCache();
+
+    /**
+     * Drops the flow definitions and main functions cached by the staging and final app servers so
+     * that the next run picks up newly deployed modules straight away. Other hosts in a cluster
+     * notice changed flow definitions on their own within a few seconds.
+     */
+    void flushFlowCache();
 }
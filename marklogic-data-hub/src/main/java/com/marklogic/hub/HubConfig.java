@@ -314,6 +314,13 @@ public interface HubConfig {
      */
     Boolean getIsHostLoadBalancer();
 
+    /**
+     * Returns how many deploy commands may run at once, set by mlDeployParallelism.
+     * The default of 1 deploys the final and then the staging app one command at a time.
+     * @return the maximum number of concurrent deploy commands
+     */
+    Integer getDeployParallelism();
+
     /**
      * Signifies if we are dealing with a provisioned environment.
      * @return a Boolean.
@@ -38,6 +38,13 @@ public interface Collector {
      */
     String getModule();
 
+    /**
+     * Returns true if the collector module honors the forestId option, so it can be run
+     * once per forest of the staging database instead of once for the whole database
+     * @return true if collection can be split by forest
+     */
+    boolean isPartitioned();
+
     /**
      * Set's the hub config for the collector
      * @param config takes in a HubConfig object
@@ -67,9 +74,21 @@ public interface Collector {
      * @param jobId - id of the job this is to have
      * @param entity - name of which entity is this being run against
      * @param flow - name of which flow
-     * @param threadCount - how many threads to use for the operation
+     * @param threadCount - how many forests a partitioned collector collects from at once
      * @param options - string/object map of options you want to pass to the collector
      * @return a list of uris as strings in a diskqueue object
      */
     DiskQueue<String> run(String jobId, String entity, String flow, int threadCount, Map<String, Object> options);
+
+    /**
+     * Streams the uris that match the collector code into the given queue as the server returns them.
+     * The queue is closed once the collector has finished so consumers can start before collection completes.
+     * @param jobId - id of the job this is to have
+     * @param entity - name of which entity is this being run against
+     * @param flow - name of which flow
+     * @param threadCount - how many forests a partitioned collector collects from at once
+     * @param options - string/object map of options you want to pass to the collector
+     * @param uris - the queue the uris are added to
+     */
+    void run(String jobId, String entity, String flow, int threadCount, Map<String, Object> options, StreamingDiskQueue uris);
 }
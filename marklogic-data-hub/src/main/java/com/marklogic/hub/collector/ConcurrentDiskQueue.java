@@ -0,0 +1,451 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.text.MessageFormat;
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe {@link DiskQueue} for one producer and any number of consumers.
+ *
+ * The head of the queue is a lock-free bounded ring. While the ring has room and
+ * nothing has spilled, the producer and consumers never take a lock. Once the
+ * ring fills, the producer appends to a {@link MappedSegmentStore} and consumers
+ * that find the ring empty move spilled elements back into it; only the spill
+ * store is guarded by a lock.
+ *
+ * The producer calls {@link #close()} after its last element. Until then
+ * {@link #take(String[], int)} and iterators wait for more elements instead of
+ * reporting the queue as finished. Iterators remove the elements they return, so
+ * several threads can share one iterator or each use their own.
+ */
+public class ConcurrentDiskQueue extends AbstractQueue<String> {
+
+    private static final Logger LOG = Logger.getLogger(ConcurrentDiskQueue.class.getName());
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int ITERATOR_BUFFER_SIZE = 100;
+
+    private final Ring ring;
+    private final File tempDir;
+
+    private final ReentrantLock spillLock = new ReentrantLock();
+    // guarded by spillLock
+    private MappedSegmentStore spill;
+    private final String[] refill;
+    private int refillPosition = 0;
+    private int refillCount = 0;
+
+    // true from the moment an element goes to the spill store until the spill
+    // store and refill buffer have been moved back into the ring
+    private volatile boolean spilling = false;
+    private volatile long spilledCount = 0;
+    private volatile boolean closed = false;
+
+    private final AtomicLong addedCount = new AtomicLong();
+
+    /**
+     * Construct a concurrent disk-backed queue that keeps at most
+     * <code>maxInMemorySize</code> elements in memory, rounded up to a power of two.
+     *
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     */
+    public ConcurrentDiskQueue(int maxInMemorySize) {
+        this(maxInMemorySize, null);
+    }
+
+    /**
+     * Construct a concurrent disk-backed queue that keeps at most
+     * <code>maxInMemorySize</code> elements in memory, rounded up to a power of two.
+     *
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param tempDir Directory where queue temporary files will be written to.
+     */
+    public ConcurrentDiskQueue(int maxInMemorySize, File tempDir) {
+        super();
+        if (maxInMemorySize < 1) {
+            throw new InvalidParameterException(ConcurrentDiskQueue.class.getSimpleName() + " max in-memory size must be at least one");
+        }
+        if (tempDir != null && !(tempDir.exists() && tempDir.isDirectory() && tempDir.canWrite())) {
+            throw new InvalidParameterException(ConcurrentDiskQueue.class.getSimpleName() + " temporary directory must exist and be writable");
+        }
+        this.tempDir = tempDir;
+        this.ring = new Ring(maxInMemorySize);
+        this.refill = new String[ring.capacity()];
+    }
+
+    /**
+     * Adds an element to the tail of the queue. Only one thread may add elements.
+     *
+     * @param element the element to add
+     * @return true unless the element could not be written to the backing store
+     */
+    @Override
+    public boolean offer(String element) {
+        if (element == null) {
+            throw new NullPointerException("Element cannot be null for AbstractQueue");
+        }
+        if (closed) {
+            throw new IllegalStateException("Cannot add to a closed " + ConcurrentDiskQueue.class.getSimpleName());
+        }
+
+        if (!spilling && ring.offer(element)) {
+            addedCount.incrementAndGet();
+            return true;
+        }
+
+        spillLock.lock();
+        try {
+            // a consumer may have emptied the spill store since we looked
+            if (spilledCount == 0 && refillPosition == refillCount && ring.offer(element)) {
+                spilling = false;
+            }
+            else {
+                spilling = true;
+                if (spill == null) {
+                    spill = new MappedSegmentStore(tempDir);
+                }
+                spill.write(element);
+                spilledCount = spill.size();
+            }
+        } catch (IOException e) {
+            LOG.severe(MessageFormat.format("Error writing to {0} backing store", ConcurrentDiskQueue.class.getSimpleName()));
+            return false;
+        } finally {
+            spillLock.unlock();
+        }
+        addedCount.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public String poll() {
+        String element = ring.poll();
+        while (element == null && spilling) {
+            refillRing(true);
+            element = ring.poll();
+        }
+        return element;
+    }
+
+    @Override
+    public String peek() {
+        String element = ring.peek();
+        if (element == null && spilling) {
+            refillRing(true);
+            element = ring.peek();
+        }
+        return element;
+    }
+
+    /**
+     * Removes up to <code>max</code> elements from the head of the queue into
+     * <code>batch</code>, starting at index 0, without waiting.
+     *
+     * @param batch the array to fill
+     * @param max the maximum number of elements to remove
+     * @return the number of elements removed
+     */
+    public int drainTo(String[] batch, int max) {
+        max = Math.min(max, batch.length);
+        int drained = 0;
+        while (drained < max) {
+            String element = ring.poll();
+            if (element == null) {
+                if (!spilling || !refillRing(drained == 0)) {
+                    break;
+                }
+                continue;
+            }
+            batch[drained++] = element;
+        }
+        return drained;
+    }
+
+    /**
+     * Removes up to <code>max</code> elements into <code>batch</code>, waiting for the
+     * producer while the queue is empty but not yet closed.
+     *
+     * @param batch the array to fill, starting at index 0
+     * @param max the maximum number of elements to remove
+     * @return the number of elements removed, 0 once the queue is closed and fully drained
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int take(String[] batch, int max) throws InterruptedException {
+        long parkNanos = 1000;
+        while (true) {
+            boolean wasClosed = closed;
+            int drained = drainTo(batch, max);
+            if (drained > 0 || (wasClosed && isEmpty())) {
+                return drained;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(this, parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Marks the queue as complete. Consumers drain whatever is left and then stop.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Returns true once the producer has finished adding elements
+     * @return true if no more elements will be added
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the total number of elements added so far
+     * @return the number of elements added
+     */
+    public long getAddedCount() {
+        return addedCount.get();
+    }
+
+    /**
+     * Returns an approximation of the number of elements in the queue, as
+     * consumers may be removing elements concurrently.
+     */
+    @Override
+    public int size() {
+        long size = ring.size() + spilledCount;
+        if (spilling) {
+            size += Math.max(0, refillCount - refillPosition);
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return ring.size() == 0 && !spilling;
+    }
+
+    @Override
+    public void clear() {
+        spillLock.lock();
+        try {
+            while (ring.poll() != null) {
+                // discard
+            }
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+            spilledCount = 0;
+            refillPosition = refillCount = 0;
+            spilling = false;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator that removes the elements it returns. Its hasNext()
+     * waits for the producer until the queue has been closed.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Itr();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#finalize()
+     *
+     * Toss the backing store segments.
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+        super.finalize();
+    }
+
+    /**
+     * Moves spilled elements back into the ring.
+     *
+     * @param wait true to wait for the spill lock, false to give up if another thread holds it
+     * @return true if any element was moved into the ring
+     */
+    private boolean refillRing(boolean wait) {
+        if (wait) {
+            spillLock.lock();
+        }
+        else if (!spillLock.tryLock()) {
+            return false;
+        }
+        try {
+            boolean moved = false;
+            while (true) {
+                if (refillPosition == refillCount) {
+                    refillCount = spill != null ? spill.read(refill, 0, refill.length) : 0;
+                    refillPosition = 0;
+                    spilledCount = spill != null ? spill.size() : 0;
+                    if (refillCount == 0) {
+                        spilling = false;
+                        return moved;
+                    }
+                }
+                if (!ring.offer(refill[refillPosition])) {
+                    return moved;
+                }
+                refill[refillPosition++] = null;
+                moved = true;
+            }
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private class Itr implements Iterator<String> {
+        private final String[] buffer = new String[ITERATOR_BUFFER_SIZE];
+        private int position = 0;
+        private int count = 0;
+
+        @Override
+        public synchronized boolean hasNext() {
+            if (position == count) {
+                try {
+                    count = take(buffer, buffer.length);
+                    position = 0;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return position < count;
+        }
+
+        @Override
+        public synchronized String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String result = buffer[position];
+            buffer[position++] = null;
+            return result;
+        }
+    }
+
+    /**
+     * Bounded multi-producer/multi-consumer ring after Dmitry Vyukov's design: each
+     * slot carries a sequence number that tells producers and consumers whether it
+     * is free or filled for the current lap, so both ends only need a CAS on their
+     * own counter.
+     */
+    private static final class Ring {
+        private final int mask;
+        private final AtomicReferenceArray<String> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Ring(int minCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+            mask = capacity - 1;
+            slots = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean offer(String element) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots.lazySet(index, element);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                }
+                else if (difference < 0) {
+                    return false;
+                }
+                else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        String poll() {
+            long position = head.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        String element = slots.get(index);
+                        slots.lazySet(index, null);
+                        sequences.set(index, position + mask + 1);
+                        return element;
+                    }
+                    position = head.get();
+                }
+                else if (difference < 0) {
+                    return null;
+                }
+                else {
+                    position = head.get();
+                }
+            }
+        }
+
+        String peek() {
+            long position = head.get();
+            int index = (int) position & mask;
+            if (sequences.get(index) - (position + 1) == 0) {
+                return slots.get(index);
+            }
+            return null;
+        }
+
+        int size() {
+            long size = tail.get() - head.get();
+            return (int) Math.max(0, Math.min(size, capacity()));
+        }
+    }
+}
@@ -24,23 +24,26 @@
  */
 package com.marklogic.hub.collector;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.text.MessageFormat;
 import java.util.AbstractQueue;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.List;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A queue that writes extra elements to disk, and reads them in as needed.
  *
+ * Elements that don't fit in memory are appended to a {@link MappedSegmentStore},
+ * which keeps them as length-prefixed UTF-8 records in memory-mapped segment files.
+ * Once the in-memory head of the queue is empty it is refilled from disk in one
+ * bulk read.
+ *
  * This implementation is optimized for being filled once (ie by the iterator in
- * a reducer) and then incrementally read. So it wouldn't work very well if
- * reads/writes were happening simultaneously, once anything had spilled to
- * disk.
+ * a reducer) and then incrementally read. It is not thread-safe.
  *
  * @param <E> - A Serializable Class
  */
@@ -48,32 +51,19 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
 
     private static final Logger LOG = Logger.getLogger(DiskQueue.class.getName());
 
-    private static final float DEFAULT_REFILL_RATIO = 0.75f;
-
     // The memoryQueue represents the head of the queue. It can also be the tail,
     // if nothing has spilled over onto the disk.
-    private MemoryQueue<String> memoryQueue;
+    private MemoryQueue memoryQueue;
 
     private Iterator<String> memoryIterator;
 
-    // Percentage of memory queue used/capacity that triggers a refill from disk.
-    private float refillMemoryRatio;
-
-    // Number of elements in the backing store file on disk.
-    private int fileElementCount = 0;
-
     private File tempDir;
 
-    private BufferedWriter fileOut;
-    private BufferedReader fileIn;
-
-    // When moving elements from disk to memory, we don't know whether the memory
-    // queue has space until the offer is rejected. So rather than trying to push
-    // back an element into the file, just cache it in cachedElement.
-    private String cachedElement;
-    private File fileQueue;
+    // Backing store on disk, created the first time the memory queue overflows.
+    private MappedSegmentStore fileQueue;
 
-    private int nextCount = 0;
+    // Scratch space for bulk refills from the backing store.
+    private String[] refillBuffer;
 
     /**
      * Construct a disk-backed queue that keeps at most
@@ -103,15 +93,13 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
         }
 
         this.tempDir = tempDir;
-        memoryQueue = new MemoryQueue<>(maxInMemorySize);
-//        memoryIterator = memoryQueue.iterator();
-        refillMemoryRatio = DEFAULT_REFILL_RATIO;
+        memoryQueue = new MemoryQueue(maxInMemorySize);
     }
 
     /* (non-Javadoc)
      * @see java.lang.Object#finalize()
      *
-     * Close down streams, and toss the temp file.
+     * Toss the backing store segments.
      */
     @Override
     protected void finalize() throws Throwable {
@@ -122,8 +110,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
     }
 
     /**
-     * Make sure the file streams are all closed down, the temp file is closed,
-     * and the temp file has been deleted.
+     * Make sure the backing store segments have been deleted.
      *
      * @return true if we had to close down the file.
      */
@@ -132,48 +119,11 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
             return false;
         }
 
-        closeQuietly(fileIn);
-        fileIn = null;
-        cachedElement = null;
-
-        closeQuietly(fileOut);
-        fileOut = null;
-
-        fileElementCount = 0;
-
-        fileQueue.delete();
+        fileQueue.close();
         fileQueue = null;
         return true;
     }
 
-    private static boolean isEmpty(final CharSequence value) {
-        return value == null || value.length() == 0;
-    }
-
-    private static void closeQuietly(Closeable obj) {
-        if (obj != null) {
-            try {
-                obj.close();
-            } catch (IOException ex) {
-                // Ignore
-            }
-        }
-    }
-
-    private void openFile() throws IOException {
-        if (fileQueue == null) {
-            fileQueue = File.createTempFile(DiskQueue.class.getSimpleName() + "-backingstore-", null, tempDir);
-            fileQueue.deleteOnExit();
-            LOG.log(Level.INFO, "created backing store {0}", fileQueue.getAbsolutePath());
-            fileOut = new BufferedWriter(new FileWriter(fileQueue));
-
-            // Flush output file, so there's something written when we open the input stream.
-            fileOut.flush();
-
-            fileIn = new BufferedReader(new FileReader(fileQueue));
-        }
-    }
-
     @Override
     public Iterator<String> iterator() {
         return new Itr();
@@ -181,7 +131,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
 
     @Override
     public int size() {
-        return memoryQueue.size() + fileElementCount + (cachedElement != null ? 1 : 0);
+        return memoryQueue.size() + (fileQueue != null ? (int) fileQueue.size() : 0);
     }
 
     @Override
@@ -190,26 +140,20 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
             throw new NullPointerException("Element cannot be null for AbstractQueue");
         }
 
-        boolean hasFileQueue = fileQueue != null;
-        boolean offerRejected = false;
-        if (!hasFileQueue) {
-            offerRejected = !memoryQueue.offer(element);
-            if (offerRejected) {
-                memoryIterator = memoryQueue.iterator();
-            }
+        // If there's anything in the file, or the queue is full, then we have to write to the file.
+        boolean hasFileQueue = fileQueue != null && !fileQueue.isEmpty();
+        if (!hasFileQueue && memoryQueue.offer(element)) {
+            return true;
         }
 
-        // If there's anything in the file, or the queue is full, then we have to write to the file.
-        if (hasFileQueue || offerRejected) {
-            try {
-                openFile();
-                fileOut.write(element);
-                fileOut.newLine();
-                fileElementCount++;
-            } catch (IOException e) {
-                LOG.severe(MessageFormat.format("Error writing to {0} backing store", DiskQueue.class.getSimpleName()));
-                return false;
+        try {
+            if (fileQueue == null) {
+                fileQueue = new MappedSegmentStore(tempDir);
             }
+            fileQueue.write(element);
+        } catch (IOException e) {
+            LOG.severe(MessageFormat.format("Error writing to {0} backing store", DiskQueue.class.getSimpleName()));
+            return false;
         }
 
         return true;
@@ -233,6 +177,30 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
         return memoryQueue.poll();
     }
 
+    /**
+     * Removes up to <code>max</code> elements from the head of the queue into
+     * <code>batch</code>, starting at index 0.
+     *
+     * @param batch the array to fill
+     * @param max the maximum number of elements to remove
+     * @return the number of elements removed
+     */
+    public int drainTo(String[] batch, int max) {
+        max = Math.min(max, batch.length);
+        int drained = 0;
+        while (drained < max) {
+            String next = memoryQueue.poll();
+            if (next == null) {
+                break;
+            }
+            batch[drained++] = next;
+        }
+        if (drained < max && fileQueue != null) {
+            drained += fileQueue.read(batch, drained, max - drained);
+        }
+        return drained;
+    }
+
     /* (non-Javadoc)
      * @see java.util.AbstractQueue#clear()
      *
@@ -241,55 +209,24 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
     @Override
     public void clear() {
         memoryQueue.clear();
-        cachedElement = null;
         closeFile();
     }
 
     private void loadMemoryQueue() {
-        // use the memory queue as our buffer, so only load it up when it's below capacity.
-        if (memoryQueue.size() / (float) memoryQueue.getCapacity() >= refillMemoryRatio) {
+        // use the memory queue as our buffer, so only load it up once it has been drained.
+        if (!memoryQueue.isEmpty() || fileQueue == null || fileQueue.isEmpty()) {
             return;
         }
 
-        // See if we have one saved element from the previous read request
-        if (cachedElement != null && memoryQueue.offer(cachedElement)) {
-            cachedElement = null;
+        if (refillBuffer == null) {
+            refillBuffer = new String[memoryQueue.getCapacity()];
         }
-
-        // Now see if we have anything on disk
-        if (fileQueue != null) {
-            try {
-                // Since we buffer writes, we need to make sure everything has
-                // been written before we start reading.
-                fileOut.flush();
-
-                int usedCount = 0;
-                while (fileElementCount > 0) {
-                    @SuppressWarnings("unchecked")
-                    String nextFileElement = fileIn.readLine();
-                    fileElementCount--;
-                    usedCount++;
-
-                    if (!isEmpty(nextFileElement) && !memoryQueue.offer(nextFileElement)) {
-                        //memory queue is full. Cache this entry and jump out
-                        cachedElement = nextFileElement;
-                        memoryIterator = memoryQueue.iterator();
-                        return;
-                    }
-                }
-
-                memoryIterator = memoryQueue.iterator();
-
-                // Nothing left in the file, so close/delete it.
-                closeFile();
-
-                // file queue is empty, so could reset length of file, read/write offsets
-                // to start from zero instead of closing file (but for current use case of fill once, drain
-                // once this works just fine)
-            } catch (IOException e) {
-                LOG.severe(MessageFormat.format("Error reading from {0} backing store", DiskQueue.class.getSimpleName()));
-            }
+        int read = fileQueue.read(refillBuffer, 0, refillBuffer.length);
+        for (int i = 0; i < read; i++) {
+            memoryQueue.offer(refillBuffer[i]);
+            refillBuffer[i] = null;
         }
+        memoryIterator = memoryQueue.iterator();
     }
 
     private class Itr implements Iterator<String> {
@@ -298,56 +235,31 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
             memoryIterator = memoryQueue.iterator();
         }
         public boolean hasNext() {
-            return memoryIterator.hasNext() || fileElementCount > 0 || cachedElement != null;
+            return memoryIterator.hasNext() || (fileQueue != null && !fileQueue.isEmpty());
         }
 
-        @SuppressWarnings("unchecked")
         public String next() {
-            String next = memoryIterator.next();
-            if (!memoryIterator.hasNext() && (fileElementCount > 0 || cachedElement != null)) {
+            if (!memoryIterator.hasNext() && fileQueue != null && !fileQueue.isEmpty()) {
                 memoryQueue.clear();
                 loadMemoryQueue();
             }
-            nextCount++;
-            return next;
+            return memoryIterator.next();
         }
 
         public void remove() {
             memoryIterator.remove();
         }
-
-//        @Override
-//        @SuppressWarnings("unchecked")
-//        public void forEachRemaining(Consumer<String> consumer) {
-//            Objects.requireNonNull(consumer);
-//            final int size = ArrayList.this.size;
-//            int i = cursor;
-//            if (i >= size) {
-//                return;
-//            }
-//            final Object[] elementData = ArrayList.this.elementData;
-//            if (i >= elementData.length) {
-//                throw new ConcurrentModificationException();
-//            }
-//            while (i != size && modCount == expectedModCount) {
-//                consumer.accept((E) elementData[i++]);
-//            }
-//            // update once at end of iteration to reduce heap write traffic
-//            cursor = i;
-//            lastRet = i - 1;
-//            checkForComodification();
-//        }
     }
 
-    private static class MemoryQueue<E> extends AbstractQueue<String> {
+    private static class MemoryQueue extends AbstractQueue<String> {
 
-        private final List<String> queue;
+        private final ArrayDeque<String> queue;
         private final int capacity;
 
         public MemoryQueue(int capacity) {
             super();
             this.capacity = capacity;
-            queue = new ArrayList<>(capacity);
+            queue = new ArrayDeque<>(capacity);
         }
 
         @Override
@@ -376,32 +288,27 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
             } else if (queue.size() >= capacity) {
                 return false;
             } else {
-                queue.add(o);
+                queue.addLast(o);
                 return true;
             }
         }
 
         @Override
         public String peek() {
-            if (queue.isEmpty()) {
-                return null;
-            } else {
-                return queue.get(0);
-            }
+            return queue.peekFirst();
         }
 
         @Override
         public String poll() {
-            if (queue.isEmpty()) {
-                return null;
-            } else {
-                return queue.remove(0);
-            }
+            return queue.pollFirst();
         }
 
         @Override
         public String remove() {
-            return queue.remove(0);
+            if (queue.isEmpty()) {
+                throw new IndexOutOfBoundsException("Index: 0, Size: 0");
+            }
+            return queue.removeFirst();
         }
     }
 
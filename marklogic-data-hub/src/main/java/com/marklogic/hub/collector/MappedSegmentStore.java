@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FIFO spill store for {@link DiskQueue} made of memory-mapped segment files.
+ *
+ * Each record is a 4 byte length followed by the UTF-8 bytes of the string. A
+ * length of -1 marks the end of the used part of a segment. Records are encoded
+ * straight into the mapping, so appending a string neither copies it into an
+ * intermediate byte array nor makes a syscall. Segments that have been read to
+ * the end are kept for reuse by the writer instead of being unmapped and deleted.
+ */
+final class MappedSegmentStore {
+
+    private static final Logger LOG = Logger.getLogger(MappedSegmentStore.class.getName());
+
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int END_OF_SEGMENT = -1;
+    private static final int MAX_SPARE_SEGMENTS = 2;
+
+    private final File tempDir;
+    private final int segmentSize;
+
+    // segments that hold unread records, oldest first. The last one is being written to.
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Deque<Segment> spares = new ArrayDeque<>();
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] scratch = new byte[256];
+
+    private long count = 0;
+
+    MappedSegmentStore(File tempDir) {
+        this(tempDir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    MappedSegmentStore(File tempDir, int segmentSize) {
+        this.tempDir = tempDir;
+        this.segmentSize = segmentSize;
+    }
+
+    long size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    void write(String element) throws IOException {
+        Segment tail = segments.peekLast();
+        if (tail == null || !encode(tail, element)) {
+            if (tail != null) {
+                tail.seal();
+            }
+            int maxBytes = HEADER_SIZE + (int) Math.ceil(element.length() * (double) encoder.maxBytesPerChar()) + HEADER_SIZE;
+            tail = newSegment(Math.max(segmentSize, maxBytes));
+            segments.addLast(tail);
+            if (!encode(tail, element)) {
+                throw new IOException("Unable to encode element into an empty segment");
+            }
+        }
+        count++;
+    }
+
+    /**
+     * Reads up to max records in order into the target array.
+     *
+     * @return the number of records read
+     */
+    int read(String[] target, int offset, int max) {
+        int read = 0;
+        while (read < max && count > 0) {
+            Segment head = segments.peekFirst();
+            if (!head.hasRecord()) {
+                recycle(segments.removeFirst());
+                continue;
+            }
+            target[offset + read++] = decode(head);
+            count--;
+        }
+        if (count == 0) {
+            // everything written has been read, so every segment can be reused
+            while (!segments.isEmpty()) {
+                recycle(segments.removeFirst());
+            }
+        }
+        return read;
+    }
+
+    void close() {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        for (Segment segment : spares) {
+            segment.delete();
+        }
+        segments.clear();
+        spares.clear();
+        count = 0;
+    }
+
+    private boolean encode(Segment segment, String element) {
+        MappedByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        // leave room for this record's length and the end of segment marker
+        if (buffer.remaining() < HEADER_SIZE * 2) {
+            return false;
+        }
+        buffer.position(start + HEADER_SIZE);
+        int limit = buffer.limit();
+        buffer.limit(limit - HEADER_SIZE);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(element), buffer, true);
+        if (!result.isOverflow()) {
+            result = encoder.flush(buffer);
+        }
+        buffer.limit(limit);
+        if (result.isOverflow()) {
+            buffer.position(start);
+            return false;
+        }
+        buffer.putInt(start, buffer.position() - start - HEADER_SIZE);
+        return true;
+    }
+
+    private String decode(Segment segment) {
+        ByteBuffer buffer = segment.readBuffer;
+        int length = buffer.getInt();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        Segment spare = spares.pollFirst();
+        if (spare != null && spare.capacity() >= size) {
+            spare.reset();
+            return spare;
+        }
+        if (spare != null) {
+            spare.delete();
+        }
+        return new Segment(tempDir, size);
+    }
+
+    private void recycle(Segment segment) {
+        if (spares.size() < MAX_SPARE_SEGMENTS && segment.capacity() == segmentSize) {
+            spares.addLast(segment);
+        }
+        else {
+            segment.delete();
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer readBuffer;
+
+        Segment(File tempDir, int size) throws IOException {
+            file = File.createTempFile(DiskQueue.class.getSimpleName() + "-segment-", null, tempDir);
+            file.deleteOnExit();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            readBuffer = buffer.duplicate();
+            LOG.log(Level.FINE, "created backing store segment {0}", file.getAbsolutePath());
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        boolean hasRecord() {
+            if (readBuffer.position() >= buffer.position()) {
+                return false;
+            }
+            return readBuffer.getInt(readBuffer.position()) != END_OF_SEGMENT;
+        }
+
+        void seal() {
+            int position = buffer.position();
+            buffer.putInt(END_OF_SEGMENT);
+            buffer.position(position + HEADER_SIZE);
+        }
+
+        void reset() {
+            buffer.clear();
+            readBuffer.clear();
+        }
+
+        void delete() {
+            // the mapping itself is released when the buffer is garbage collected
+            if (!file.delete()) {
+                LOG.log(Level.FINE, "unable to delete backing store segment {0}", file.getAbsolutePath());
+            }
+        }
+    }
+}
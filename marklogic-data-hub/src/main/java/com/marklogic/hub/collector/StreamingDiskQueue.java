@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A disk backed queue of uris that can be consumed while it is still being filled.
+ *
+ * The collector adds uris as they are streamed back from the server and calls
+ * {@link #close()} once the response has been fully read. Iterators handed out by
+ * this queue block in hasNext() until either another uri is available or the queue
+ * has been closed, which lets a QueryBatcher start harmonizing the first batches
+ * while collection is still running. The uris are held in a {@link ConcurrentDiskQueue},
+ * so the collector and any number of consumers can use it without further locking.
+ */
+public class StreamingDiskQueue implements Iterable<String> {
+
+    private final ConcurrentDiskQueue queue;
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+
+    private volatile Throwable failure;
+    private volatile boolean canceled = false;
+
+    /**
+     * Construct a streaming queue that keeps at most
+     * <code>maxInMemorySize</code> elements in memory.
+     *
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     */
+    public StreamingDiskQueue(int maxInMemorySize) {
+        this(maxInMemorySize, null);
+    }
+
+    /**
+     * Construct a streaming queue that keeps at most
+     * <code>maxInMemorySize</code> elements in memory.
+     *
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param tempDir Directory where queue temporary files will be written to.
+     */
+    public StreamingDiskQueue(int maxInMemorySize, File tempDir) {
+        this.queue = new ConcurrentDiskQueue(maxInMemorySize, tempDir);
+    }
+
+    /**
+     * Adds a uri to the tail of the queue. Only the collector thread may add uris.
+     * @param uri - the uri to add
+     */
+    public void add(String uri) {
+        if (canceled) {
+            throw new CancellationException("Collection was canceled");
+        }
+        queue.add(uri);
+    }
+
+    /**
+     * Marks the queue as complete. Consumers drain whatever is left and then stop.
+     */
+    public void close() {
+        queue.close();
+        closedLatch.countDown();
+    }
+
+    /**
+     * Marks the queue as complete because the producer failed part way through.
+     * @param failure - the reason the producer stopped
+     */
+    public void fail(Throwable failure) {
+        this.failure = failure;
+        close();
+    }
+
+    /**
+     * Closes the queue on behalf of a consumer that no longer wants the rest of the uris.
+     * The producer's next add fails, so it stops collecting instead of filling the disk.
+     */
+    public void cancel() {
+        canceled = true;
+        close();
+    }
+
+    /**
+     * Returns true if a consumer canceled the queue
+     * @return true if {@link #cancel()} was called
+     */
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Returns true once the producer has finished adding uris
+     * @return true if no more uris will be added
+     */
+    public boolean isClosed() {
+        return queue.isClosed();
+    }
+
+    /**
+     * Returns the error the producer failed with, if any
+     * @return the failure or null if the producer did not fail
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the total number of uris added so far. Once the queue is closed this
+     * is the total number of uris the collector returned.
+     * @return the number of uris added
+     */
+    public long getAddedCount() {
+        return queue.getAddedCount();
+    }
+
+    /**
+     * Blocks until the producer has closed the queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitClosed() throws InterruptedException {
+        closedLatch.await();
+    }
+
+    /**
+     * Removes the head of the queue, waiting for the producer if the queue is
+     * currently empty.
+     * @return the next uri or null if the queue is closed and fully drained
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public String take() throws InterruptedException {
+        String[] next = new String[1];
+        return take(next, 1) > 0 ? next[0] : null;
+    }
+
+    /**
+     * Removes up to <code>max</code> uris into <code>batch</code>, waiting for the
+     * producer if the queue is currently empty.
+     * @param batch - the array to fill, starting at index 0
+     * @param max - the maximum number of uris to remove
+     * @return the number of uris removed, 0 once the queue is closed and fully drained
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int take(String[] batch, int max) throws InterruptedException {
+        return queue.take(batch, max);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return queue.iterator();
+    }
+}
@@ -16,13 +16,15 @@
 package com.marklogic.hub.collector.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.marklogic.appdeployer.AppConfig;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.DatabaseClientFactory;
 import com.marklogic.client.MarkLogicIOException;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.Forest;
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.collector.Collector;
 import com.marklogic.hub.collector.DiskQueue;
+import com.marklogic.hub.collector.StreamingDiskQueue;
 import com.marklogic.hub.flow.CodeFormat;
 import com.marklogic.hub.impl.HubConfigImpl;
 import com.marklogic.rest.util.MgmtResponseErrorHandler;
@@ -31,6 +33,7 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
@@ -47,27 +50,58 @@ import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 public class CollectorImpl implements Collector {
+    // uris read from one forest are handed to the shared queue this many at a time
+    private static final int PARTITION_BUFFER_SIZE = 1000;
+
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int MAX_CONNECTIONS_PER_HOST = 16;
+
+    // MarkLogic drops idle connections after its keep-alive timeout, five seconds by default
+    private static final long KEEP_ALIVE_MILLIS = 4000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    // MarkLogic doesn't compress responses itself, so the collector endpoint sends each chunk of uris
+    // gzipped and base64 encoded on a line of its own, and says so in this header
+    static final String URI_ENCODING_HEADER = "X-Hub-Uri-Encoding";
+    static final String GZIP_BASE64 = "gzip-base64";
+
+    // one pooled http client per hub config and set of credentials, shared by every collector run
+    private static final Map<HubConfig, Map<List<Object>, RestTemplate>> TEMPLATES = new WeakHashMap<>();
+
     private DatabaseClient client = null;
     private HubConfig hubConfig = null;
     private CodeFormat codeFormat;
 
     private String module;
+    private boolean partitioned = false;
 
     public CollectorImpl() {}
 
     public CollectorImpl(String module, CodeFormat codeFormat) {
+        this(module, codeFormat, false);
+    }
+
+    public CollectorImpl(String module, CodeFormat codeFormat, boolean partitioned) {
         this.module = module;
         this.codeFormat = codeFormat;
+        this.partitioned = partitioned;
     }
 
 
@@ -99,69 +133,198 @@ public class CollectorImpl implements Collector {
         return this.module;
     }
 
+    @Override
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
     @Override
     public DiskQueue<String> run(String jobId, String entity, String flow, int threadCount, Map<String, Object> options) {
         try {
             DiskQueue<String> results = new DiskQueue<>(5000);
+            collect(jobId, entity, flow, threadCount, options, results::add);
+            return results;
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+    }
 
-            // Important design info:
-            // The collector is invoked with a regular http client due to streaming limitations in OkHttp.
-            // https://github.com/marklogic/marklogic-data-hub/issues/632
-            // https://github.com/marklogic/marklogic-data-hub/issues/633
-            //
-            AppConfig appConfig = hubConfig.getStagingAppConfig();
-
-            RestTemplate template = newRestTemplate(  ((HubConfigImpl) hubConfig).getMlUsername(), ( (HubConfigImpl) hubConfig).getMlPassword());
-            String uriString = String.format(
-                "%s://%s:%d%s?job-id=%s&entity-name=%s&flow-name=%s&database=%s",
-                client.getSecurityContext().getSSLContext() != null ? "https" : "http",
-                client.getHost(),
-                client.getPort(),
-                "/v1/internal/hubcollector",
-                URLEncoder.encode(jobId, "UTF-8"),
-                URLEncoder.encode(entity, "UTF-8"),
-                URLEncoder.encode(flow, "UTF-8"),
-                URLEncoder.encode(client.getDatabase(), "UTF-8")
-            );
-
-            if (options != null) {
-                ObjectMapper objectMapper = new ObjectMapper();
-                uriString += "&options=" + URLEncoder.encode(objectMapper.writeValueAsString(options), "UTF-8");
+    @Override
+    public void run(String jobId, String entity, String flow, int threadCount, Map<String, Object> options, StreamingDiskQueue uris) {
+        try {
+            collect(jobId, entity, flow, threadCount, options, uris::add);
+            uris.close();
+        }
+        catch(Exception e) {
+            if (uris.isCanceled()) {
+                // the job that wanted the uris is gone, so stopping here is not a failure
+                return;
             }
-            URI uri = new URI(uriString);
-            RequestCallback requestCallback = request -> request.getHeaders()
-                .setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM, MediaType.ALL));
-
-            // Streams the response instead of loading it all in memory
-            ResponseExtractor<Void> responseExtractor = response -> {
-                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(response.getBody()));
-                String line;
-                while((line = bufferedReader.readLine()) != null) {
-                    results.add(line);
+            uris.fail(e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void collect(String jobId, String entity, String flow, int threadCount, Map<String, Object> options, Consumer<String> consumer) throws Exception {
+        // Important design info:
+        // The collector is invoked with a regular http client due to streaming limitations in OkHttp.
+        // https://github.com/marklogic/marklogic-data-hub/issues/632
+        // https://github.com/marklogic/marklogic-data-hub/issues/633
+        //
+        RestTemplate template = getRestTemplate(((HubConfigImpl) hubConfig).getMlUsername(), ((HubConfigImpl) hubConfig).getMlPassword());
+        if (!partitioned || threadCount < 2) {
+            collect(template, client.getHost(), null, jobId, entity, flow, options, consumer);
+            return;
+        }
+
+        DataMovementManager dataMovementManager = client.newDataMovementManager();
+        Forest[] forests;
+        try {
+            forests = dataMovementManager.readForestConfig().listForests();
+        }
+        finally {
+            dataMovementManager.release();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threadCount, forests.length), runnable -> {
+            Thread thread = new Thread(runnable, "collector-" + jobId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            CompletionService<Void> partitions = new ExecutorCompletionService<>(pool);
+            for (Forest forest : forests) {
+                // a load balancer hides the hosts, so every forest is collected through it
+                String host = hubConfig.getIsHostLoadBalancer() ? client.getHost() : forest.getPreferredHost();
+                partitions.submit(() -> {
+                    List<String> buffer = new ArrayList<>(PARTITION_BUFFER_SIZE);
+                    collect(template, host, forest.getForestId(), jobId, entity, flow, options, uri -> {
+                        buffer.add(uri);
+                        if (buffer.size() == PARTITION_BUFFER_SIZE) {
+                            drain(buffer, consumer);
+                        }
+                    });
+                    drain(buffer, consumer);
+                    return null;
+                });
+            }
+            for (int i = 0; i < forests.length; i++) {
+                try {
+                    partitions.take().get();
+                }
+                catch (ExecutionException e) {
+                    throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
                 }
-                bufferedReader.close();
-                return null;
-            };
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
 
-            template.execute(uri, HttpMethod.GET, requestCallback, responseExtractor);
+    // the queues take one producer at a time, so the partitions hand over their uris in turns
+    private void drain(List<String> buffer, Consumer<String> consumer) {
+        synchronized (consumer) {
+            buffer.forEach(consumer);
+        }
+        buffer.clear();
+    }
 
-            return results;
+    private void collect(RestTemplate template, String host, String forestId, String jobId, String entity, String flow, Map<String, Object> options, Consumer<String> consumer) throws Exception {
+        String uriString = String.format(
+            "%s://%s:%d%s?job-id=%s&entity-name=%s&flow-name=%s&database=%s&uri-encoding=" + GZIP_BASE64,
+            client.getSecurityContext().getSSLContext() != null ? "https" : "http",
+            host,
+            client.getPort(),
+            "/v1/internal/hubcollector",
+            URLEncoder.encode(jobId, "UTF-8"),
+            URLEncoder.encode(entity, "UTF-8"),
+            URLEncoder.encode(flow, "UTF-8"),
+            URLEncoder.encode(client.getDatabase(), "UTF-8")
+        );
+
+        if (forestId != null) {
+            uriString += "&forest-id=" + URLEncoder.encode(forestId, "UTF-8");
         }
-        catch(Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+        URI uri = new URI(uriString);
+
+        // the options can be large, so they go in the body rather than the url
+        byte[] body = OBJECT_MAPPER.writeValueAsBytes(options != null ? options : Collections.emptyMap());
+        RequestCallback requestCallback = request -> {
+            request.getHeaders().setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM, MediaType.ALL));
+            request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+            request.getBody().write(body);
+        };
+
+        // Streams the response instead of loading it all in memory. A server that predates
+        // compression ignores the uri-encoding parameter and sends plain uris.
+        ResponseExtractor<Void> responseExtractor = response -> {
+            readUris(response.getBody(), GZIP_BASE64.equals(response.getHeaders().getFirst(URI_ENCODING_HEADER)), consumer);
+            return null;
+        };
+
+        template.execute(uri, HttpMethod.POST, requestCallback, responseExtractor);
+    }
+
+    /**
+     * Reads the uris of a collector response, one per line
+     * @param body - the response body
+     * @param compressed - true if each line is a gzipped, base64 encoded chunk of uris
+     * @param consumer - receives the uris in the order the collector returned them
+     * @throws IOException if the response can't be read
+     */
+    static void readUris(InputStream body, boolean compressed, Consumer<String> consumer) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!compressed) {
+                    consumer.accept(line);
+                    continue;
+                }
+                if (line.isEmpty()) {
+                    continue;
+                }
+                InputStream chunk = new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(line.trim())));
+                try (BufferedReader chunkReader = new BufferedReader(new InputStreamReader(chunk, StandardCharsets.UTF_8))) {
+                    String uri;
+                    while ((uri = chunkReader.readLine()) != null) {
+                        consumer.accept(uri);
+                    }
+                }
+            }
+        }
+    }
+
+    private RestTemplate getRestTemplate(String username, String password) {
+        DatabaseClientFactory.SecurityContext securityContext = client.getSecurityContext();
+        List<Object> key = Arrays.asList(username, password,
+            securityContext != null ? securityContext.getSSLContext() : null,
+            securityContext != null ? securityContext.getSSLHostnameVerifier() : null);
+        synchronized (TEMPLATES) {
+            return TEMPLATES.computeIfAbsent(hubConfig, config -> new HashMap<>())
+                .computeIfAbsent(key, k -> newRestTemplate(username, password));
         }
     }
 
     private RestTemplate newRestTemplate(String username, String password) {
         DatabaseClientFactory.SecurityContext securityContext = client.getSecurityContext();
 
+        // the client is shared by every collector run, including partitioned ones that talk to every host
         BasicCredentialsProvider prov = new BasicCredentialsProvider();
         prov.setCredentials(
-            new AuthScope(client.getHost(), client.getPort(), AuthScope.ANY_REALM),
+            new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT, AuthScope.ANY_REALM),
             new UsernamePasswordCredentials(username, password));
 
-        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create().setDefaultCredentialsProvider(prov);
+        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create()
+            .setDefaultCredentialsProvider(prov)
+            .setMaxConnPerRoute(MAX_CONNECTIONS_PER_HOST)
+            .setMaxConnTotal(MAX_CONNECTIONS)
+            .setKeepAliveStrategy((response, context) -> {
+                long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return keepAlive > 0 ? keepAlive : KEEP_ALIVE_MILLIS;
+            });
 
         if (securityContext != null) {
             SSLContext sslContext = securityContext.getSSLContext();
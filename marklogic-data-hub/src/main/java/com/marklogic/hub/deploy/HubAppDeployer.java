@@ -24,12 +24,11 @@ import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.FailedRequestException;
 import com.marklogic.client.eval.ServerEvaluationCall;
 import com.marklogic.hub.deploy.util.HubDeployStatusListener;
+import com.marklogic.hub.deploy.util.ParallelCommandExecutor;
 import com.marklogic.mgmt.ManageClient;
 import com.marklogic.mgmt.admin.AdminManager;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class HubAppDeployer extends SimpleAppDeployer {
@@ -41,6 +40,7 @@ public class HubAppDeployer extends SimpleAppDeployer {
     private DatabaseClient databaseClient;
     private List<Command> stagingCommandsList;
     private List<Command> finalCommandsList;
+    private int parallelism = ParallelCommandExecutor.DEFAULT_PARALLELISM;
 
     public HubAppDeployer(ManageClient manageClient, AdminManager adminManager, HubDeployStatusListener listener, DatabaseClient databaseClient) {
         super(manageClient, adminManager);
@@ -51,80 +51,21 @@ public class HubAppDeployer extends SimpleAppDeployer {
     }
 
     public void deployAll(AppConfig finalAppConfig, AppConfig stagingAppConfig){
-
-        Collections.sort(stagingCommandsList, new Comparator<Command>() {
-            @Override
-            public int compare(Command o1, Command o2) {
-                return o1.getExecuteSortOrder().compareTo(o2.getExecuteSortOrder());
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                return this.equals(obj);
-            }
-        });
-
-        Collections.sort(finalCommandsList, new Comparator<Command>() {
-            @Override
-            public int compare(Command o1, Command o2) {
-                return o1.getExecuteSortOrder().compareTo(o2.getExecuteSortOrder());
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                return this.equals(obj);
-            }
-        });
-
-        int count = stagingCommandsList.size() + finalCommandsList.size();
-        int completed = 0;
-        float percent = 0;
-
         logger.info(format("Deploying app %s with config dir of: %s\n", finalAppConfig.getName(), finalAppConfig.getFirstConfigDir()
             .getBaseDir().getAbsolutePath()));
-
-        CommandContext finalContext = new CommandContext(finalAppConfig, manageClient, adminManager);
-
-        onStatusChange(0, "Installing Final App...");
-        for (Command command : finalCommandsList) {
-            String name = command.getClass().getName();
-            logger.info(format("Executing command [%s] with sort order [%d]", name, command.getExecuteSortOrder()));
-            percent = ((float)completed / (float)count) * 100;
-            onStatusChange((int)percent, format("[Step %d of %d]  %s", completed + 1, count, name));
-            command.execute(finalContext);
-            logger.info(format("Finished executing command [%s]\n", name));
-            completed++;
-        }
-        onStatusChange((int)percent, "Final App Installation Complete");
-
         logger.info(format("Deploying app %s with config dir of: %s\n", stagingAppConfig.getName(), stagingAppConfig.getFirstConfigDir()
             .getBaseDir().getAbsolutePath()));
 
-        CommandContext stagingContext = new CommandContext(stagingAppConfig, manageClient, adminManager);
+        // final goes first so that, within a sort order, shared resources are still deployed final then staging
+        ParallelCommandExecutor executor = new ParallelCommandExecutor(parallelism)
+            .addCommands(finalCommandsList, new CommandContext(finalAppConfig, manageClient, adminManager))
+            .addCommands(stagingCommandsList, new CommandContext(stagingAppConfig, manageClient, adminManager));
 
-        onStatusChange((int)percent, "Installing Staging App...");
-        for (Command command : stagingCommandsList) {
-            String name = command.getClass().getName();
-            logger.info(format("Executing command [%s] with sort order [%d]", name, command.getExecuteSortOrder()));
-            percent = ((float)completed / (float)count) * 100;
-            onStatusChange((int)percent, format("[Step %d of %d]  %s", completed + 1, count, name));
-            command.execute(stagingContext);
-            logger.info(format("Finished executing command [%s]\n", name));
-            completed++;
-        }
-        onStatusChange(100, "Staging App Installation Complete");
+        onStatusChange(0, "Installing Final and Staging Apps...");
+        runSteps(executor);
+        onStatusChange(100, "Final and Staging App Installation Complete");
 
-        //Below is telemetry metric code for tracking successful dhf installs
-        //TODO: when more uses of telemetry are defined, change this to a more e-node based method
-        ServerEvaluationCall eval = databaseClient.newServerEval();
-        String query = "xdmp:feature-metric-increment(xdmp:feature-metric-register(\"datahub.core.install.count\"))";
-        try {
-            eval.xquery(query).eval().close();
-        }
-        catch(FailedRequestException e) {
-            logger.error("Failed to increment feature metric telemetry count: " + query, e);
-            e.printStackTrace();
-        }
+        incrementInstallCount();
         logger.info(format("Deployed app %s and %s", stagingAppConfig.getName(), finalAppConfig.getName()));
     }
 
@@ -133,120 +74,24 @@ public class HubAppDeployer extends SimpleAppDeployer {
         logger.info(format("Deploying app %s with config dir of: %s\n", appConfig.getName(), appConfig.getFirstConfigDir()
                 .getBaseDir().getAbsolutePath()));
 
-        List<Command> commands = getCommands();
-        Collections.sort(commands, new Comparator<Command>() {
-            @Override
-            public int compare(Command o1, Command o2) {
-                return o1.getExecuteSortOrder().compareTo(o2.getExecuteSortOrder());
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                return this.equals(obj);
-            }
-        });
+        ParallelCommandExecutor executor = new ParallelCommandExecutor(parallelism)
+            .addCommands(getCommands(), new CommandContext(appConfig, manageClient, adminManager));
 
-        CommandContext context = new CommandContext(appConfig, manageClient, adminManager);
-
-        int count = commands.size();
-        int completed = 0;
         onStatusChange(0, "Installing...");
-        for (Command command : commands) {
-            String name = command.getClass().getName();
-            logger.info(format("Executing command [%s] with sort order [%d]", name, command.getExecuteSortOrder()));
-            float percent = ((float)completed / (float)count) * 100;
-            onStatusChange((int)percent, format("[Step %d of %d]  %s", completed + 1, count, name));
-            command.execute(context);
-            logger.info(format("Finished executing command [%s]\n", name));
-            completed++;
-        }
+        runSteps(executor);
         onStatusChange(100, "Installation Complete");
 
-        //Below is telemetry metric code for tracking successful dhf installs
-        //TODO: when more uses of telemetry are defined, change this to a more e-node based method
-        ServerEvaluationCall eval = databaseClient.newServerEval();
-        String query = "xdmp:feature-metric-increment(xdmp:feature-metric-register(\"datahub.core.install.count\"))";
-        try {
-            eval.xquery(query).eval().close();
-        }
-        catch(FailedRequestException e) {
-            logger.error("Failed to increment feature metric telemetry count: " + query, e);
-            e.printStackTrace();
-        }
+        incrementInstallCount();
         logger.info(format("Deployed app %s", appConfig.getName()));
     }
 
     public void undeployAll(AppConfig finalAppConfig, AppConfig stagingAppConfig){
+        ParallelCommandExecutor executor = new ParallelCommandExecutor(parallelism)
+            .addUndoCommands(getUndoableCommands(stagingCommandsList), new CommandContext(stagingAppConfig, manageClient, adminManager))
+            .addUndoCommands(getUndoableCommands(finalCommandsList), new CommandContext(finalAppConfig, manageClient, adminManager));
 
-        List<UndoableCommand> stagingUndoableCommands = new ArrayList<>();
-        for (Command command : stagingCommandsList) {
-            if (command instanceof UndoableCommand) {
-                stagingUndoableCommands.add((UndoableCommand) command);
-            }
-        }
-
-        List<UndoableCommand> finalUndoableCommands = new ArrayList<>();
-        for (Command command : finalCommandsList) {
-            if (command instanceof UndoableCommand) {
-                finalUndoableCommands.add((UndoableCommand) command);
-            }
-        }
-
-        Collections.sort(stagingUndoableCommands, new Comparator<UndoableCommand>() {
-            @Override
-            public int compare(UndoableCommand o1, UndoableCommand o2) {
-                return o1.getUndoSortOrder().compareTo(o2.getUndoSortOrder());
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                return this.equals(obj);
-            }
-        });
-
-        Collections.sort(finalUndoableCommands, new Comparator<UndoableCommand>() {
-            @Override
-            public int compare(UndoableCommand o1, UndoableCommand o2) {
-                return o1.getUndoSortOrder().compareTo(o2.getUndoSortOrder());
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                return this.equals(obj);
-            }
-        });
-
-        int count = stagingUndoableCommands.size() + finalUndoableCommands.size();
-        int completed = 0;
-        float percent = 0;
-        onStatusChange(0, "Un-installing Staging App...");
-
-        CommandContext stagingContext = new CommandContext(stagingAppConfig, manageClient, adminManager);
-
-        for (UndoableCommand command : stagingUndoableCommands) {
-            String name = command.getClass().getName();
-            logger.info(format("Undoing command [%s] with sort order [%d]", name, command.getUndoSortOrder()));
-            percent = ((float)completed / (float)count) * 100;
-            onStatusChange((int)percent, format("[Step %d of %d]  %s", completed + 1, count, name));
-            command.undo(stagingContext);
-            logger.info(format("Finished undoing command [%s]\n", name));
-            completed++;
-        }
-        onStatusChange((int)percent, "Staging App Un-installation Complete");
-
-        CommandContext finalContext = new CommandContext(finalAppConfig, manageClient, adminManager);
-
-        onStatusChange((int)percent, "Un-installing Final App...");
-        for (UndoableCommand command : finalUndoableCommands) {
-            String name = command.getClass().getName();
-            logger.info(format("Undoing command [%s] with sort order [%d]", name, command.getUndoSortOrder()));
-            percent = ((float)completed / (float)count) * 100;
-            onStatusChange((int)percent, format("[Step %d of %d]  %s", completed + 1, count, name));
-            command.undo(finalContext);
-            logger.info(format("Finished undoing command [%s]\n", name));
-            completed++;
-        }
-
+        onStatusChange(0, "Un-installing Staging and Final Apps...");
+        runSteps(executor);
         onStatusChange(100, "Un-installation Complete");
 
         logger.info(format("Undeployed app %s and %s", stagingAppConfig.getName(), finalAppConfig.getName()));
@@ -258,43 +103,62 @@ public class HubAppDeployer extends SimpleAppDeployer {
         logger.info(format("Undeploying app %s with config dir: %s\n", appConfig.getName(), appConfig.getFirstConfigDir()
             .getBaseDir().getAbsolutePath()));
 
-        List<Command> commands = getCommands();
+        ParallelCommandExecutor executor = new ParallelCommandExecutor(parallelism)
+            .addUndoCommands(getUndoableCommands(getCommands()), new CommandContext(appConfig, manageClient, adminManager));
+
+        onStatusChange(0, "Uninstalling...");
+        runSteps(executor);
+        onStatusChange(100, "Installation Complete");
+
+        logger.info(format("Undeployed app %s", appConfig.getName()));
+    }
+
+    private void runSteps(ParallelCommandExecutor executor) {
+        try {
+            executor.run(new ParallelCommandExecutor.StepListener() {
+                @Override
+                public void onStepStarted(ParallelCommandExecutor.Step step, int started, int finished, int total) {
+                    String name = step.getCommand().getClass().getName();
+                    logger.info(format("%s command [%s] with sort order [%d]", step.isUndo() ? "Undoing" : "Executing", name, step.getSortOrder()));
+                    float percent = ((float)finished / (float)total) * 100;
+                    onStatusChange((int)percent, format("[Step %d of %d]  %s", started, total, name));
+                }
+
+                @Override
+                public void onStepFinished(ParallelCommandExecutor.Step step, int finished, int total) {
+                    String name = step.getCommand().getClass().getName();
+                    logger.info(format("Finished %s command [%s]\n", step.isUndo() ? "undoing" : "executing", name));
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            onError();
+            throw e;
+        }
+    }
 
+    private List<UndoableCommand> getUndoableCommands(List<Command> commands) {
         List<UndoableCommand> undoableCommands = new ArrayList<>();
         for (Command command : commands) {
             if (command instanceof UndoableCommand) {
                 undoableCommands.add((UndoableCommand) command);
             }
         }
+        return undoableCommands;
+    }
 
-        Collections.sort(undoableCommands, new Comparator<UndoableCommand>() {
-            @Override
-            public int compare(UndoableCommand o1, UndoableCommand o2) {
-                return o1.getUndoSortOrder().compareTo(o2.getUndoSortOrder());
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                return this.equals(obj);
-            }
-        });
-
-        int count = undoableCommands.size();
-        int completed = 0;
-        onStatusChange(0, "Uninstalling...");
-
-        for (UndoableCommand command : undoableCommands) {
-            String name = command.getClass().getName();
-            logger.info(format("Undoing command [%s] with sort order [%d]", name, command.getUndoSortOrder()));
-            float percent = ((float)completed / (float)count) * 100;
-            onStatusChange((int)percent, format("[Step %d of %d]  %s", completed + 1, count, name));
-            command.undo(new CommandContext(appConfig, manageClient, adminManager));
-            logger.info(format("Finished undoing command [%s]\n", name));
-            completed++;
+    private void incrementInstallCount() {
+        //Below is telemetry metric code for tracking successful dhf installs
+        //TODO: when more uses of telemetry are defined, change this to a more e-node based method
+        ServerEvaluationCall eval = databaseClient.newServerEval();
+        String query = "xdmp:feature-metric-increment(xdmp:feature-metric-register(\"datahub.core.install.count\"))";
+        try {
+            eval.xquery(query).eval().close();
+        }
+        catch(FailedRequestException e) {
+            logger.error("Failed to increment feature metric telemetry count: " + query, e);
+            e.printStackTrace();
         }
-        onStatusChange(100, "Installation Complete");
-
-        logger.info(format("Undeployed app %s", appConfig.getName()));
     }
 
     private void onStatusChange(int percentComplete, String message) {
@@ -318,4 +182,14 @@ public class HubAppDeployer extends SimpleAppDeployer {
     {
         this.finalCommandsList = finalCommandsList;
     }
+
+    /**
+     * Sets how many commands may run at once. Commands only ever overlap with others that share their sort
+     * order, so 1 gives the old strictly serial behavior.
+     * @param parallelism - the maximum number of concurrent commands, at least 1
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
 }
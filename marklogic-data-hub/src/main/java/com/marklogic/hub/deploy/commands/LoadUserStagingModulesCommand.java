@@ -25,10 +25,8 @@ import com.marklogic.client.document.DocumentWriteSet;
 import com.marklogic.client.document.JSONDocumentManager;
 import com.marklogic.client.document.XMLDocumentManager;
 import com.marklogic.client.ext.modulesloader.Modules;
-import com.marklogic.client.ext.modulesloader.ModulesManager;
 import com.marklogic.client.ext.modulesloader.impl.AssetFileLoader;
 import com.marklogic.client.ext.modulesloader.impl.DefaultModulesLoader;
-import com.marklogic.client.ext.modulesloader.impl.PropertiesModuleManager;
 import com.marklogic.client.ext.util.DefaultDocumentPermissionsParser;
 import com.marklogic.client.ext.util.DocumentPermissionsParser;
 import com.marklogic.client.io.DocumentMetadataHandle;
@@ -45,23 +43,38 @@ import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.deploy.util.HubFileFilter;
 import com.marklogic.hub.error.LegacyFlowsException;
 import com.marklogic.hub.flow.Flow;
+import com.marklogic.hub.util.HubModuleManager;
 import org.apache.commons.io.IOUtils;
 import org.springframework.core.io.Resource;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 public class LoadUserStagingModulesCommand extends AbstractCommand {
 
+    private static final String ENTITY_FILE_EXTENSION = ".entity.json";
+
+    // shared by every deploy so that watch triggered redeploys don't spin up a new pool each time
+    private static final ThreadPoolTaskExecutor SHARED_EXECUTOR = newSharedExecutor();
+
     private HubConfig hubConfig;
     private DocumentPermissionsParser documentPermissionsParser = new DefaultDocumentPermissionsParser();
-    private ThreadPoolTaskExecutor threadPoolTaskExecutor;
 
     public void setForceLoad(boolean forceLoad) {
         this.forceLoad = forceLoad;
@@ -69,47 +82,161 @@ public class LoadUserStagingModulesCommand extends AbstractCommand {
 
     private boolean forceLoad = false;
 
+    // when set, only these paths (and anything under them) are deployed
+    private Set<Path> changedPaths = null;
+
+    /**
+     * Limits the next deploy to the given files and directories, e.g. the paths a file watcher reported.
+     * Everything else under plugins is left alone: its subtree isn't walked or hashed, and the bundled final
+     * modules and staging query options aren't reloaded unless an entity definition changed.
+     * @param changedPaths - the paths that changed, or null to deploy everything
+     */
+    public void setChangedPaths(Set<Path> changedPaths) {
+        if (changedPaths == null) {
+            this.changedPaths = null;
+        }
+        else {
+            this.changedPaths = new HashSet<>();
+            for (Path path : changedPaths) {
+                this.changedPaths.add(path.toAbsolutePath().normalize());
+            }
+        }
+    }
+
+    /**
+     * @param path - an absolute, normalized path
+     * @return true if a full deploy was requested, or the path is changed, contains a changed path or is under one
+     */
+    boolean isAffected(Path path) {
+        if (changedPaths == null) {
+            return true;
+        }
+        for (Path changed : changedPaths) {
+            if (changed.startsWith(path) || path.startsWith(changed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasChangedEntityDefinition() {
+        if (changedPaths == null) {
+            return true;
+        }
+        for (Path changed : changedPaths) {
+            if (changed.getFileName() != null && changed.getFileName().toString().endsWith(ENTITY_FILE_EXTENSION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public LoadUserStagingModulesCommand(HubConfig hubConfig) {
         setExecuteSortOrder(460);
         this.hubConfig = hubConfig;
     }
 
-    private PropertiesModuleManager getModulesManager() {
+    private HubModuleManager getModulesManager() {
         String timestampFile = hubConfig.getUserModulesDeployTimestampFile();
-        PropertiesModuleManager pmm = new PropertiesModuleManager(timestampFile);
+        HubModuleManager pmm = new HubModuleManager(timestampFile);
         if (forceLoad) {
             pmm.deletePropertiesFile();
         }
         return pmm;
     }
 
-    private AssetFileLoader getAssetFileLoader(AppConfig config, PropertiesModuleManager moduleManager) {
+    private AssetFileLoader getAssetFileLoader(AppConfig config, HubModuleManager moduleManager) {
         AssetFileLoader assetFileLoader = new AssetFileLoader(hubConfig.newModulesDbClient(), moduleManager);
         assetFileLoader.addDocumentFileProcessor(new CacheBusterDocumentFileProcessor());
         assetFileLoader.addFileFilter(new HubFileFilter());
+        if (changedPaths != null) {
+            assetFileLoader.addFileFilter(file -> isAffected(file.toPath().toAbsolutePath().normalize()));
+        }
         assetFileLoader.setPermissions(config.getModulePermissions());
         return assetFileLoader;
     }
 
-    private DefaultModulesLoader getStagingModulesLoader(AppConfig config) {
-        this.threadPoolTaskExecutor = new ThreadPoolTaskExecutor();
-        this.threadPoolTaskExecutor.setCorePoolSize(16);
-        // 10 minutes should be plenty of time to wait for REST API modules to be loaded
-        this.threadPoolTaskExecutor.setAwaitTerminationSeconds(60 * 10);
-        this.threadPoolTaskExecutor.setWaitForTasksToCompleteOnShutdown(true);
-        this.threadPoolTaskExecutor.afterPropertiesSet();
+    private static ThreadPoolTaskExecutor newSharedExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(16);
+        executor.setThreadNamePrefix("hub-user-modules-");
+        executor.setDaemon(true);
+        executor.afterPropertiesSet();
+        return executor;
+    }
 
-        PropertiesModuleManager moduleManager = getModulesManager();
+    private DefaultModulesLoader getStagingModulesLoader(AppConfig config, DeployTasks tasks) {
+        HubModuleManager moduleManager = getModulesManager();
         AssetFileLoader assetFileLoader = getAssetFileLoader(config, moduleManager);
 
         DefaultModulesLoader modulesLoader = new DefaultModulesLoader(assetFileLoader);
         modulesLoader.setModulesManager(moduleManager);
-        modulesLoader.setTaskExecutor(this.threadPoolTaskExecutor);
+        modulesLoader.setTaskExecutor(tasks);
         modulesLoader.setShutdownTaskExecutorAfterLoadingModules(false);
 
         return modulesLoader;
     }
 
+    /**
+     * Hands work to the shared executor and remembers it, so a deploy can wait for just its own tasks
+     * without shutting down a pool that other deploys are using.
+     */
+    private static class DeployTasks implements TaskExecutor {
+        private final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void execute(Runnable task) {
+            futures.add(SHARED_EXECUTOR.submit(task));
+        }
+
+        void submit(Runnable task) {
+            execute(task);
+        }
+
+        void await() {
+            RuntimeException failure = null;
+            // tasks may queue more tasks while we wait, so keep going until the list stops growing
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get(10, TimeUnit.MINUTES);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                catch (ExecutionException | TimeoutException e) {
+                    if (failure == null) {
+                        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                        failure = cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+                    }
+                }
+            }
+            futures.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Everything a single scan of the plugins directory found that needs to be pushed, grouped by the
+     * database it is written to.
+     */
+    private static class ChangeSet {
+        final List<Path> inputRestDirs = new ArrayList<>();
+        final List<Path> harmonizeRestDirs = new ArrayList<>();
+        final DocumentWriteSet finalDocuments;
+        final DocumentWriteSet stagingDocuments;
+        final DocumentWriteSet modulesDocuments;
+        final List<File> loadedFiles = new ArrayList<>();
+
+        ChangeSet(DocumentWriteSet finalDocuments, DocumentWriteSet stagingDocuments, DocumentWriteSet modulesDocuments) {
+            this.finalDocuments = finalDocuments;
+            this.stagingDocuments = stagingDocuments;
+            this.modulesDocuments = modulesDocuments;
+        }
+    }
+
     boolean isInputRestDir(Path dir) {
         return dir.endsWith("REST") && dir.toString().matches(".*[/\\\\]input[/\\\\].*");
     }
@@ -140,6 +267,88 @@ public class LoadUserStagingModulesCommand extends AbstractCommand {
             dir.getFileName().toString().equals(parent.getFileName().toString() + ".properties");
     }
 
+    /**
+     * Walks the plugins directory once, picking up changed entity definitions, mappings and flow properties
+     * and noting the REST dirs to load.
+     */
+    private void scanPlugins(Path pluginsPath, FlowManager flowManager, HubModuleManager modulesManager, ChangeSet changes) throws IOException {
+        Path entitiesPath = pluginsPath.resolve("entities");
+        Path mappingsPath = pluginsPath.resolve("mappings");
+        if (!pluginsPath.toFile().exists()) {
+            return;
+        }
+
+        DocumentMetadataHandle entityMeta = new DocumentMetadataHandle();
+        entityMeta.getCollections().add("http://marklogic.com/entity-services/models");
+        documentPermissionsParser.parsePermissions(hubConfig.getModulePermissions(), entityMeta.getPermissions());
+
+        DocumentMetadataHandle mappingMeta = new DocumentMetadataHandle();
+        mappingMeta.getCollections().add("http://marklogic.com/data-hub/mappings");
+        documentPermissionsParser.parsePermissions(hubConfig.getModulePermissions(), mappingMeta.getPermissions());
+
+        Files.walkFileTree(pluginsPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!isAffected(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (dir.startsWith(entitiesPath)) {
+                    if (isInputRestDir(dir)) {
+                        changes.inputRestDirs.add(dir);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    else if (isHarmonizeRestDir(dir)) {
+                        changes.harmonizeRestDirs.add(dir);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    else if (isEntityDir(dir, entitiesPath)) {
+                        Modules modules = new EntityDefModulesFinder().findModules(dir.toString());
+                        for (Resource r : modules.getAssets()) {
+                            if (forceLoad || modulesManager.hasFileBeenModifiedSinceLastLoaded(r.getFile())) {
+                                StringHandle handle = readResource(r);
+                                changes.finalDocuments.add("/entities/" + r.getFilename(), entityMeta, handle);
+                                changes.stagingDocuments.add("/entities/" + r.getFilename(), entityMeta, handle);
+                                changes.loadedFiles.add(r.getFile());
+                            }
+                        }
+                    }
+                }
+                else if (dir.startsWith(mappingsPath) && isMappingDir(dir, mappingsPath)) {
+                    Modules modules = new MappingDefModulesFinder().findModules(dir.toString());
+                    for (Resource r : modules.getAssets()) {
+                        if (forceLoad || modulesManager.hasFileBeenModifiedSinceLastLoaded(r.getFile())) {
+                            StringHandle handle = readResource(r);
+                            String uri = "/mappings/" + r.getFile().getParentFile().getName() + "/" + r.getFilename();
+                            changes.finalDocuments.add(uri, mappingMeta, handle);
+                            changes.stagingDocuments.add(uri, mappingMeta, handle);
+                            changes.loadedFiles.add(r.getFile());
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if ((file.startsWith(entitiesPath) || file.startsWith(mappingsPath)) &&
+                    isFlowPropertiesFile(file) && modulesManager.hasFileBeenModifiedSinceLastLoaded(file.toFile())) {
+                    Flow flow = flowManager.getFlowFromProperties(file);
+                    StringHandle handle = new StringHandle(flow.serialize());
+                    handle.setFormat(Format.XML);
+                    changes.modulesDocuments.add(flow.getFlowDbPath(), handle);
+                    changes.loadedFiles.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private StringHandle readResource(Resource r) throws IOException {
+        try (InputStream inputStream = r.getInputStream()) {
+            return new StringHandle(IOUtils.toString(inputStream));
+        }
+    }
+
     @Override
     public void execute(CommandContext context) {
         FlowManager flowManager = FlowManager.create(hubConfig);
@@ -155,24 +364,20 @@ public class LoadUserStagingModulesCommand extends AbstractCommand {
 
         Path userModulesPath = hubConfig.getHubPluginsDir();
         String baseDir = userModulesPath.normalize().toAbsolutePath().toString();
-        Path startPath = userModulesPath.resolve("entities");
-        Path mappingPath = userModulesPath.resolve("mappings");
 
         // load any user files under plugins/* int the modules database.
         // this will ignore REST folders under entities
-        DefaultModulesLoader modulesLoader = getStagingModulesLoader(config);
+        DeployTasks tasks = new DeployTasks();
+        DefaultModulesLoader modulesLoader = getStagingModulesLoader(config, tasks);
+        HubModuleManager modulesManager = (HubModuleManager) modulesLoader.getModulesManager();
         modulesLoader.loadModules(baseDir, new UserModulesFinder(), stagingClient);
-        modulesLoader.loadModules("classpath*:/ml-modules-final", new SearchOptionsFinder(), finalClient);
-
-        //for now we'll use two different document managers
-        JSONDocumentManager finalEntityDocMgr = finalClient.newJSONDocumentManager();
-        JSONDocumentManager stagingEntityDocMgr = stagingClient.newJSONDocumentManager();
-        JSONDocumentManager finalMappingDocMgr = finalClient.newJSONDocumentManager();
-        JSONDocumentManager stagingMappingDocMgr = stagingClient.newJSONDocumentManager();
-        DocumentWriteSet finalMappingDocumentWriteSet = finalMappingDocMgr.newWriteSet();
-        DocumentWriteSet stagingMappingDocumentWriteSet = stagingMappingDocMgr.newWriteSet();
+        if (changedPaths == null) {
+            modulesLoader.loadModules("classpath*:/ml-modules-final", new SearchOptionsFinder(), finalClient);
+        }
 
-        AllButAssetsModulesFinder allButAssetsModulesFinder = new AllButAssetsModulesFinder();
+        JSONDocumentManager finalDocMgr = finalClient.newJSONDocumentManager();
+        JSONDocumentManager stagingDocMgr = stagingClient.newJSONDocumentManager();
+        XMLDocumentManager modulesDocMgr = hubConfig.newModulesDbClient().newXMLDocumentManager();
 
         Path dir = Paths.get(hubConfig.getProjectDir(), HubConfig.ENTITY_CONFIG_DIR);
         if (!dir.toFile().exists()) {
@@ -180,127 +385,52 @@ public class LoadUserStagingModulesCommand extends AbstractCommand {
         }
 
         // deploy the auto-generated ES search options
-        EntityManager entityManager = EntityManager.create(hubConfig);
-        entityManager.deployStagingQueryOptions();
+        if (hasChangedEntityDefinition()) {
+            EntityManager entityManager = EntityManager.create(hubConfig);
+            entityManager.deployStagingQueryOptions();
+        }
 
         try {
-            if (startPath.toFile().exists()) {
-                XMLDocumentManager documentManager = hubConfig.newModulesDbClient().newXMLDocumentManager();
-                DocumentWriteSet documentWriteSet = documentManager.newWriteSet();
-
-                ModulesManager modulesManager = modulesLoader.getModulesManager();
-
-                //first let's do the entities and flows + extensions
-                Files.walkFileTree(startPath, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        String currentDir = dir.normalize().toAbsolutePath().toString();
-
-                        // for REST dirs we need to deploy all the REST stuff (transforms, options, services, etc)
-                        if (isInputRestDir(dir)) {
-                            modulesLoader.loadModules(currentDir, allButAssetsModulesFinder, stagingClient);
-                            return FileVisitResult.SKIP_SUBTREE;
-                        }
-                        // for harmonize dir we put stuff in final
-                        else if (isHarmonizeRestDir(dir)) {
-                            modulesLoader.loadModules(currentDir, allButAssetsModulesFinder, finalClient);
-                            return FileVisitResult.SKIP_SUBTREE;
-                        }
-                        else if (isEntityDir(dir, startPath.toAbsolutePath())) {
-                            Modules modules = new EntityDefModulesFinder().findModules(dir.toString());
-                            DocumentMetadataHandle meta = new DocumentMetadataHandle();
-                            meta.getCollections().add("http://marklogic.com/entity-services/models");
-                            documentPermissionsParser.parsePermissions(hubConfig.getModulePermissions(), meta.getPermissions());
-                            for (Resource r : modules.getAssets()) {
-                                if (forceLoad || modulesManager.hasFileBeenModifiedSinceLastLoaded(r.getFile())) {
-                                    InputStream inputStream = r.getInputStream();
-                                    StringHandle handle = new StringHandle(IOUtils.toString(inputStream));
-                                    inputStream.close();
-                                    finalEntityDocMgr.write("/entities/" + r.getFilename(), meta, handle);
-
-                                    // Uncomment to send entity model to staging db as well
-                                    stagingEntityDocMgr.write("/entities/" + r.getFilename(), meta, handle);
-                                    modulesManager.saveLastLoadedTimestamp(r.getFile(), new Date());
-                                }
-                            }
-                            return FileVisitResult.CONTINUE;
-                        }
-                        else {
-                            return FileVisitResult.CONTINUE;
-                        }
-                    }
+            ChangeSet changes = new ChangeSet(finalDocMgr.newWriteSet(), stagingDocMgr.newWriteSet(), modulesDocMgr.newWriteSet());
+            scanPlugins(userModulesPath.normalize().toAbsolutePath(), flowManager, modulesManager, changes);
 
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                        throws IOException
-                    {
-                        if (isFlowPropertiesFile(file) && modulesManager.hasFileBeenModifiedSinceLastLoaded(file.toFile())) {
-                            Flow flow = flowManager.getFlowFromProperties(file);
-                            StringHandle handle = new StringHandle(flow.serialize());
-                            handle.setFormat(Format.XML);
-                            documentWriteSet.add(flow.getFlowDbPath(), handle);
-                            modulesManager.saveLastLoadedTimestamp(file.toFile(), new Date());
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
-
-                //now let's do the mappings path
-                if (mappingPath.toFile().exists()) {
-                    Files.walkFileTree(mappingPath, new SimpleFileVisitor<Path>() {
-                        @Override
-                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                            String currentDir = dir.normalize().toAbsolutePath().toString();
-
-                            if (isMappingDir(dir, mappingPath.toAbsolutePath())) {
-                                Modules modules = new MappingDefModulesFinder().findModules(dir.toString());
-                                DocumentMetadataHandle meta = new DocumentMetadataHandle();
-                                meta.getCollections().add("http://marklogic.com/data-hub/mappings");
-                                documentPermissionsParser.parsePermissions(hubConfig.getModulePermissions(), meta.getPermissions());
-                                for (Resource r : modules.getAssets()) {
-                                    if (forceLoad || modulesManager.hasFileBeenModifiedSinceLastLoaded(r.getFile())) {
-                                        InputStream inputStream = r.getInputStream();
-                                        StringHandle handle = new StringHandle(IOUtils.toString(inputStream));
-                                        inputStream.close();
-                                        finalMappingDocumentWriteSet.add("/mappings/" + r.getFile().getParentFile().getName() + "/" + r.getFilename(), meta, handle);
-                                        stagingMappingDocumentWriteSet.add("/mappings/" + r.getFile().getParentFile().getName() + "/" + r.getFilename(), meta, handle);
-                                        modulesManager.saveLastLoadedTimestamp(r.getFile(), new Date());
-                                    }
-                                }
-                                return FileVisitResult.CONTINUE;
-                            } else {
-                                return FileVisitResult.CONTINUE;
-                            }
-                        }
+            // for REST dirs we need to deploy all the REST stuff (transforms, options, services, etc)
+            AllButAssetsModulesFinder allButAssetsModulesFinder = new AllButAssetsModulesFinder();
+            for (Path restDir : changes.inputRestDirs) {
+                modulesLoader.loadModules(restDir.toString(), allButAssetsModulesFinder, stagingClient);
+            }
+            // for harmonize dir we put stuff in final
+            for (Path restDir : changes.harmonizeRestDirs) {
+                modulesLoader.loadModules(restDir.toString(), allButAssetsModulesFinder, finalClient);
+            }
 
-                        @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                            throws IOException {
-                            if (isFlowPropertiesFile(file) && modulesManager.hasFileBeenModifiedSinceLastLoaded(file.toFile())) {
-                                Flow flow = flowManager.getFlowFromProperties(file);
-                                StringHandle handle = new StringHandle(flow.serialize());
-                                handle.setFormat(Format.XML);
-                                documentWriteSet.add(flow.getFlowDbPath(), handle);
-                                modulesManager.saveLastLoadedTimestamp(file.toFile(), new Date());
-                            }
-                            return FileVisitResult.CONTINUE;
-                        }
-                    });
-                }
+            // each database gets one multi-document write, and the three of them go out together
+            if (changes.finalDocuments.size() > 0) {
+                tasks.submit(() -> finalDocMgr.write(changes.finalDocuments));
+            }
+            if (changes.stagingDocuments.size() > 0) {
+                tasks.submit(() -> stagingDocMgr.write(changes.stagingDocuments));
+            }
+            if (changes.modulesDocuments.size() > 0) {
+                tasks.submit(() -> modulesDocMgr.write(changes.modulesDocuments));
+            }
+            tasks.await();
 
-                if (documentWriteSet.size() > 0) {
-                    documentManager.write(documentWriteSet);
-                }
+            Date loaded = new Date();
+            for (File file : changes.loadedFiles) {
+                modulesManager.saveLastLoadedTimestamp(file, loaded);
+            }
 
-                if (stagingMappingDocumentWriteSet.size() > 0) {
-                    finalMappingDocMgr.write(finalMappingDocumentWriteSet);
-                    stagingMappingDocMgr.write(stagingMappingDocumentWriteSet);
-                }
+            // flow definitions are cached on the e-nodes, so drop them now rather than wait for a recheck
+            if (changes.modulesDocuments.size() > 0) {
+                flowManager.flushFlowCache();
             }
-            threadPoolTaskExecutor.shutdown();
         } catch (IOException e) {
             e.printStackTrace();
             //throw new RuntimeException(e);
+        } finally {
+            // the index is only written once, after everything in this deploy has been loaded
+            modulesManager.flush();
         }
     }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.deploy.util;
+
+import com.marklogic.appdeployer.command.Command;
+import com.marklogic.appdeployer.command.CommandContext;
+import com.marklogic.appdeployer.command.UndoableCommand;
+import com.marklogic.hub.deploy.commands.DeployHubDatabaseCommand;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs deploy (or undeploy) commands as a dependency graph instead of one long serial list.
+ * <p>
+ * Every command depends on all of the commands with a lower sort order, across every app that was added, so
+ * the ordering guarantees of the sort order constants still hold. Commands that share a sort order are
+ * independent and run concurrently, up to the configured parallelism, unless they touch the same resource
+ * (the same command class, or the same database file for DeployHubDatabaseCommand). Those stay serial in the
+ * order they were added.
+ * </p>
+ * With a parallelism of 1 the commands run in exactly the order the serial deployer used: each list of commands
+ * that was added runs on its own, sorted by sort order, before the next list starts.
+ */
+public class ParallelCommandExecutor {
+
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    /**
+     * Receives progress for each step. Callbacks are always made on the thread that called run, never
+     * concurrently.
+     */
+    public interface StepListener {
+        /**
+         * Called just before a step is handed to a worker thread
+         * @param step - the step being started
+         * @param started - how many steps have been started, including this one
+         * @param finished - how many steps have finished so far
+         * @param total - the total number of steps
+         */
+        void onStepStarted(Step step, int started, int finished, int total);
+
+        /**
+         * Called once a step has finished successfully
+         * @param step - the step that finished
+         * @param finished - how many steps have finished, including this one
+         * @param total - the total number of steps
+         */
+        void onStepFinished(Step step, int finished, int total);
+    }
+
+    public static class Step {
+        private final Command command;
+        private final CommandContext context;
+        private final boolean undo;
+        private final int index;
+        private final int group;
+        private final List<Step> dependents = new ArrayList<>();
+        private int remainingDependencies = 0;
+
+        private Step(Command command, CommandContext context, boolean undo, int index, int group) {
+            this.command = command;
+            this.context = context;
+            this.undo = undo;
+            this.index = index;
+            this.group = group;
+        }
+
+        public Command getCommand() {
+            return command;
+        }
+
+        public CommandContext getContext() {
+            return context;
+        }
+
+        public int getSortOrder() {
+            Integer sortOrder = undo ? ((UndoableCommand) command).getUndoSortOrder() : command.getExecuteSortOrder();
+            return sortOrder != null ? sortOrder : Integer.MAX_VALUE;
+        }
+
+        public boolean isUndo() {
+            return undo;
+        }
+
+        private String getResourceKey() {
+            String key = command.getClass().getName();
+            if (command instanceof DeployHubDatabaseCommand) {
+                key += ":" + ((DeployHubDatabaseCommand) command).getDatabaseFilename();
+            }
+            return key;
+        }
+
+        private void run() {
+            if (undo) {
+                ((UndoableCommand) command).undo(context);
+            }
+            else {
+                command.execute(context);
+            }
+        }
+    }
+
+    private final int parallelism;
+    private final List<Step> steps = new ArrayList<>();
+    // counts the addCommands and addUndoCommands calls
+    private int groups = 0;
+
+    public ParallelCommandExecutor(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Adds commands to be executed against the given context
+     * @param commands - the commands to execute
+     * @param context - the context for the app these commands belong to
+     * @return this executor
+     */
+    public ParallelCommandExecutor addCommands(List<? extends Command> commands, CommandContext context) {
+        for (Command command : commands) {
+            steps.add(new Step(command, context, false, steps.size(), groups));
+        }
+        groups++;
+        return this;
+    }
+
+    /**
+     * Adds commands to be undone against the given context, ordered by their undo sort order
+     * @param commands - the commands to undo
+     * @param context - the context for the app these commands belong to
+     * @return this executor
+     */
+    public ParallelCommandExecutor addUndoCommands(List<? extends UndoableCommand> commands, CommandContext context) {
+        for (UndoableCommand command : commands) {
+            steps.add(new Step(command, context, true, steps.size(), groups));
+        }
+        groups++;
+        return this;
+    }
+
+    /**
+     * Runs every added step and blocks until they have all finished. If a step fails no further steps are
+     * started; the ones already running are allowed to finish and the first failure is rethrown.
+     * @param listener - receives progress, may be null
+     */
+    public void run(StepListener listener) {
+        int total = steps.size();
+        if (total == 0) {
+            return;
+        }
+        buildGraph();
+
+        PriorityQueue<Step> ready = new PriorityQueue<>(Comparator.comparingInt((Step s) -> s.index));
+        for (Step step : steps) {
+            if (step.remainingDependencies == 0) {
+                ready.add(step);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, total), newThreadFactory());
+        CompletionService<Step> completionService = new ExecutorCompletionService<>(executor);
+        RuntimeException failure = null;
+        int started = 0;
+        int finished = 0;
+        int inFlight = 0;
+        try {
+            while (finished < total) {
+                while (failure == null && inFlight < parallelism && !ready.isEmpty()) {
+                    Step step = ready.poll();
+                    started++;
+                    if (listener != null) {
+                        listener.onStepStarted(step, started, finished, total);
+                    }
+                    completionService.submit(() -> {
+                        step.run();
+                        return step;
+                    });
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                Future<Step> future = completionService.take();
+                inFlight--;
+                try {
+                    Step step = future.get();
+                    finished++;
+                    if (listener != null) {
+                        listener.onStepFinished(step, finished, total);
+                    }
+                    for (Step dependent : step.dependents) {
+                        if (--dependent.remainingDependencies == 0) {
+                            ready.add(dependent);
+                        }
+                    }
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            throw new RuntimeException(e);
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void buildGraph() {
+        // run serially, each added list finishes before the next one starts, as it did before commands could overlap
+        Comparator<Step> order = parallelism == 1
+            ? Comparator.comparingInt((Step s) -> s.group).thenComparingInt(Step::getSortOrder)
+            : Comparator.comparingInt(Step::getSortOrder);
+        List<Step> sorted = new ArrayList<>(steps);
+        // stable, so commands that share a sort order keep the order they were added in
+        sorted.sort(order);
+
+        List<Step> previousGroup = new ArrayList<>();
+        List<Step> currentGroup = new ArrayList<>();
+        for (Step step : sorted) {
+            if (!currentGroup.isEmpty() && order.compare(currentGroup.get(0), step) != 0) {
+                previousGroup = currentGroup;
+                currentGroup = new ArrayList<>();
+            }
+            for (Step dependency : previousGroup) {
+                addDependency(dependency, step);
+            }
+            for (Step sibling : currentGroup) {
+                if (sibling.getResourceKey().equals(step.getResourceKey())) {
+                    addDependency(sibling, step);
+                }
+            }
+            currentGroup.add(step);
+        }
+    }
+
+    private static void addDependency(Step dependency, Step dependent) {
+        dependency.dependents.add(dependent);
+        dependent.remainingDependencies++;
+    }
+
+    private static ThreadFactory newThreadFactory() {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "hub-deployer-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
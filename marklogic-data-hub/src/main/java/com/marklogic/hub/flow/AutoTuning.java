@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow;
+
+/**
+ * Bounds and targets for adapting the batch size and the number of in-flight
+ * batches of a harmonize flow while it runs.
+ *
+ * The flow runner grows the batch size and concurrency additively while batches
+ * finish within the target latency, and halves both when batches fail or run
+ * over the target.
+ */
+public class AutoTuning {
+    private int minBatchSize = 10;
+    private int maxBatchSize = 1000;
+    private int batchSizeIncrement = 10;
+    private int maxThreadCount = 16;
+    private long targetLatencyMillis = 10000;
+    private double maxErrorRate = 0.05;
+    private int windowSize = 10;
+
+    /**
+     * Sets the smallest batch size the flow runner will shrink to
+     * @param minBatchSize - the minimum number of items per batch
+     * @return the auto tuning object
+     */
+    public AutoTuning withMinBatchSize(int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+        return this;
+    }
+
+    /**
+     * Sets the largest batch size the flow runner will grow to
+     * @param maxBatchSize - the maximum number of items per batch
+     * @return the auto tuning object
+     */
+    public AutoTuning withMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Sets how many items are added to the batch size each time it grows
+     * @param batchSizeIncrement - the additive batch size step
+     * @return the auto tuning object
+     */
+    public AutoTuning withBatchSizeIncrement(int batchSizeIncrement) {
+        this.batchSizeIncrement = batchSizeIncrement;
+        return this;
+    }
+
+    /**
+     * Sets the most batches that may be in flight at once
+     * @param maxThreadCount - the maximum concurrency
+     * @return the auto tuning object
+     */
+    public AutoTuning withMaxThreadCount(int maxThreadCount) {
+        this.maxThreadCount = maxThreadCount;
+        return this;
+    }
+
+    /**
+     * Sets the batch latency above which the flow runner backs off
+     * @param targetLatencyMillis - the target latency of a batch in milliseconds
+     * @return the auto tuning object
+     */
+    public AutoTuning withTargetLatencyMillis(long targetLatencyMillis) {
+        this.targetLatencyMillis = targetLatencyMillis;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of failed items above which the flow runner backs off
+     * @param maxErrorRate - a value between 0 and 1
+     * @return the auto tuning object
+     */
+    public AutoTuning withMaxErrorRate(double maxErrorRate) {
+        this.maxErrorRate = maxErrorRate;
+        return this;
+    }
+
+    /**
+     * Sets how many batches are measured before each tuning decision
+     * @param windowSize - the number of batches per measurement window
+     * @return the auto tuning object
+     */
+    public AutoTuning withWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public int getBatchSizeIncrement() {
+        return batchSizeIncrement;
+    }
+
+    public int getMaxThreadCount() {
+        return maxThreadCount;
+    }
+
+    public long getTargetLatencyMillis() {
+        return targetLatencyMillis;
+    }
+
+    public double getMaxErrorRate() {
+        return maxErrorRate;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow;
+
+/**
+ * A job running in this JVM that can be stopped before it finishes on its own.
+ * Flow runners hand these out for the jobs they start, and an mlcp runner is one.
+ */
+public interface CancellableJob {
+
+    /**
+     * Returns the id of the job
+     * @return the job id
+     */
+    String getJobId();
+
+    /**
+     * Cancels the job. A graceful cancel stops handing out new work and lets what is already in flight
+     * finish, so the job's counts stay accurate. A forced cancel stops straight away. Either way the job
+     * is saved with a status of CANCELED.
+     * @param force - true to stop without waiting for in-flight work
+     */
+    void cancel(boolean force);
+
+    /**
+     * Tells if the job has stopped, whether it finished or was canceled
+     * @return true once the job is no longer running
+     */
+    boolean isDone();
+}
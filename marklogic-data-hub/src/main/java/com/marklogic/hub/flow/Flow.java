@@ -126,6 +126,18 @@ public interface Flow {
      * @param collector the collector to be used for the flow
      */
     void setCollector(Collector collector);
+    /**
+     * Gets the serialized structured or combined query that selects the documents to harmonize.
+     * When set, the flow runner hands the query to a QueryBatcher instead of running the collector,
+     * and checkpointing does not apply.
+     * @return the query as json or xml, or null to use the collector
+     */
+    String getCollectorQuery();
+    /**
+     * Sets the serialized query that selects the documents to harmonize in place of the collector
+     * @param collectorQuery - a structured or combined query as json or xml, or null to use the collector
+     */
+    void setCollectorQuery(String collectorQuery);
 
     /**
      * Gets the main plugin module that the flow is set to use
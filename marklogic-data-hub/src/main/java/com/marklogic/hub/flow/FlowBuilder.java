@@ -63,6 +63,11 @@ public class FlowBuilder {
         return this;
     }
 
+    public FlowBuilder withCollectorQuery(String collectorQuery) {
+        flow.setCollectorQuery(collectorQuery);
+        return this;
+    }
+
     public FlowBuilder withMain(MainPlugin main) {
         flow.setMain(main);
         return this;
@@ -17,6 +17,7 @@ package com.marklogic.hub.flow;
 
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.datamovement.JobTicket;
+import com.marklogic.hub.job.JobSink;
 
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +48,15 @@ public interface FlowRunner {
      */
     FlowRunner withThreadCount(int threadCount);
 
+    /**
+     * Turns on adaptive tuning. The batch size and thread count set on the flow runner become
+     * the starting point, and both are adjusted within the given bounds while the flow runs.
+     * The adjustments are recorded on the job document.
+     * @param autoTuning - the tuning bounds and targets, or null to keep the batch size and thread count fixed
+     * @return the flow runner object
+     */
+    FlowRunner withAutoTuning(AutoTuning autoTuning);
+
     /**
      * Sets the source client on the flow runner. The source client determines which database to run against for building the envelope.
      * @param sourceClient - the client that will be used
@@ -75,6 +85,58 @@ public interface FlowRunner {
      */
     FlowRunner withStopOnFailure(boolean stopOnFailure);
 
+    /**
+     * Sets if harmonization starts while the collector is still returning uris. When false (the default)
+     * every uri is collected before the first batch runs. Flows with a collector query have no
+     * collector to stream from, so running one with streaming throws an IllegalStateException.
+     * @param streaming - true to overlap collection and harmonization
+     * @return the flow runner object
+     */
+    FlowRunner withStreaming(boolean streaming);
+
+    /**
+     * Sets if the job's progress is checkpointed so that a job that dies part way through can be
+     * picked up again with {@link #resume(String)}. The collected uris and the checkpoints are kept
+     * under .tmp/checkpoints in the project directory until the job finishes. Flows with a collector
+     * query cannot be checkpointed, so running one with checkpointing throws an IllegalStateException.
+     * @param checkpointing - true to checkpoint the job
+     * @return the flow runner object
+     */
+    FlowRunner withCheckpointing(boolean checkpointing);
+
+    /**
+     * Sets how the job's items are traced, overriding the hub's tracing setting for this job.
+     * When not set, every item is traced if tracing is enabled and only failed items otherwise.
+     * @param traceMode - full, errors only or sampled tracing
+     * @return the flow runner object
+     */
+    FlowRunner withTraceMode(TraceMode traceMode);
+
+    /**
+     * Sets how many items share one trace when tracing is sampled. Defaults to 100.
+     * @param sampleRate - trace one in every sampleRate items
+     * @return the flow runner object
+     */
+    FlowRunner withTraceSampleRate(int sampleRate);
+
+    /**
+     * Sets if JavaScript harmonize flows run their batches through the bulk flow resource, which
+     * sets the flow up once per batch and commits all of the batch's writers in one transaction.
+     * XQuery flows are not affected.
+     * @param bulkHarmonize - true to use the bulk flow resource
+     * @return the flow runner object
+     */
+    FlowRunner withBulkHarmonize(boolean bulkHarmonize);
+
+    /**
+     * Sets if the collector's uris are regrouped by the host that holds each document, so every
+     * batch is harmonized by the app server on that host. Ignored behind a load balancer and for
+     * flows with a collector query, whose batches already follow the forests.
+     * @param forestAffinity - true to send each batch to the host that holds its documents
+     * @return the flow runner object
+     */
+    FlowRunner withForestAffinity(boolean forestAffinity);
+
     /**
      * Sets a listener on each item completing
      * @param listener the listen object to set
@@ -89,6 +151,13 @@ public interface FlowRunner {
      */
     FlowRunner onItemFailed(FlowItemFailureListener listener);
 
+    /**
+     * Sets where the job document is written. Defaults to the job database.
+     * @param jobSink - the sink for job documents
+     * @return the flow runner object
+     */
+    FlowRunner withJobSink(JobSink jobSink);
+
     /**
      * Sets the status change listener on the flowrunner object
      * @param listener - the listener for when the status changes
@@ -123,4 +192,20 @@ public interface FlowRunner {
      * @return jobticket object for the flow that is run
      */
     JobTicket run();
+
+    /**
+     * Continues a checkpointed job from its last checkpoint, without running the collector again.
+     * The job keeps its id, options, batch size and thread count. If no flow has been set, the
+     * flow the job was started with is loaded.
+     * @param jobId - the id of the job to resume
+     * @return jobticket object for the resumed run
+     */
+    JobTicket resume(String jobId);
+
+    /**
+     * Returns a handle for cancelling a job this flow runner started
+     * @param jobId - the id of the job, as found on its job ticket
+     * @return the job, or null if it is not running
+     */
+    CancellableJob getJob(String jobId);
 }
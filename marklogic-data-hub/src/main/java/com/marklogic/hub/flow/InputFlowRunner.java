@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.JobTicket;
+import com.marklogic.hub.job.JobSink;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads files through an input flow without going through MLCP. Every regular file under the
+ * input path, or every entry of a zip archive, is read on a pool of reader threads and written
+ * through a WriteBatcher with the flow's input transform applied on the server.
+ */
+public interface InputFlowRunner {
+
+    /**
+     * Sets the input flow to run
+     * @param flow the flow object to be used
+     * @return the input flow runner object
+     */
+    InputFlowRunner withFlow(Flow flow);
+
+    /**
+     * Sets where the documents are read from
+     * @param inputPath - a directory, which is walked recursively, or a .zip archive
+     * @return the input flow runner object
+     */
+    InputFlowRunner withInputPath(Path inputPath);
+
+    /**
+     * Sets the prefix of the document uris. Each document's uri is this prefix followed by the
+     * file's path relative to the input path. Defaults to "/".
+     * @param uriPrefix - the uri prefix
+     * @return the input flow runner object
+     */
+    InputFlowRunner withUriPrefix(String uriPrefix);
+
+    /**
+     * Sets the collections the documents are written to, in addition to any the flow adds
+     * @param collections - the collections
+     * @return the input flow runner object
+     */
+    InputFlowRunner withCollections(String... collections);
+
+    /**
+     * Sets the number of documents written per request
+     * @param batchSize - the size of the batch in integer form
+     * @return the input flow runner object
+     */
+    InputFlowRunner withBatchSize(int batchSize);
+
+    /**
+     * Sets the number of threads writing batches to MarkLogic
+     * @param threadCount - the number of writer threads
+     * @return the input flow runner object
+     */
+    InputFlowRunner withThreadCount(int threadCount);
+
+    /**
+     * Sets the number of threads reading files. Defaults to the number of available processors.
+     * @param readerThreadCount - the number of reader threads
+     * @return the input flow runner object
+     */
+    InputFlowRunner withReaderThreadCount(int readerThreadCount);
+
+    /**
+     * Sets the client the documents are written through. Defaults to the staging client.
+     * @param destinationClient - the client that will be used
+     * @return the input flow runner object
+     */
+    InputFlowRunner withDestinationClient(DatabaseClient destinationClient);
+
+    /**
+     * Sets the options to be passed into the xqy or sjs flow in the $options or options variables of main.
+     * @param options - the object map of options as string/object pair
+     * @return the input flow runner object
+     */
+    InputFlowRunner withOptions(Map<String, Object> options);
+
+    /**
+     * Sets where the job document is written. Defaults to the job database.
+     * @param jobSink - the sink for job documents
+     * @return the input flow runner object
+     */
+    InputFlowRunner withJobSink(JobSink jobSink);
+
+    /**
+     * Sets the status change listener on the input flow runner
+     * @param listener - the listener for when the status changes
+     * @return the input flow runner object
+     */
+    InputFlowRunner onStatusChanged(FlowStatusListener listener);
+
+    /**
+     * Sets the finished listener, called once every document has been written or has failed
+     * @param listener - the listener for when the flow finishes
+     * @return the input flow runner object
+     */
+    InputFlowRunner onFinished(FlowFinishedListener listener);
+
+    /**
+     * Blocks until the job is complete.
+     */
+    void awaitCompletion();
+
+    /**
+     * Blocks until the job is complete.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Starts loading the documents and creates the job
+     * @return jobticket object for the write job
+     */
+    JobTicket run();
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow;
+
+/**
+ * How the items of a harmonize job are traced
+ */
+public enum TraceMode {
+    /** every item gets a trace */
+    FULL("full"),
+    /** only items that fail get a trace */
+    ERRORS("errors"),
+    /** one in every N items gets a trace, as well as every item that fails */
+    SAMPLED("sampled");
+
+    private String type;
+    TraceMode(String type) {
+        this.type = type;
+    }
+
+    public static TraceMode getTraceMode(String mode) {
+        for (TraceMode traceMode : TraceMode.values()) {
+            if (traceMode.toString().equals(mode)) {
+                return traceMode;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return this.type;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.marklogic.hub.flow.AutoTuning;
+import com.marklogic.hub.flow.RunFlowResponse;
+import com.marklogic.hub.job.TuningDecision;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Adjusts the batch size and the number of in-flight batches of a harmonize job
+ * using additive increase / multiplicative decrease.
+ *
+ * The QueryBatcher runs with the maximum batch size and thread count. Each batch
+ * it hands out is split into requests of the current batch size, and a permit
+ * limits how many requests are in flight at once. After every window of requests
+ * the tuner looks at latency, the share of items that failed and throughput and
+ * either grows both settings by a step or halves them. An item fails when the flow
+ * reports an error for it or when its whole request fails.
+ */
+public class AutoTuner {
+
+    private final AutoTuning tuning;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitAvailable = lock.newCondition();
+
+    // guarded by lock
+    private int batchSize;
+    private int threadCount;
+    private int inFlight = 0;
+    private int windowRequests = 0;
+    private long windowItems = 0;
+    private long windowFailedItems = 0;
+    private long windowLatencyNanos = 0;
+    private long windowStartNanos = System.nanoTime();
+    private double previousDocsPerSecond = 0;
+    private final List<TuningDecision> decisions = new ArrayList<>();
+
+    public AutoTuner(AutoTuning tuning, int initialBatchSize, int initialThreadCount) {
+        this.tuning = tuning;
+        this.batchSize = clamp(initialBatchSize, tuning.getMinBatchSize(), tuning.getMaxBatchSize());
+        this.threadCount = clamp(initialThreadCount, 1, tuning.getMaxThreadCount());
+        decisions.add(new TuningDecision(batchSize, threadCount, 0, 0, 0, "initial"));
+    }
+
+    public int getBatchSize() {
+        lock.lock();
+        try {
+            return batchSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getThreadCount() {
+        lock.lock();
+        try {
+            return threadCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the tuning decisions made so far, oldest first
+     * @return a copy of the decisions
+     */
+    public List<TuningDecision> getDecisions() {
+        lock.lock();
+        try {
+            return new ArrayList<>(decisions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Splits the items of a batcher batch into requests of the current batch size
+     * @param items - the items handed out by the batcher
+     * @return the items grouped per request
+     */
+    public List<String[]> split(String[] items) {
+        int size = getBatchSize();
+        List<String[]> requests = new ArrayList<>();
+        for (int start = 0; start < items.length; start += size) {
+            requests.add(size >= items.length ? items : Arrays.copyOfRange(items, start, Math.min(items.length, start + size)));
+        }
+        return requests;
+    }
+
+    /**
+     * Runs one request once a permit is available and records its outcome
+     * @param itemCount - the number of items in the request
+     * @param request - the request to run
+     * @return the response of the request
+     */
+    public RunFlowResponse run(int itemCount, Supplier<RunFlowResponse> request) {
+        acquire();
+        long start = System.nanoTime();
+        long totalCount = itemCount;
+        long errorCount = itemCount;
+        try {
+            RunFlowResponse response = request.get();
+            if (response.totalCount > 0) {
+                totalCount = response.totalCount;
+            }
+            errorCount = Math.min(response.errorCount, totalCount);
+            return response;
+        } finally {
+            release(totalCount, errorCount, System.nanoTime() - start);
+        }
+    }
+
+    private void acquire() {
+        lock.lock();
+        try {
+            while (inFlight >= threadCount) {
+                permitAvailable.awaitUninterruptibly();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long totalCount, long errorCount, long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            windowRequests++;
+            windowLatencyNanos += latencyNanos;
+            windowItems += totalCount;
+            windowFailedItems += errorCount;
+            if (windowRequests >= tuning.getWindowSize()) {
+                adjust();
+            }
+            permitAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private void adjust() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - windowStartNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        double docsPerSecond = (windowItems - windowFailedItems) / seconds;
+        long averageLatencyMillis = TimeUnit.NANOSECONDS.toMillis(windowLatencyNanos / windowRequests);
+        double errorRate = windowItems > 0 ? windowFailedItems / (double) windowItems : 0;
+
+        int newBatchSize = batchSize;
+        int newThreadCount = threadCount;
+        String reason;
+        if (errorRate > tuning.getMaxErrorRate() || averageLatencyMillis > tuning.getTargetLatencyMillis()) {
+            newBatchSize = clamp(batchSize / 2, tuning.getMinBatchSize(), tuning.getMaxBatchSize());
+            newThreadCount = clamp(threadCount / 2, 1, tuning.getMaxThreadCount());
+            reason = errorRate > tuning.getMaxErrorRate() ? "error rate above maximum" : "latency above target";
+        }
+        else if (docsPerSecond < previousDocsPerSecond * 0.9) {
+            // the last increase made things worse, so step back instead of growing further
+            newBatchSize = clamp(batchSize - tuning.getBatchSizeIncrement(), tuning.getMinBatchSize(), tuning.getMaxBatchSize());
+            newThreadCount = clamp(threadCount - 1, 1, tuning.getMaxThreadCount());
+            reason = "throughput dropped";
+        }
+        else {
+            newBatchSize = clamp(batchSize + tuning.getBatchSizeIncrement(), tuning.getMinBatchSize(), tuning.getMaxBatchSize());
+            newThreadCount = clamp(threadCount + 1, 1, tuning.getMaxThreadCount());
+            reason = "within target";
+        }
+
+        if (newBatchSize != batchSize || newThreadCount != threadCount) {
+            batchSize = newBatchSize;
+            threadCount = newThreadCount;
+            decisions.add(new TuningDecision(batchSize, threadCount, docsPerSecond, averageLatencyMillis, errorRate, reason));
+        }
+
+        previousDocsPerSecond = docsPerSecond;
+        windowRequests = 0;
+        windowItems = 0;
+        windowFailedItems = 0;
+        windowLatencyNanos = 0;
+        windowStartNanos = now;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -47,6 +47,7 @@ public class FlowImpl implements Flow {
     private DataFormat dataFormat;
     private CodeFormat codeFormat;
     private Collector collector;
+    private String collectorQuery;
     private MainPlugin main;
     private String mappingName;
 
@@ -122,6 +123,16 @@ public class FlowImpl implements Flow {
         this.collector = collector;
     }
 
+    @Override
+    public String getCollectorQuery() {
+        return collectorQuery;
+    }
+
+    @Override
+    public void setCollectorQuery(String collectorQuery) {
+        this.collectorQuery = collectorQuery;
+    }
+
     @Override
     public MainPlugin getMain() {
         return main;
@@ -183,6 +194,15 @@ public class FlowImpl implements Flow {
                 serializer.writeStartElement("collector");
                 serializer.writeAttribute("code-format", collector.getCodeFormat().toString());
                 serializer.writeAttribute("module", flowDir + collector.getModule());
+                if (collector.isPartitioned()) {
+                    serializer.writeAttribute("partitioned", "true");
+                }
+                serializer.writeEndElement();
+            }
+
+            if (this.type == FlowType.HARMONIZE && this.collectorQuery != null) {
+                serializer.writeStartElement("collector-query");
+                serializer.writeCharacters(this.collectorQuery);
                 serializer.writeEndElement();
             }
 
@@ -226,6 +246,12 @@ public class FlowImpl implements Flow {
         if (this.collector != null) {
             flowProperties.setProperty("collectorCodeFormat", collector.getCodeFormat().toString());
             flowProperties.setProperty("collectorModule", collector.getModule());
+            if (collector.isPartitioned()) {
+                flowProperties.setProperty("collectorPartitioned", "true");
+            }
+        }
+        if (collectorQuery != null) {
+            flowProperties.setProperty("collectorQuery", collectorQuery);
         }
 
         if (this.main != null) {
@@ -295,12 +321,17 @@ public class FlowImpl implements Flow {
                     flowBuilder.withEntityName(node.getTextContent());
                     break;
                 case "collector":
+                    Node partitioned = node.getAttributes().getNamedItem("partitioned");
                     Collector collector = new CollectorImpl(
                         node.getAttributes().getNamedItem("module").getNodeValue(),
-                        CodeFormat.getCodeFormat(node.getAttributes().getNamedItem("code-format").getNodeValue())
+                        CodeFormat.getCodeFormat(node.getAttributes().getNamedItem("code-format").getNodeValue()),
+                        partitioned != null && Boolean.parseBoolean(partitioned.getNodeValue())
                     );
                     flowBuilder.withCollector(collector);
                     break;
+                case "collector-query":
+                    flowBuilder.withCollectorQuery(node.getTextContent());
+                    break;
                 case "main":
                     MainPlugin main = new MainPluginImpl(
                         node.getAttributes().getNamedItem("module").getNodeValue(),
@@ -15,31 +15,47 @@
  */
 package com.marklogic.hub.flow.impl;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.DatabaseClientFactory;
 import com.marklogic.client.datamovement.*;
 import com.marklogic.client.datamovement.impl.JobTicketImpl;
 import com.marklogic.client.extensions.ResourceManager;
 import com.marklogic.client.extensions.ResourceServices;
 import com.marklogic.client.io.Format;
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.io.SearchHandle;
 import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.query.QueryManager;
+import com.marklogic.client.query.RawCombinedQueryDefinition;
 import com.marklogic.client.util.RequestParameters;
 import com.marklogic.hub.DatabaseKind;
+import com.marklogic.hub.FlowManager;
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.collector.Collector;
 import com.marklogic.hub.collector.DiskQueue;
+import com.marklogic.hub.collector.StreamingDiskQueue;
 import com.marklogic.hub.flow.*;
 import com.marklogic.hub.job.Job;
 import com.marklogic.hub.job.JobManager;
+import com.marklogic.hub.job.JobSink;
 import com.marklogic.hub.job.JobStatus;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -48,14 +64,31 @@ public class FlowRunnerImpl implements FlowRunner {
     private static final int DEFAULT_BATCH_SIZE = 100;
     private static final int DEFAULT_THREAD_COUNT = 4;
     private static final int MAX_ERROR_MESSAGES = 10;
+    private static final int STREAMING_STATUS_INTERVAL = 10;
+    private static final int MAX_IN_MEMORY_URIS = 5000;
+    private static final int DEFAULT_TRACE_SAMPLE_RATE = 100;
+
+    // ObjectReader and ObjectWriter are immutable, so every batcher thread can share them
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectWriter JSON_WRITER = OBJECT_MAPPER.writer();
+    private static final ObjectReader RESPONSE_READER = OBJECT_MAPPER.readerFor(RunFlowResponse.class);
     private Flow flow;
     private int batchSize = DEFAULT_BATCH_SIZE;
     private int threadCount = DEFAULT_THREAD_COUNT;
     private DatabaseClient stagingClient;
     private String destinationDatabase;
     private Map<String, Object> options;
-    private int previousPercentComplete;
+    private JobSink jobSink;
+    // batcher threads race to report progress, so only the one that moves this on sends the update
+    private final AtomicInteger previousPercentComplete = new AtomicInteger();
     private boolean stopOnFailure = false;
+    private boolean streaming = false;
+    private AutoTuning autoTuning;
+    private boolean checkpointing = false;
+    private TraceMode traceMode;
+    private int traceSampleRate = DEFAULT_TRACE_SAMPLE_RATE;
+    private boolean bulkHarmonize = false;
+    private boolean forestAffinity = false;
 
     private List<FlowItemCompleteListener> flowItemCompleteListeners = new ArrayList<>();
     private List<FlowItemFailureListener> flowItemFailureListeners = new ArrayList<>();
@@ -64,6 +97,7 @@ public class FlowRunnerImpl implements FlowRunner {
 
     private HubConfig hubConfig;
     private Thread runningThread = null;
+    private final Map<String, HarmonizeJob> runningJobs = new ConcurrentHashMap<>();
 
     public FlowRunnerImpl(HubConfig hubConfig) {
         this.hubConfig = hubConfig;
@@ -107,6 +141,48 @@ public class FlowRunnerImpl implements FlowRunner {
         return this;
     }
 
+    @Override
+    public FlowRunner withStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    @Override
+    public FlowRunner withAutoTuning(AutoTuning autoTuning) {
+        this.autoTuning = autoTuning;
+        return this;
+    }
+
+    @Override
+    public FlowRunner withCheckpointing(boolean checkpointing) {
+        this.checkpointing = checkpointing;
+        return this;
+    }
+
+    @Override
+    public FlowRunner withTraceMode(TraceMode traceMode) {
+        this.traceMode = traceMode;
+        return this;
+    }
+
+    @Override
+    public FlowRunner withTraceSampleRate(int traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+        return this;
+    }
+
+    @Override
+    public FlowRunner withBulkHarmonize(boolean bulkHarmonize) {
+        this.bulkHarmonize = bulkHarmonize;
+        return this;
+    }
+
+    @Override
+    public FlowRunner withForestAffinity(boolean forestAffinity) {
+        this.forestAffinity = forestAffinity;
+        return this;
+    }
+
     @Override
     public FlowRunner withOptions(Map<String, Object> options) {
         this.options = options;
@@ -125,6 +201,12 @@ public class FlowRunnerImpl implements FlowRunner {
         return this;
     }
 
+    @Override
+    public FlowRunner withJobSink(JobSink jobSink) {
+        this.jobSink = jobSink;
+        return this;
+    }
+
     @Override
     public FlowRunner onStatusChanged(FlowStatusListener listener) {
         this.flowStatusListeners.add(listener);
@@ -152,10 +234,22 @@ public class FlowRunnerImpl implements FlowRunner {
         }
     }
 
+    @Override
+    public CancellableJob getJob(String jobId) {
+        return runningJobs.get(jobId);
+    }
+
     @Override
     public JobTicket run() {
+        if (flow.getCollectorQuery() != null && (streaming || checkpointing)) {
+            throw new IllegalStateException("Flow " + flow.getEntityName() + ":" + flow.getName() +
+                " harmonizes from a collector query, which cannot be streamed or checkpointed");
+        }
         String jobId = UUID.randomUUID().toString();
-        JobManager jobManager = JobManager.create(hubConfig.newJobDbClient());
+        // registered up front so the job can be canceled while the collector runs
+        HarmonizeJob handle = new HarmonizeJob(jobId);
+        runningJobs.put(jobId, handle);
+        JobManager jobManager = JobManager.create(hubConfig.newJobDbClient(), jobSink);
 
         Job job = Job.withFlow(flow)
             .withJobId(jobId);
@@ -165,11 +259,6 @@ public class FlowRunnerImpl implements FlowRunner {
         c.setHubConfig(hubConfig);
         c.setClient(stagingClient);
 
-        AtomicLong successfulEvents = new AtomicLong(0);
-        AtomicLong failedEvents = new AtomicLong(0);
-        AtomicLong successfulBatches = new AtomicLong(0);
-        AtomicLong failedBatches = new AtomicLong(0);
-
         if (options == null) {
             options = new HashMap<>();
         }
@@ -177,110 +266,340 @@ public class FlowRunnerImpl implements FlowRunner {
         options.put("flow", this.flow.getName());
         options.put("flowType", this.flow.getType().toString());
 
+        if (flow.getCollectorQuery() != null) {
+            // the batcher reads the uris from every forest itself, so there is no collector or disk queue
+            // to stream from or checkpoint
+            RawCombinedQueryDefinition query = newCollectorQuery(flow.getCollectorQuery());
+            flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                listener.onStatusChange(jobId, 0, "starting harmonization");
+            });
+            return harmonize(jobId, job, jobManager, null, query, null, estimate(query), null);
+        }
+
         flowStatusListeners.forEach((FlowStatusListener listener) -> {
             listener.onStatusChange(jobId, 0, "running collector");
         });
 
-        jobManager.saveJob(job.withStatus(JobStatus.RUNNING_COLLECTOR));
-        final DiskQueue<String> uris;
-        try {
-            uris = c.run(jobId, this.flow.getEntityName(), this.flow.getName(), threadCount, options);
+        jobManager.updateJob(job.withStatus(JobStatus.RUNNING_COLLECTOR));
+        Iterator<String> uriIterator;
+        final StreamingDiskQueue streamingUris;
+        final long collectedCount;
+        if (streaming) {
+            // the collector keeps filling the queue on its own thread while the batcher drains it
+            streamingUris = new StreamingDiskQueue(MAX_IN_MEMORY_URIS);
+            Thread collectorThread = new Thread(() -> {
+                try {
+                    c.run(jobId, this.flow.getEntityName(), this.flow.getName(), threadCount, options, streamingUris);
+                }
+                catch(Exception e) {
+                    // the failure is recorded on the queue and reported when the job finishes
+                }
+            }, "collector-" + jobId);
+            collectorThread.setDaemon(true);
+            handle.collecting(streamingUris);
+            collectorThread.start();
+            uriIterator = streamingUris.iterator();
+            collectedCount = -1;
         }
-        catch(Exception e) {
-            job.setCounts(0, 0, 0, 0)
-                .withStatus(JobStatus.FAILED)
-                .withEndTime(new Date());
-
-            StringWriter errors = new StringWriter();
-            e.printStackTrace(new PrintWriter(errors));
-            job.withJobOutput(errors.toString());
-            jobManager.saveJob(job);
-            return new JobTicketImpl(jobId, JobTicket.JobType.QUERY_BATCHER);
+        else {
+            final DiskQueue<String> uris;
+            try {
+                uris = c.run(jobId, this.flow.getEntityName(), this.flow.getName(), threadCount, options);
+            }
+            catch(Exception e) {
+                job.setCounts(0, 0, 0, 0)
+                    .withStatus(JobStatus.FAILED)
+                    .withEndTime(new Date());
+
+                job.withJobOutput(stackTraceToString(e));
+                jobManager.saveJob(job);
+                runningJobs.remove(jobId);
+                handle.done = true;
+                return new JobTicketImpl(jobId, JobTicket.JobType.QUERY_BATCHER);
+            }
+            streamingUris = null;
+            uriIterator = uris.iterator();
+            collectedCount = uris.size();
+        }
+
+        JobCheckpoint checkpoint = null;
+        if (checkpointing) {
+            checkpoint = JobCheckpoint.create(getCheckpointDir(), newCheckpointState(job));
+            if (streamingUris != null) {
+                uriIterator = checkpoint.track(uriIterator);
+            }
+            else {
+                // the disk queue is thrown away with the process, so keep a copy that outlives it
+                uriIterator.forEachRemaining(checkpoint::recordUri);
+                checkpoint.markCollected();
+                uriIterator = checkpoint.remaining();
+            }
         }
 
         flowStatusListeners.forEach((FlowStatusListener listener) -> {
             listener.onStatusChange(jobId, 0, "starting harmonization");
         });
 
-        Vector<String> errorMessages = new Vector<>();
+        return harmonize(jobId, job, jobManager, uriIterator, null, streamingUris, collectedCount, checkpoint);
+    }
 
-        DataMovementManager dataMovementManager = stagingClient.newDataMovementManager();
+    @Override
+    public JobTicket resume(String jobId) {
+        JobCheckpoint checkpoint = JobCheckpoint.open(getCheckpointDir(), jobId);
+        JobCheckpoint.State state = checkpoint.getState();
+        if (!state.collected) {
+            throw new IllegalStateException("The collector for job " + jobId + " did not finish, so the job cannot be resumed");
+        }
 
-        double batchCount = Math.ceil((double)uris.size() / (double)batchSize);
+        if (flow == null) {
+            flow = FlowManager.create(hubConfig).getFlow(state.entityName, state.flowName, FlowType.getFlowType(state.flowType));
+            if (flow == null) {
+                throw new IllegalStateException("Flow " + state.entityName + ":" + state.flowName + " for job " + jobId + " no longer exists");
+            }
+        }
+        else if (!flow.getEntityName().equals(state.entityName) || !flow.getName().equals(state.flowName) ||
+            !flow.getType().toString().equals(state.flowType)) {
+            throw new IllegalStateException("Job " + jobId + " ran flow " + state.entityName + ":" + state.flowName +
+                ", not " + flow.getEntityName() + ":" + flow.getName());
+        }
+        batchSize = state.batchSize;
+        threadCount = state.threadCount;
+        destinationDatabase = state.destinationDatabase;
+        stopOnFailure = state.stopOnFailure;
+        options = state.options;
+        traceMode = TraceMode.getTraceMode(state.traceMode);
+        traceSampleRate = state.traceSampleRate;
+        bulkHarmonize = state.bulkHarmonize;
+        forestAffinity = state.forestAffinity;
+        autoTuning = state.autoTuning != null ? state.autoTuning.toAutoTuning() : null;
+
+        JobManager jobManager = JobManager.create(hubConfig.newJobDbClient(), jobSink);
+        Job job = Job.withFlow(flow)
+            .withJobId(jobId);
+        if (state.startTime != null) {
+            // the resumed job replaces the stopped one's document, which started when it did
+            job.withStartTime(state.startTime);
+        }
 
-        HashMap<String, JobTicket> ticketWrapper = new HashMap<>();
+        String message = String.format("resuming after %d of %d uris", state.completedThrough, state.uriCount);
+        flowStatusListeners.forEach((FlowStatusListener listener) -> {
+            listener.onStatusChange(jobId, 0, message);
+        });
 
-        ConcurrentHashMap<DatabaseClient, FlowResource> databaseClientMap = new ConcurrentHashMap<>();
+        return harmonize(jobId, job, jobManager, checkpoint.remaining(), null, null, state.uriCount, checkpoint);
+    }
 
-        QueryBatcher queryBatcher = dataMovementManager.newQueryBatcher(uris.iterator())
-            .withBatchSize(batchSize)
-            .withThreadCount(threadCount)
-            .withJobId(jobId)
-            .onUrisReady((QueryBatch batch) -> {
-                try {
-                    FlowResource flowResource;
+    private RawCombinedQueryDefinition newCollectorQuery(String collectorQuery) {
+        Format format = collectorQuery.trim().startsWith("<") ? Format.XML : Format.JSON;
+        return stagingClient.newQueryManager()
+            .newRawCombinedQueryDefinition(new StringHandle(collectorQuery).withFormat(format));
+    }
 
-                    if (databaseClientMap.containsKey(batch.getClient())){
-                        flowResource = databaseClientMap.get(batch.getClient());
-                    }
-                    else {
-                        flowResource = new FlowResource(batch.getClient(), destinationDatabase, flow);
-                        databaseClientMap.put(batch.getClient(), flowResource);
-                    }
+    // only used for progress; the job's counts come from the uris the batcher actually hands out
+    private long estimate(RawCombinedQueryDefinition query) {
+        QueryManager queryManager = stagingClient.newQueryManager();
+        queryManager.setPageLength(0);
+        return Math.max(1, queryManager.search(query, new SearchHandle()).getTotalResults());
+    }
 
-                    RunFlowResponse response = flowResource.run(jobId, batch.getItems(), options);
-                    failedEvents.addAndGet(response.errorCount);
-                    successfulEvents.addAndGet(response.totalCount - response.errorCount);
-                    if (response.errors != null) {
-                        if (errorMessages.size() < MAX_ERROR_MESSAGES) {
-                            errorMessages.addAll(response.errors.stream().map(jsonNode -> jsonToString(jsonNode)).collect(Collectors.toList()));
-                        }
-                    }
+    private JobTicket harmonize(String jobId, Job job, JobManager jobManager, Iterator<String> uriIterator,
+                                RawCombinedQueryDefinition query, StreamingDiskQueue streamingUris,
+                                long collectedCount, JobCheckpoint checkpoint) {
+        JobCheckpoint.State resumedFrom = checkpoint != null ? checkpoint.getState() : new JobCheckpoint.State();
+        AtomicLong successfulEvents = new AtomicLong(resumedFrom.successfulEvents);
+        AtomicLong failedEvents = new AtomicLong(resumedFrom.failedEvents);
+        AtomicLong successfulBatches = new AtomicLong(resumedFrom.successfulBatches);
+        AtomicLong failedBatches = new AtomicLong(resumedFrom.failedBatches);
+        long resumedEvents = resumedFrom.successfulEvents + resumedFrom.failedEvents;
+        long harmonizeStart = System.currentTimeMillis();
 
-                    if (response.errorCount < response.totalCount) {
-                        successfulBatches.addAndGet(1);
-                    }
-                    else {
-                        failedBatches.addAndGet(1);
-                    }
+        DataMovementManager dataMovementManager = stagingClient.newDataMovementManager();
+        int batcherBatchSize = autoTuning != null ? autoTuning.getMaxBatchSize() : batchSize;
+
+        // batches are sent to the host that holds their documents instead of wherever the batcher sends them
+        ForestAffinity affinity = null;
+        Iterator<String> groupedUris = uriIterator;
+        if (forestAffinity && uriIterator != null && !hubConfig.getIsHostLoadBalancer()) {
+            affinity = new ForestAffinity(stagingClient, dataMovementManager.readForestConfig().listForests(), batcherBatchSize);
+            groupedUris = affinity.group(uriIterator);
+        }
+        final ForestAffinity batchAffinity = affinity;
+        final Iterator<String> sourceUris = groupedUris;
+        ConcurrentHashMap<String, DatabaseClient> hostClients = new ConcurrentHashMap<>();
+
+        HarmonizeJob handle = runningJobs.computeIfAbsent(jobId, HarmonizeJob::new);
+        // once canceled the batcher runs out of uris, so it finishes the batches in flight and stops
+        Iterator<String> batcherUris = new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return !handle.canceled && sourceUris.hasNext();
+            }
 
-                    int percentComplete = (int) (((double)successfulBatches.get() / batchCount) * 100.0);
+            @Override
+            public String next() {
+                return sourceUris.next();
+            }
+        };
 
-                    if (percentComplete != previousPercentComplete && (percentComplete % 5 == 0)) {
-                        previousPercentComplete = percentComplete;
-                        flowStatusListeners.forEach((FlowStatusListener listener) -> {
-                            listener.onStatusChange(jobId, percentComplete, "");
-                        });
-                    }
+        // the options are the same for every batch, so only serialize them once per job
+        final String serializedOptions;
+        try {
+            serializedOptions = JSON_WRITER.writeValueAsString(options);
+        }
+        catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
 
-                    if (flowItemCompleteListeners.size() > 0) {
-                        response.completedItems.forEach((String item) -> {
-                            flowItemCompleteListeners.forEach((FlowItemCompleteListener listener) -> {
-                                listener.processCompletion(jobId, item);
-                            });
-                        });
-                    }
+        Vector<String> errorMessages = new Vector<>();
 
-                    if (flowItemFailureListeners.size() > 0) {
-                        response.failedItems.forEach((String item) -> {
-                            flowItemFailureListeners.forEach((FlowItemFailureListener listener) -> {
-                                listener.processFailure(jobId, item);
-                            });
-                        });
+        HashMap<String, JobTicket> ticketWrapper = new HashMap<>();
+
+        // one resource per host client, shared by every batch the batcher sends to that host
+        ConcurrentHashMap<DatabaseClient, FlowResource> flowResources = new ConcurrentHashMap<>();
+
+        // when tuning, the batcher hands out the largest batches and most threads allowed
+        // and the tuner decides how they are split into requests and how many run at once
+        final AutoTuner autoTuner = autoTuning != null ? new AutoTuner(autoTuning, batchSize, threadCount) : null;
+
+        AtomicLong queriedUris = new AtomicLong(0);
+        // a query is paged through while the flow writes, so read every page at the timestamp of the first one
+        QueryBatcher queryBatcher = (query != null ? dataMovementManager.newQueryBatcher(query).withConsistentSnapshot() : dataMovementManager.newQueryBatcher(batcherUris))
+            .withBatchSize(batcherBatchSize)
+            .withThreadCount(autoTuning != null ? autoTuning.getMaxThreadCount() : threadCount)
+            .withJobId(jobId)
+            .onUrisReady((QueryBatch batch) -> {
+                queriedUris.addAndGet(batch.getItems().length);
+                // batches still queued when the job is canceled are dropped; a checkpoint keeps them for a resume
+                if (!handle.batchStarted()) {
+                    return;
+                }
+                try {
+                    DatabaseClient batchClient = batch.getClient();
+                    String host = batchAffinity != null ? batchAffinity.getHost(batch.getItems()) : null;
+                    if (host != null) {
+                        batchClient = hostClients.computeIfAbsent(host, name -> DatabaseClientFactory.newClient(name,
+                            stagingClient.getPort(), stagingClient.getDatabase(), stagingClient.getSecurityContext()));
                     }
+                    final DatabaseClient hostClient = batchClient;
+                    List<String[]> requests = autoTuner != null ? autoTuner.split(batch.getItems()) : Collections.singletonList(batch.getItems());
+                    for (String[] items : requests) {
+                        boolean checkpointed = false;
+                        try {
+                            FlowResource flowResource = flowResources.computeIfAbsent(hostClient,
+                                client -> new FlowResource(client, destinationDatabase, flow, traceMode, traceSampleRate, bulkHarmonize));
+
+                            RunFlowResponse response;
+                            if (autoTuner != null) {
+                                response = autoTuner.run(items.length, () -> flowResource.run(jobId, items, serializedOptions));
+                            }
+                            else {
+                                response = flowResource.run(jobId, items, serializedOptions);
+                            }
+                            failedEvents.addAndGet(response.errorCount);
+                            successfulEvents.addAndGet(response.totalCount - response.errorCount);
+                            if (response.errors != null) {
+                                if (errorMessages.size() < MAX_ERROR_MESSAGES) {
+                                    errorMessages.addAll(response.errors.stream().map(jsonNode -> jsonToString(jsonNode)).collect(Collectors.toList()));
+                                }
+                            }
+
+                            boolean batchSucceeded = response.errorCount < response.totalCount;
+                            if (batchSucceeded) {
+                                successfulBatches.addAndGet(1);
+                            }
+                            else {
+                                failedBatches.addAndGet(1);
+                            }
+
+                            if (checkpoint != null) {
+                                checkpoint.complete(items, response.totalCount - response.errorCount, response.errorCount,
+                                    batchSucceeded ? 1 : 0, batchSucceeded ? 0 : 1);
+                                checkpointed = true;
+                                checkpoint.saveIfDue();
+                            }
+
+                            long totalCount = collectedCount;
+                            if (streamingUris != null && streamingUris.isClosed()) {
+                                totalCount = streamingUris.getAddedCount();
+                            }
+
+                            if (totalCount >= 0) {
+                                int percentComplete;
+                                if (autoTuner != null) {
+                                    // batch sizes vary while tuning, so measure progress in items
+                                    percentComplete = (int) (((double)(successfulEvents.get() + failedEvents.get()) / (double)totalCount) * 100.0);
+                                }
+                                else {
+                                    double batchCount = Math.ceil((double)totalCount / (double)batchSize);
+                                    percentComplete = (int) (((double)successfulBatches.get() / batchCount) * 100.0);
+                                }
+
+                                synchronized (job) {
+                                    job.withPercentComplete(percentComplete);
+                                }
+                                int previous = previousPercentComplete.get();
+                                if (percentComplete > previous && (percentComplete % 5 == 0) &&
+                                    previousPercentComplete.compareAndSet(previous, percentComplete)) {
+                                    flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                                        listener.onStatusChange(jobId, percentComplete, "");
+                                    });
+                                }
+                            }
+                            else if (successfulBatches.get() % STREAMING_STATUS_INTERVAL == 0) {
+                                // the total isn't known until the collector finishes, so report counts instead of a percentage
+                                String message = String.format("processed %d of %d collected uris (collector running)",
+                                    successfulEvents.get() + failedEvents.get(), streamingUris.getAddedCount());
+                                flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                                    listener.onStatusChange(jobId, previousPercentComplete.get(), message);
+                                });
+                            }
+
+                            // the job manager coalesces these, so the job document is only written every few seconds
+                            long elapsed = Math.max(1, System.currentTimeMillis() - harmonizeStart);
+                            synchronized (job) {
+                                job.setCounts(successfulEvents.get(), failedEvents.get(), successfulBatches.get(), failedBatches.get())
+                                    .withDocsPerSecond((successfulEvents.get() + failedEvents.get() - resumedEvents) * 1000.0 / elapsed);
+                            }
+                            jobManager.updateJob(job);
+
+                            if (flowItemCompleteListeners.size() > 0) {
+                                response.completedItems.forEach((String item) -> {
+                                    flowItemCompleteListeners.forEach((FlowItemCompleteListener listener) -> {
+                                        listener.processCompletion(jobId, item);
+                                    });
+                                });
+                            }
+
+                            if (flowItemFailureListeners.size() > 0) {
+                                response.failedItems.forEach((String item) -> {
+                                    flowItemFailureListeners.forEach((FlowItemFailureListener listener) -> {
+                                        listener.processFailure(jobId, item);
+                                    });
+                                });
+                            }
+
+                            if (stopOnFailure && response.errorCount > 0) {
+                                JobTicket jobTicket = ticketWrapper.get("jobTicket");
+                                if (jobTicket != null) {
+                                    dataMovementManager.stopJob(jobTicket);
+                                }
+                            }
 
-                    if (stopOnFailure && response.errorCount > 0) {
-                        JobTicket jobTicket = ticketWrapper.get("jobTicket");
-                        if (jobTicket != null) {
-                            dataMovementManager.stopJob(jobTicket);
+                        }
+                        catch(Exception e) {
+                            if (errorMessages.size() < MAX_ERROR_MESSAGES) {
+                                errorMessages.add(e.toString());
+                            }
+                            if (checkpoint != null && !checkpointed) {
+                                // otherwise the offsets stay in flight and the low water mark never moves past them
+                                checkpoint.complete(items, 0, items.length, 0, 1);
+                                checkpoint.saveIfDue();
+                            }
                         }
                     }
-
                 }
-                catch(Exception e) {
-                    if (errorMessages.size() < MAX_ERROR_MESSAGES) {
-                        errorMessages.add(e.toString());
-                    }
+                finally {
+                    handle.batchFinished();
                 }
             })
             .onQueryFailure((QueryBatchException failure) -> {
@@ -291,13 +610,29 @@ public class FlowRunnerImpl implements FlowRunner {
 
         JobTicket jobTicket = dataMovementManager.startJob(queryBatcher);
         ticketWrapper.put("jobTicket", jobTicket);
-        jobManager.saveJob(job.withStatus(JobStatus.RUNNING_HARMONIZE));
-
-        int uriCount = uris.size();
+        handle.started(dataMovementManager, queryBatcher, query != null);
+        jobManager.updateJob(job.withStatus(JobStatus.RUNNING_HARMONIZE));
 
         runningThread = new Thread(() -> {
             queryBatcher.awaitCompletion();
 
+            if (checkpoint != null && streamingUris != null && !handle.canceled) {
+                // log whatever the batcher never took, waiting for the collector if it is still running,
+                // so a stopped job can be resumed without collecting again. A canceled job stopped its
+                // collector, so its checkpoint stays uncollected and is not resumable
+                uriIterator.forEachRemaining(uri -> {});
+                if (streamingUris.getFailure() == null) {
+                    checkpoint.markCollected();
+                }
+            }
+
+            long uriCount = query != null ? queriedUris.get() : collectedCount;
+            Throwable collectorFailure = null;
+            if (streamingUris != null) {
+                uriCount = streamingUris.getAddedCount();
+                collectorFailure = streamingUris.getFailure();
+            }
+
             flowStatusListeners.forEach((FlowStatusListener listener) -> {
                 listener.onStatusChange(jobId, 100, "");
             });
@@ -305,9 +640,17 @@ public class FlowRunnerImpl implements FlowRunner {
             flowFinishedListeners.forEach((FlowFinishedListener::onFlowFinished));
 
             dataMovementManager.stopJob(queryBatcher);
+            hostClients.values().forEach(DatabaseClient::release);
 
             JobStatus status;
-            if (failedEvents.get() > 0 && stopOnFailure) {
+            if (handle.canceled) {
+                status = JobStatus.CANCELED;
+            }
+            else if (collectorFailure != null) {
+                status = JobStatus.FAILED;
+                errorMessages.add(0, stackTraceToString(collectorFailure));
+            }
+            else if (failedEvents.get() > 0 && stopOnFailure) {
                 status = JobStatus.STOP_ON_ERROR;
             }
             else if (failedEvents.get() + successfulEvents.get() != uriCount) {
@@ -324,70 +667,226 @@ public class FlowRunnerImpl implements FlowRunner {
             }
 
             // store the thing in MarkLogic
-            job.setCounts(successfulEvents.get(), failedEvents.get(), successfulBatches.get(), failedBatches.get())
-                .withStatus(status)
-                .withEndTime(new Date());
+            synchronized (job) {
+                job.setCounts(successfulEvents.get(), failedEvents.get(), successfulBatches.get(), failedBatches.get())
+                    .withStatus(status)
+                    .withEndTime(new Date());
 
-            if (errorMessages.size() > 0) {
-                job.withJobOutput(errorMessages);
+                if (errorMessages.size() > 0) {
+                    job.withJobOutput(errorMessages);
+                }
+                if (autoTuner != null) {
+                    job.withTuningDecisions(autoTuner.getDecisions());
+                }
             }
             jobManager.saveJob(job);
+
+            if (checkpoint != null) {
+                if (status == JobStatus.FINISHED || status == JobStatus.FINISHED_WITH_ERRORS) {
+                    checkpoint.delete();
+                }
+                else {
+                    checkpoint.save();
+                }
+            }
+
+            runningJobs.remove(jobId);
+            handle.done = true;
         });
         runningThread.start();
 
         return jobTicket;
     }
 
+    private Path getCheckpointDir() {
+        return Paths.get(hubConfig.getProjectDir(), ".tmp", "checkpoints");
+    }
+
+    private JobCheckpoint.State newCheckpointState(Job job) {
+        JobCheckpoint.State state = new JobCheckpoint.State();
+        state.jobId = job.getJobId();
+        state.startTime = job.getStartTime();
+        state.entityName = flow.getEntityName();
+        state.flowName = flow.getName();
+        state.flowType = flow.getType().toString();
+        state.destinationDatabase = destinationDatabase;
+        state.batchSize = batchSize;
+        state.threadCount = threadCount;
+        state.stopOnFailure = stopOnFailure;
+        state.options = options;
+        state.traceMode = traceMode != null ? traceMode.toString() : null;
+        state.traceSampleRate = traceSampleRate;
+        state.bulkHarmonize = bulkHarmonize;
+        state.forestAffinity = forestAffinity;
+        state.autoTuning = JobCheckpoint.AutoTuningState.from(autoTuning);
+        return state;
+    }
+
+    private String stackTraceToString(Throwable t) {
+        StringWriter errors = new StringWriter();
+        t.printStackTrace(new PrintWriter(errors));
+        return errors.toString();
+    }
+
     private String jsonToString(JsonNode node) {
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            return objectMapper.writeValueAsString(node);
+            return JSON_WRITER.writeValueAsString(node);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static class HarmonizeJob implements CancellableJob {
+
+        private final String jobId;
+        private volatile boolean canceled = false;
+        private volatile boolean done = false;
+        private boolean forced = false;
+        private DataMovementManager dataMovementManager;
+        private QueryBatcher queryBatcher;
+        private StreamingDiskQueue streamingUris;
+        // a batcher running a query pages through the database itself, so it never runs out of uris on cancel
+        private boolean stopWhenDrained = false;
+        private int batchesInFlight = 0;
+
+        HarmonizeJob(String jobId) {
+            this.jobId = jobId;
+        }
+
+        @Override
+        public String getJobId() {
+            return jobId;
+        }
+
+        @Override
+        public void cancel(boolean force) {
+            boolean stop;
+            StreamingDiskQueue uris;
+            synchronized (this) {
+                canceled = true;
+                forced = forced || force;
+                stop = queryBatcher != null && !done && (forced || drained());
+                uris = streamingUris;
+            }
+            if (uris != null) {
+                // the batcher takes no more uris once canceled, so there is no point collecting them
+                uris.cancel();
+            }
+            if (stop) {
+                dataMovementManager.stopJob(queryBatcher);
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
+        void collecting(StreamingDiskQueue streamingUris) {
+            synchronized (this) {
+                this.streamingUris = streamingUris;
+            }
+            if (canceled) {
+                streamingUris.cancel();
+            }
+        }
+
+        void started(DataMovementManager dataMovementManager, QueryBatcher queryBatcher, boolean stopWhenDrained) {
+            boolean stop;
+            synchronized (this) {
+                this.dataMovementManager = dataMovementManager;
+                this.queryBatcher = queryBatcher;
+                this.stopWhenDrained = stopWhenDrained;
+                stop = forced || drained();
+            }
+            if (stop) {
+                dataMovementManager.stopJob(queryBatcher);
+            }
+        }
+
+        /**
+         * @return false if the job has been canceled and the batch should be dropped
+         */
+        synchronized boolean batchStarted() {
+            if (canceled) {
+                return false;
+            }
+            batchesInFlight++;
+            return true;
+        }
+
+        void batchFinished() {
+            boolean stop;
+            synchronized (this) {
+                batchesInFlight--;
+                stop = queryBatcher != null && !done && drained();
+            }
+            if (stop) {
+                dataMovementManager.stopJob(queryBatcher);
+            }
+        }
+
+        // stopping the batcher interrupts its threads, so a graceful cancel waits for the batches in flight
+        private boolean drained() {
+            return canceled && stopWhenDrained && batchesInFlight == 0;
+        }
+    }
+
     class FlowResource extends ResourceManager {
 
         private DatabaseClient srcClient;
         private String targetDatabase;
         private Flow flow;
+        private TraceMode traceMode;
+        private int traceSampleRate;
 
-        public FlowResource(DatabaseClient srcClient, String targetDatabase, Flow flow) {
+        public FlowResource(DatabaseClient srcClient, String targetDatabase, Flow flow, TraceMode traceMode, int traceSampleRate, boolean bulk) {
             super();
             this.flow = flow;
             this.srcClient = srcClient;
             this.targetDatabase = targetDatabase;
-            this.srcClient.init(flow.getCodeFormat().equals(CodeFormat.JAVASCRIPT) ? "ml:sjsFlow" : "ml:flow", this);
+            this.traceMode = traceMode;
+            this.traceSampleRate = traceSampleRate;
+            String name = "ml:flow";
+            if (flow.getCodeFormat().equals(CodeFormat.JAVASCRIPT)) {
+                name = bulk ? "ml:sjsBulkFlow" : "ml:sjsFlow";
+            }
+            this.srcClient.init(name, this);
         }
 
         public RunFlowResponse run(String jobId, String[] items) {
             return run(jobId, items, null);
         }
 
-        public RunFlowResponse run(String jobId, String[] items, Map<String, Object> options) {
+        /**
+         * Runs the flow against a batch of items
+         * @param jobId - the id of the job the batch belongs to
+         * @param items - the identifiers to process
+         * @param options - the job options, already serialized as JSON
+         * @return the response from the flow resource
+         */
+        public RunFlowResponse run(String jobId, String[] items, String options) {
             RunFlowResponse resp;
             try {
                 RequestParameters params = new RequestParameters();
                 params.add("entity-name", flow.getEntityName());
                 params.add("flow-name", flow.getName());
                 params.put("job-id", jobId);
-                params.put("identifiers", items);
                 params.put("target-database", targetDatabase);
-                if (options != null) {
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    params.put("options", objectMapper.writeValueAsString(options));
+                if (traceMode != null) {
+                    params.put("trace-mode", traceMode.toString());
+                    params.put("trace-sample-rate", Integer.toString(traceSampleRate));
                 }
-                ResourceServices.ServiceResultIterator resultItr = this.getServices().post(params, new StringHandle("{}").withFormat(Format.JSON));
+                ResourceServices.ServiceResultIterator resultItr = this.getServices().post(params, new StringHandle(newRequestBody(items, options)).withFormat(Format.JSON));
                 try {
                     if (resultItr == null || !resultItr.hasNext()) {
                         resp = new RunFlowResponse();
                     }
                     else {
                         ResourceServices.ServiceResult res = resultItr.next();
-                        StringHandle handle = new StringHandle();
-                        ObjectMapper objectMapper = new ObjectMapper();
-                        resp = objectMapper.readValue(res.getContent(handle).get(), RunFlowResponse.class);
+                        try (InputStream content = res.getContent(new InputStreamHandle()).get()) {
+                            resp = RESPONSE_READER.readValue(content);
+                        }
                     }
                 }
                 finally {
@@ -402,5 +901,29 @@ public class FlowRunnerImpl implements FlowRunner {
             }
             return resp;
         }
+
+        /**
+         * The identifiers and options go in the body so a batch isn't limited by the length of the url
+         * @param items - the identifiers to process
+         * @param options - the job options, already serialized as JSON
+         * @return the JSON request body
+         */
+        private String newRequestBody(String[] items, String options) throws IOException {
+            StringWriter body = new StringWriter();
+            try (JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(body)) {
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("identifiers");
+                for (String item : items) {
+                    generator.writeString(item);
+                }
+                generator.writeEndArray();
+                if (options != null) {
+                    generator.writeFieldName("options");
+                    generator.writeRawValue(options);
+                }
+                generator.writeEndObject();
+            }
+            return body.toString();
+        }
     }
 }
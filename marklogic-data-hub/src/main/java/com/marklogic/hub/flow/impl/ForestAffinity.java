@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.Forest;
+import com.marklogic.client.extensions.ResourceManager;
+import com.marklogic.client.extensions.ResourceServices;
+import com.marklogic.client.io.JacksonHandle;
+import com.marklogic.client.util.RequestParameters;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Regroups the uris of a harmonize job by the host whose forest holds each document, so that
+ * every batch the QueryBatcher cuts can be sent to the app server on that host.
+ *
+ * Uris are read from the collector a chunk at a time, and one request per chunk asks the staging
+ * database which forest holds each of them. A host's uris are held back until they fill a whole
+ * batch, so the batcher's batches line up with the groups. Uris without a document are grouped
+ * on their own. Once the collector is done the partial groups are released together, so only the
+ * last few batches of a job can mix hosts.
+ */
+public class ForestAffinity {
+
+    private static final int LOOKUP_SIZE = 1000;
+    private static final String NO_HOST = "";
+
+    private final Function<List<String>, Map<String, String>> lookup;
+    private final Map<String, String> forestHosts;
+    private final int batchSize;
+
+    // the first uri of every batch handed to the batcher, mapped to the host the batch belongs to
+    private final Map<String, String> batchHosts = new ConcurrentHashMap<>();
+
+    public ForestAffinity(DatabaseClient stagingClient, Forest[] forests, int batchSize) {
+        this(new UriForestsResource(stagingClient)::getForests, hostsByForest(forests), batchSize);
+    }
+
+    ForestAffinity(Function<List<String>, Map<String, String>> lookup, Map<String, String> forestHosts, int batchSize) {
+        this.lookup = lookup;
+        this.forestHosts = forestHosts;
+        this.batchSize = batchSize;
+    }
+
+    private static Map<String, String> hostsByForest(Forest[] forests) {
+        Map<String, String> hosts = new HashMap<>();
+        for (Forest forest : forests) {
+            hosts.put(forest.getForestId(), forest.getPreferredHost());
+        }
+        return hosts;
+    }
+
+    /**
+     * Wraps the collector's uris so that they come out grouped by host, a batch at a time
+     * @param uris - the uris in collector order
+     * @return the same uris, regrouped
+     */
+    public Iterator<String> group(Iterator<String> uris) {
+        return new Iterator<String>() {
+            private final Map<String, List<String>> groups = new LinkedHashMap<>();
+            // each uri travels with its host, since a collector may return the same uri more than once
+            private final Deque<Map.Entry<String, String>> ready = new ArrayDeque<>();
+            private long released = 0;
+            private boolean flushed = false;
+
+            @Override
+            public boolean hasNext() {
+                while (ready.isEmpty() && !flushed) {
+                    fill();
+                }
+                return !ready.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = ready.poll();
+                String uri = entry.getKey();
+                String host = entry.getValue();
+                if (released++ % batchSize == 0 && host != null && !NO_HOST.equals(host)) {
+                    batchHosts.put(uri, host);
+                }
+                return uri;
+            }
+
+            private void fill() {
+                List<String> chunk = new ArrayList<>(LOOKUP_SIZE);
+                while (chunk.size() < LOOKUP_SIZE && uris.hasNext()) {
+                    chunk.add(uris.next());
+                }
+                if (chunk.isEmpty()) {
+                    groups.forEach((host, group) -> release(host, group));
+                    groups.clear();
+                    flushed = true;
+                    return;
+                }
+
+                Map<String, String> forests = lookup.apply(chunk);
+                for (String uri : chunk) {
+                    String host = forestHosts.getOrDefault(forests.get(uri), NO_HOST);
+                    List<String> group = groups.computeIfAbsent(host, key -> new ArrayList<>(batchSize));
+                    group.add(uri);
+                    if (group.size() == batchSize) {
+                        release(host, group);
+                        group.clear();
+                    }
+                }
+            }
+
+            private void release(String host, List<String> group) {
+                for (String uri : group) {
+                    ready.add(new AbstractMap.SimpleImmutableEntry<>(uri, host));
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the host that holds the documents of a batch cut from the grouped uris
+     * @param items - the batch
+     * @return the host name, or null if the batch should go wherever the batcher sent it
+     */
+    public String getHost(String[] items) {
+        return items.length > 0 ? batchHosts.remove(items[0]) : null;
+    }
+
+    static class UriForestsResource extends ResourceManager {
+
+        UriForestsResource(DatabaseClient client) {
+            super();
+            client.init("ml:uriForests", this);
+        }
+
+        Map<String, String> getForests(List<String> uris) {
+            ArrayNode body = JsonNodeFactory.instance.arrayNode();
+            uris.forEach(body::add);
+            Map<String, String> forests = new HashMap<>();
+            ResourceServices.ServiceResultIterator resultItr = getServices().post(new RequestParameters(), new JacksonHandle(body));
+            try {
+                if (resultItr != null && resultItr.hasNext()) {
+                    JsonNode response = resultItr.next().getContent(new JacksonHandle()).get();
+                    response.fields().forEachRemaining(entry -> forests.put(entry.getKey(), entry.getValue().asText()));
+                }
+            }
+            finally {
+                if (resultItr != null) {
+                    resultItr.close();
+                }
+            }
+            return forests;
+        }
+    }
+}
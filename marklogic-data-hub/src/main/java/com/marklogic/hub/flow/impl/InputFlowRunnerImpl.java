@@ -0,0 +1,442 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.JobTicket;
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.client.document.ServerTransform;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.Format;
+import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.flow.*;
+import com.marklogic.hub.job.Job;
+import com.marklogic.hub.job.JobManager;
+import com.marklogic.hub.job.JobSink;
+import com.marklogic.hub.job.JobStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class InputFlowRunnerImpl implements InputFlowRunner {
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int DEFAULT_THREAD_COUNT = 4;
+    private static final int MAX_ERROR_MESSAGES = 10;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private Flow flow;
+    private Path inputPath;
+    private String uriPrefix = "/";
+    private String[] collections = new String[0];
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int threadCount = DEFAULT_THREAD_COUNT;
+    private int readerThreadCount = Runtime.getRuntime().availableProcessors();
+    private DatabaseClient destinationClient;
+    private Map<String, Object> options;
+    private JobSink jobSink;
+    private final AtomicInteger previousPercentComplete = new AtomicInteger();
+
+    private List<FlowStatusListener> flowStatusListeners = new ArrayList<>();
+    private List<FlowFinishedListener> flowFinishedListeners = new ArrayList<>();
+
+    private HubConfig hubConfig;
+    private Thread runningThread = null;
+
+    public InputFlowRunnerImpl(HubConfig hubConfig) {
+        this.hubConfig = hubConfig;
+        this.destinationClient = hubConfig.newStagingClient();
+    }
+
+    @Override
+    public InputFlowRunner withFlow(Flow flow) {
+        this.flow = flow;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withInputPath(Path inputPath) {
+        this.inputPath = inputPath;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withUriPrefix(String uriPrefix) {
+        this.uriPrefix = uriPrefix;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withCollections(String... collections) {
+        this.collections = collections;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withReaderThreadCount(int readerThreadCount) {
+        this.readerThreadCount = readerThreadCount;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withDestinationClient(DatabaseClient destinationClient) {
+        this.destinationClient = destinationClient;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withOptions(Map<String, Object> options) {
+        this.options = options;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner withJobSink(JobSink jobSink) {
+        this.jobSink = jobSink;
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner onStatusChanged(FlowStatusListener listener) {
+        this.flowStatusListeners.add(listener);
+        return this;
+    }
+
+    @Override
+    public InputFlowRunner onFinished(FlowFinishedListener listener) {
+        this.flowFinishedListeners.add(listener);
+        return this;
+    }
+
+    @Override
+    public void awaitCompletion() {
+        try {
+            awaitCompletion(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        catch(InterruptedException e) {}
+    }
+
+    @Override
+    public void awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        if (runningThread != null) {
+            runningThread.join(unit.toMillis(timeout));
+        }
+    }
+
+    @Override
+    public JobTicket run() {
+        if (flow == null || flow.getType() != FlowType.INPUT) {
+            throw new IllegalStateException("An input flow must be set before running the input flow runner");
+        }
+        if (inputPath == null || !Files.exists(inputPath)) {
+            throw new IllegalStateException("Input path " + inputPath + " does not exist");
+        }
+        previousPercentComplete.set(0);
+
+        String jobId = UUID.randomUUID().toString();
+        JobManager jobManager = JobManager.create(hubConfig.newJobDbClient(), jobSink);
+
+        Job job = Job.withFlow(flow)
+            .withJobId(jobId);
+        jobManager.saveJob(job);
+
+        if (options == null) {
+            options = new HashMap<>();
+        }
+        options.put("entity", this.flow.getEntityName());
+        options.put("flow", this.flow.getName());
+        options.put("flowType", this.flow.getType().toString());
+
+        ServerTransform transform = new ServerTransform(flow.getCodeFormat().equals(CodeFormat.JAVASCRIPT) ? "ml:sjsInputFlow" : "ml:inputFlow");
+        transform.addParameter("job-id", jobId);
+        transform.addParameter("entity-name", flow.getEntityName());
+        transform.addParameter("flow-name", flow.getName());
+        try {
+            transform.addParameter("options", OBJECT_MAPPER.writeValueAsString(options));
+        }
+        catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        DocumentMetadataHandle metadata = null;
+        if (collections.length > 0) {
+            metadata = new DocumentMetadataHandle().withCollections(collections);
+        }
+
+        AtomicLong successfulEvents = new AtomicLong(0);
+        AtomicLong failedEvents = new AtomicLong(0);
+        AtomicLong successfulBatches = new AtomicLong(0);
+        AtomicLong failedBatches = new AtomicLong(0);
+        Vector<String> errorMessages = new Vector<>();
+        long[] totalCount = new long[] { -1 };
+        long loadStart = System.currentTimeMillis();
+
+        DataMovementManager dataMovementManager = destinationClient.newDataMovementManager();
+        WriteBatcher writeBatcher = dataMovementManager.newWriteBatcher()
+            .withBatchSize(batchSize)
+            .withThreadCount(threadCount)
+            .withJobId(jobId)
+            .withTransform(transform)
+            .onBatchSuccess((WriteBatch batch) -> {
+                successfulEvents.addAndGet(batch.getItems().length);
+                successfulBatches.incrementAndGet();
+                updateProgress(jobId, job, jobManager, successfulEvents, failedEvents, successfulBatches, failedBatches, totalCount[0], loadStart);
+            })
+            .onBatchFailure((WriteBatch batch, Throwable failure) -> {
+                // the transform runs inside the write, so one bad document fails the batch it is in
+                failedEvents.addAndGet(batch.getItems().length);
+                failedBatches.incrementAndGet();
+                if (errorMessages.size() < MAX_ERROR_MESSAGES) {
+                    errorMessages.add(failure.toString());
+                }
+                updateProgress(jobId, job, jobManager, successfulEvents, failedEvents, successfulBatches, failedBatches, totalCount[0], loadStart);
+            });
+
+        JobTicket jobTicket = dataMovementManager.startJob(writeBatcher);
+
+        final DocumentMetadataHandle documentMetadata = metadata;
+        runningThread = new Thread(() -> {
+            flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                listener.onStatusChange(jobId, 0, "loading " + inputPath);
+            });
+
+            ExecutorService readers = Executors.newFixedThreadPool(readerThreadCount, newReaderThreadFactory(jobId));
+            Throwable loadFailure = null;
+            ZipFile zipFile = null;
+            try {
+                if (Files.isDirectory(inputPath)) {
+                    List<Path> files;
+                    try (Stream<Path> walk = Files.walk(inputPath)) {
+                        files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+                    }
+                    totalCount[0] = files.size();
+                    for (Path file : files) {
+                        String uri = toUri(inputPath.relativize(file).toString().replace(File.separatorChar, '/'));
+                        readers.execute(() -> load(writeBatcher, uri, documentMetadata, () -> Files.newInputStream(file), failedEvents, errorMessages));
+                    }
+                }
+                else {
+                    // ZipFile inflates each entry's stream independently, so entries can be read in parallel
+                    ZipFile zip = zipFile = new ZipFile(inputPath.toFile());
+                    List<ZipEntry> entries = zip.stream().filter(entry -> !entry.isDirectory()).collect(Collectors.toList());
+                    totalCount[0] = entries.size();
+                    for (ZipEntry entry : entries) {
+                        String uri = toUri(entry.getName());
+                        readers.execute(() -> load(writeBatcher, uri, documentMetadata, () -> zip.getInputStream(entry), failedEvents, errorMessages));
+                    }
+                }
+                readers.shutdown();
+                readers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                writeBatcher.flushAndWait();
+            }
+            catch (Exception e) {
+                loadFailure = e;
+                readers.shutdownNow();
+            }
+            finally {
+                if (zipFile != null) {
+                    try {
+                        zipFile.close();
+                    }
+                    catch (IOException e) {
+                        // nothing left to read from it
+                    }
+                }
+            }
+
+            dataMovementManager.stopJob(writeBatcher);
+
+            flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                listener.onStatusChange(jobId, 100, "");
+            });
+
+            flowFinishedListeners.forEach((FlowFinishedListener::onFlowFinished));
+
+            JobStatus status;
+            if (loadFailure != null) {
+                status = JobStatus.FAILED;
+                errorMessages.add(0, stackTraceToString(loadFailure));
+            }
+            else if (failedEvents.get() + successfulEvents.get() != totalCount[0]) {
+                status = JobStatus.CANCELED;
+            }
+            else if (failedEvents.get() > 0 && successfulEvents.get() > 0) {
+                status = JobStatus.FINISHED_WITH_ERRORS;
+            }
+            else if (failedEvents.get() == 0 && successfulEvents.get() > 0) {
+                status = JobStatus.FINISHED;
+            }
+            else {
+                status = JobStatus.FAILED;
+            }
+
+            synchronized (job) {
+                job.setCounts(successfulEvents.get(), failedEvents.get(), successfulBatches.get(), failedBatches.get())
+                    .withStatus(status)
+                    .withEndTime(new Date());
+
+                if (errorMessages.size() > 0) {
+                    job.withJobOutput(errorMessages);
+                }
+            }
+            jobManager.saveJob(job);
+        }, "input-flow-" + jobId);
+        runningThread.start();
+
+        return jobTicket;
+    }
+
+    private interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+    private void load(WriteBatcher writeBatcher, String uri, DocumentMetadataHandle metadata, ContentSource source,
+                      AtomicLong failedEvents, Vector<String> errorMessages) {
+        byte[] content;
+        try (InputStream in = source.open()) {
+            content = readFully(in);
+        }
+        catch (IOException e) {
+            // a file that can't be read never reaches the batcher, so count it here
+            failedEvents.incrementAndGet();
+            if (errorMessages.size() < MAX_ERROR_MESSAGES) {
+                errorMessages.add(uri + ": " + e.toString());
+            }
+            return;
+        }
+        BytesHandle handle = new BytesHandle(content).withFormat(formatFor(uri));
+        if (metadata != null) {
+            writeBatcher.add(uri, metadata, handle);
+        }
+        else {
+            writeBatcher.add(uri, handle);
+        }
+    }
+
+    private void updateProgress(String jobId, Job job, JobManager jobManager, AtomicLong successfulEvents, AtomicLong failedEvents,
+                                AtomicLong successfulBatches, AtomicLong failedBatches, long totalCount, long loadStart) {
+        long processed = successfulEvents.get() + failedEvents.get();
+        if (totalCount > 0) {
+            int percentComplete = (int) (((double) processed / (double) totalCount) * 100.0);
+            synchronized (job) {
+                job.withPercentComplete(percentComplete);
+            }
+            // batches finish on several write batcher threads, so only the one that moves the mark reports it
+            int previous = previousPercentComplete.get();
+            if (percentComplete > previous && (percentComplete % 5 == 0) &&
+                previousPercentComplete.compareAndSet(previous, percentComplete)) {
+                flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                    listener.onStatusChange(jobId, percentComplete, "");
+                });
+            }
+        }
+
+        // the job manager coalesces these, so the job document is only written every few seconds
+        long elapsed = Math.max(1, System.currentTimeMillis() - loadStart);
+        synchronized (job) {
+            job.setCounts(successfulEvents.get(), failedEvents.get(), successfulBatches.get(), failedBatches.get())
+                .withDocsPerSecond(processed * 1000.0 / elapsed);
+        }
+        jobManager.updateJob(job);
+    }
+
+    private String toUri(String relativePath) {
+        if (uriPrefix.endsWith("/") && relativePath.startsWith("/")) {
+            return uriPrefix + relativePath.substring(1);
+        }
+        return uriPrefix + relativePath;
+    }
+
+    /**
+     * Picks the document format from the uri's extension. Anything else is left to the
+     * server's mimetype mapping, the same as an MLCP load.
+     * @param uri - the document uri
+     * @return the format to write the document with
+     */
+    static Format formatFor(String uri) {
+        String lower = uri.toLowerCase();
+        if (lower.endsWith(".json")) {
+            return Format.JSON;
+        }
+        if (lower.endsWith(".xml")) {
+            return Format.XML;
+        }
+        if (lower.endsWith(".txt") || lower.endsWith(".csv")) {
+            return Format.TEXT;
+        }
+        return Format.UNKNOWN;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static ThreadFactory newReaderThreadFactory(String jobId) {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "input-flow-reader-" + jobId + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private String stackTraceToString(Throwable t) {
+        StringWriter errors = new StringWriter();
+        t.printStackTrace(new PrintWriter(errors));
+        return errors.toString();
+    }
+}
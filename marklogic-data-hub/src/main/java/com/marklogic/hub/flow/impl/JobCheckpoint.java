@@ -0,0 +1,403 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.hub.flow.AutoTuning;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Durable record of how far a harmonize job has got, so that a job that dies part way
+ * through can be resumed without running the collector again.
+ *
+ * Each checkpointed job gets its own directory holding two files. <code>uris.log</code>
+ * is every collected uri in collection order, and the position of a uri in that log is
+ * its offset. <code>checkpoint.json</code> is the {@link State}: the job settings, the
+ * offset below which every uri has been processed, the processed offsets above it and
+ * the job counts at that point. Batches finish out of order, so the offsets above the
+ * low water mark stay bounded by the number of requests in flight.
+ *
+ * A uri counts as processed once the flow resource has answered for its batch, whether
+ * or not the flow reported an error for it. Batches whose request failed outright count
+ * as processed with every item failed, so they are not sent again on resume.
+ *
+ * Each uri in the log is its length in bytes followed by its UTF-8 bytes.
+ */
+public class JobCheckpoint {
+
+    static final String URI_LOG = "uris.log";
+    static final String STATE_FILE = "checkpoint.json";
+
+    private static final long DEFAULT_SAVE_INTERVAL_MILLIS = 5000;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final Path dir;
+    private final State state;
+    private final TreeSet<Long> completedAbove;
+
+    // offsets handed to the batcher that have not been processed yet, by uri
+    private final Map<String, ArrayDeque<Long>> inFlight = new HashMap<>();
+
+    private DataOutputStream uriLog;
+    private long saveIntervalMillis = DEFAULT_SAVE_INTERVAL_MILLIS;
+    private long lastSaved = 0;
+
+    /**
+     * The persisted part of a checkpoint
+     */
+    public static class State {
+        public String jobId;
+        public String entityName;
+        public String flowName;
+        public String flowType;
+        public String destinationDatabase;
+        public int batchSize;
+        public int threadCount;
+        public boolean stopOnFailure;
+        public Map<String, Object> options;
+        public String traceMode;
+        public int traceSampleRate;
+        public boolean bulkHarmonize;
+        public boolean forestAffinity;
+        // null when the job ran with a fixed batch size and thread count
+        public AutoTuningState autoTuning;
+        public Date startTime;
+
+        public boolean collected = false;
+        public long uriCount = 0;
+        public long completedThrough = 0;
+        public List<Long> completedAbove = new ArrayList<>();
+
+        public long successfulEvents = 0;
+        public long failedEvents = 0;
+        public long successfulBatches = 0;
+        public long failedBatches = 0;
+        public Date updated;
+    }
+
+    /**
+     * The auto tuning bounds of a job, kept as fields so the state can be read back
+     */
+    public static class AutoTuningState {
+        public int minBatchSize;
+        public int maxBatchSize;
+        public int batchSizeIncrement;
+        public int maxThreadCount;
+        public long targetLatencyMillis;
+        public double maxErrorRate;
+        public int windowSize;
+
+        static AutoTuningState from(AutoTuning autoTuning) {
+            if (autoTuning == null) {
+                return null;
+            }
+            AutoTuningState state = new AutoTuningState();
+            state.minBatchSize = autoTuning.getMinBatchSize();
+            state.maxBatchSize = autoTuning.getMaxBatchSize();
+            state.batchSizeIncrement = autoTuning.getBatchSizeIncrement();
+            state.maxThreadCount = autoTuning.getMaxThreadCount();
+            state.targetLatencyMillis = autoTuning.getTargetLatencyMillis();
+            state.maxErrorRate = autoTuning.getMaxErrorRate();
+            state.windowSize = autoTuning.getWindowSize();
+            return state;
+        }
+
+        AutoTuning toAutoTuning() {
+            return new AutoTuning()
+                .withMinBatchSize(minBatchSize)
+                .withMaxBatchSize(maxBatchSize)
+                .withBatchSizeIncrement(batchSizeIncrement)
+                .withMaxThreadCount(maxThreadCount)
+                .withTargetLatencyMillis(targetLatencyMillis)
+                .withMaxErrorRate(maxErrorRate)
+                .withWindowSize(windowSize);
+        }
+    }
+
+    private JobCheckpoint(Path dir, State state) {
+        this.dir = dir;
+        this.state = state;
+        this.completedAbove = new TreeSet<>(state.completedAbove);
+    }
+
+    /**
+     * Starts a new checkpoint for a job
+     * @param baseDir - the directory checkpoints are kept in
+     * @param state - the settings of the job, with the jobId set
+     * @return the checkpoint, ready to record uris
+     */
+    public static JobCheckpoint create(Path baseDir, State state) {
+        Path dir = baseDir.resolve(state.jobId);
+        try {
+            Files.createDirectories(dir);
+            JobCheckpoint checkpoint = new JobCheckpoint(dir, state);
+            checkpoint.uriLog = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve(URI_LOG))));
+            checkpoint.save();
+            return checkpoint;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads the last saved checkpoint of a job
+     * @param baseDir - the directory checkpoints are kept in
+     * @param jobId - the job to load
+     * @return the checkpoint
+     */
+    public static JobCheckpoint open(Path baseDir, String jobId) {
+        Path dir = baseDir.resolve(jobId);
+        Path stateFile = dir.resolve(STATE_FILE);
+        if (!Files.exists(stateFile)) {
+            throw new IllegalArgumentException("No checkpoint found for job " + jobId + " in " + baseDir.toAbsolutePath());
+        }
+        try (InputStream in = Files.newInputStream(stateFile)) {
+            return new JobCheckpoint(dir, OBJECT_MAPPER.readValue(in, State.class));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public JobCheckpoint withSaveInterval(long saveIntervalMillis) {
+        this.saveIntervalMillis = saveIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Appends a collected uri to the log
+     * @param uri - the uri
+     */
+    public synchronized void recordUri(String uri) {
+        try {
+            byte[] bytes = uri.getBytes(StandardCharsets.UTF_8);
+            uriLog.writeInt(bytes.length);
+            uriLog.write(bytes);
+            state.uriCount++;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Records that every uri of the job is in the log. Only a collected job can be resumed.
+     */
+    public synchronized void markCollected() {
+        closeLog();
+        state.collected = true;
+        save();
+    }
+
+    /**
+     * Logs each uri as it is taken from the source and hands it on to the batcher. Used when
+     * harmonization runs while the collector is still returning uris.
+     * @param source - the collected uris
+     * @return an iterator over the same uris
+     */
+    public Iterator<String> track(Iterator<String> source) {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public String next() {
+                String uri = source.next();
+                synchronized (JobCheckpoint.this) {
+                    long offset = state.uriCount;
+                    recordUri(uri);
+                    dispatch(uri, offset);
+                }
+                return uri;
+            }
+        };
+    }
+
+    /**
+     * Reads the uris that have not been processed yet back from the log
+     * @return an iterator over the unprocessed uris in collection order
+     */
+    public Iterator<String> remaining() {
+        closeLog();
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve(URI_LOG))));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new Iterator<String>() {
+            private long offset = 0;
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    next = advance();
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String uri = next;
+                next = null;
+                return uri;
+            }
+
+            private String advance() {
+                try {
+                    synchronized (JobCheckpoint.this) {
+                        while (offset < state.uriCount) {
+                            byte[] bytes = new byte[in.readInt()];
+                            in.readFully(bytes);
+                            String uri = new String(bytes, StandardCharsets.UTF_8);
+                            long current = offset++;
+                            if (current >= state.completedThrough && !completedAbove.contains(current)) {
+                                dispatch(uri, current);
+                                return uri;
+                            }
+                        }
+                    }
+                    in.close();
+                    return null;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Records that the flow resource has answered for a batch of uris
+     * @param items - the uris of the batch
+     * @param successfulEvents - the number of items the flow processed without error
+     * @param failedEvents - the number of items the flow reported errors for
+     * @param successfulBatches - 1 if the batch counts as successful
+     * @param failedBatches - 1 if the batch counts as failed
+     */
+    public synchronized void complete(String[] items, long successfulEvents, long failedEvents, long successfulBatches, long failedBatches) {
+        for (String item : items) {
+            ArrayDeque<Long> offsets = inFlight.get(item);
+            if (offsets == null) {
+                continue;
+            }
+            long offset = offsets.poll();
+            if (offsets.isEmpty()) {
+                inFlight.remove(item);
+            }
+            if (offset == state.completedThrough) {
+                state.completedThrough++;
+                while (completedAbove.remove(state.completedThrough)) {
+                    state.completedThrough++;
+                }
+            }
+            else {
+                completedAbove.add(offset);
+            }
+        }
+        state.successfulEvents += successfulEvents;
+        state.failedEvents += failedEvents;
+        state.successfulBatches += successfulBatches;
+        state.failedBatches += failedBatches;
+    }
+
+    /**
+     * Saves the checkpoint if the save interval has passed since it was last saved
+     */
+    public synchronized void saveIfDue() {
+        if (System.currentTimeMillis() - lastSaved >= saveIntervalMillis) {
+            save();
+        }
+    }
+
+    /**
+     * Saves the checkpoint. The state file is replaced atomically, so a crash while saving
+     * leaves the previous checkpoint in place.
+     */
+    public synchronized void save() {
+        try {
+            if (uriLog != null) {
+                // every offset the state refers to must be in the log first
+                uriLog.flush();
+            }
+            state.completedAbove = new ArrayList<>(completedAbove);
+            state.updated = new Date();
+            Path tmp = dir.resolve(STATE_FILE + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                OBJECT_MAPPER.writeValue(out, state);
+            }
+            Files.move(tmp, dir.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSaved = System.currentTimeMillis();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Removes the checkpoint once the job no longer needs it
+     */
+    public synchronized void delete() {
+        closeLog();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void dispatch(String uri, long offset) {
+        inFlight.computeIfAbsent(uri, key -> new ArrayDeque<>(1)).add(offset);
+    }
+
+    private synchronized void closeLog() {
+        if (uriLog != null) {
+            try {
+                uriLog.close();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            uriLog = null;
+        }
+    }
+}
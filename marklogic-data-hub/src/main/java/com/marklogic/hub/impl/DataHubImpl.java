@@ -25,6 +25,7 @@ import com.marklogic.appdeployer.command.forests.DeployCustomForestsCommand;
 import com.marklogic.appdeployer.command.modules.LoadModulesCommand;
 import com.marklogic.appdeployer.command.security.*;
 import com.marklogic.appdeployer.impl.SimpleAppDeployer;
+import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.FailedRequestException;
 import com.marklogic.client.MarkLogicIOException;
 import com.marklogic.client.admin.QueryOptionsManager;
@@ -112,6 +113,12 @@ public class DataHubImpl implements DataHub {
         this._adminManager = manager;
     }
 
+    private HubAppDeployer newHubAppDeployer(HubDeployStatusListener listener, DatabaseClient databaseClient) {
+        HubAppDeployer deployer = new HubAppDeployer(getManageClient(), getAdminManager(), listener, databaseClient);
+        deployer.setParallelism(hubConfig.getDeployParallelism());
+        return deployer;
+    }
+
     private DatabaseManager getDatabaseManager() {
         if (this._databaseManager == null) {
             this._databaseManager = new DatabaseManager(getManageClient());
@@ -501,7 +508,7 @@ public class DataHubImpl implements DataHub {
         }
 
         AppConfig finalConfig = hubConfig.getFinalAppConfig();
-        HubAppDeployer finalDeployer = new HubAppDeployer(getManageClient(), getAdminManager(), listener, hubConfig.newStagingClient());
+        HubAppDeployer finalDeployer = newHubAppDeployer(listener, hubConfig.newStagingClient());
         finalDeployer.setFinalCommandsList(getFinalCommandList());
 
         AppConfig stagingConfig = hubConfig.getStagingAppConfig();
@@ -515,7 +522,7 @@ public class DataHubImpl implements DataHub {
 
         logger.warn("Installing the Data Hub into MarkLogic");
         AppConfig finalConfig = hubConfig.getFinalAppConfig();
-        HubAppDeployer finalDeployer = new HubAppDeployer(getManageClient(), getAdminManager(), listener, hubConfig.newFinalClient());
+        HubAppDeployer finalDeployer = newHubAppDeployer(listener, hubConfig.newFinalClient());
         finalDeployer.setCommands(getFinalCommandList());
         finalDeployer.deploy(finalConfig);
     }
@@ -524,14 +531,14 @@ public class DataHubImpl implements DataHub {
     public void installStaging(HubDeployStatusListener listener) {
         // i know it's weird that the final client installs staging, but it's needed
         AppConfig stagingConfig = hubConfig.getStagingAppConfig();
-        HubAppDeployer stagingDeployer = new HubAppDeployer(getManageClient(), getAdminManager(), listener, hubConfig.newFinalClient());
+        HubAppDeployer stagingDeployer = newHubAppDeployer(listener, hubConfig.newFinalClient());
         stagingDeployer.setCommands(getStagingCommandList());
         stagingDeployer.deploy(stagingConfig);
     }
 
     @Override
     public void updateIndexes() {
-    	HubAppDeployer deployer = new HubAppDeployer(getManageClient(), getAdminManager(), null, hubConfig.newStagingClient());
+    	HubAppDeployer deployer = newHubAppDeployer(null, hubConfig.newStagingClient());
     	
     	AppConfig finalConfig = hubConfig.getFinalAppConfig();
         List<Command> finalDBCommand = new ArrayList<>();
@@ -565,7 +572,7 @@ public class DataHubImpl implements DataHub {
         logger.warn("Uninstalling the Data Hub and Final Databases/Servers from MarkLogic");
 
         AppConfig finalConfig = hubConfig.getFinalAppConfig();
-        HubAppDeployer finalDeployer = new HubAppDeployer(getManageClient(), getAdminManager(), listener, hubConfig.newStagingClient());
+        HubAppDeployer finalDeployer = newHubAppDeployer(listener, hubConfig.newStagingClient());
         finalDeployer.setFinalCommandsList(getFinalCommandList());
 
         AppConfig stagingConfig = hubConfig.getStagingAppConfig();
@@ -583,7 +590,7 @@ public class DataHubImpl implements DataHub {
     public void uninstallStaging(HubDeployStatusListener listener) {
 
         AppConfig config = hubConfig.getStagingAppConfig();
-        HubAppDeployer stagingDeployer = new HubAppDeployer(getManageClient(), getAdminManager(), listener, hubConfig.newStagingClient());
+        HubAppDeployer stagingDeployer = newHubAppDeployer(listener, hubConfig.newStagingClient());
         stagingDeployer.setCommands(getStagingCommandList());
         stagingDeployer.undeploy(config);
     }
@@ -592,7 +599,7 @@ public class DataHubImpl implements DataHub {
     public void uninstallFinal(HubDeployStatusListener listener) {
 
         AppConfig finalAppConfig = hubConfig.getFinalAppConfig();
-        HubAppDeployer finalDeployer = new HubAppDeployer(getManageClient(), getAdminManager(), listener, hubConfig.newFinalClient());
+        HubAppDeployer finalDeployer = newHubAppDeployer(listener, hubConfig.newFinalClient());
         finalDeployer.setCommands(getFinalCommandList());
         finalDeployer.undeploy(finalAppConfig);
     }
@@ -122,6 +122,7 @@ public class EntityManagerImpl extends LoggingObject implements EntityManager {
         }
         modulesLoader.setShutdownTaskExecutorAfterLoadingModules(true);
         modulesLoader.waitForTaskExecutorToFinish();
+        propsManager.flush();
 
         return isLoaded;
     }
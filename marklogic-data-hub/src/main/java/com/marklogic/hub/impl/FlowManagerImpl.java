@@ -15,17 +15,21 @@
  */
 package com.marklogic.hub.impl;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.extensions.ResourceManager;
 import com.marklogic.client.extensions.ResourceServices.ServiceResult;
 import com.marklogic.client.extensions.ResourceServices.ServiceResultIterator;
 import com.marklogic.client.io.DOMHandle;
+import com.marklogic.client.io.JacksonHandle;
+import com.marklogic.client.io.StringHandle;
 import com.marklogic.client.util.RequestParameters;
 import com.marklogic.hub.FlowManager;
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.collector.impl.CollectorImpl;
 import com.marklogic.hub.flow.*;
 import com.marklogic.hub.flow.impl.FlowRunnerImpl;
+import com.marklogic.hub.flow.impl.InputFlowRunnerImpl;
 import com.marklogic.hub.main.impl.MainPluginImpl;
 import com.marklogic.hub.scaffold.Scaffolding;
 import org.apache.commons.io.FileUtils;
@@ -155,7 +159,13 @@ public class FlowManagerImpl extends ResourceManager implements FlowManager {
                     .withMain(new MainPluginImpl((String) properties.get("mainModule"), CodeFormat.getCodeFormat((String) properties.get("mainCodeFormat"))));
 
                 if (flowType.equals(FlowType.HARMONIZE)) {
-                    flowBuilder.withCollector(new CollectorImpl((String) properties.get("collectorModule"), CodeFormat.getCodeFormat((String) properties.get("collectorCodeFormat"))));
+                    flowBuilder.withCollector(new CollectorImpl((String) properties.get("collectorModule"),
+                        CodeFormat.getCodeFormat((String) properties.get("collectorCodeFormat")),
+                        Boolean.parseBoolean((String) properties.get("collectorPartitioned"))));
+                    String collectorQuery = (String) properties.get("collectorQuery");
+                    if (collectorQuery != null && !collectorQuery.isEmpty()) {
+                        flowBuilder.withCollectorQuery(collectorQuery);
+                    }
                 }
 
                 return flowBuilder.build();
@@ -275,4 +285,46 @@ public class FlowManagerImpl extends ResourceManager implements FlowManager {
         return new FlowRunnerImpl(hubConfig);
     }
 
+    @Override public InputFlowRunner newInputFlowRunner() {
+        return new InputFlowRunnerImpl(hubConfig);
+    }
+
+    @Override public JsonNode getFlowCache() {
+        return new FlowCacheResource(stagingClient).getEntries();
+    }
+
+    @Override public void flushFlowCache() {
+        new FlowCacheResource(stagingClient).flush();
+        new FlowCacheResource(hubConfig.newFinalClient()).flush();
+    }
+
+    class FlowCacheResource extends ResourceManager {
+
+        private static final String NAME = "ml:flowCache";
+
+        public FlowCacheResource(DatabaseClient client) {
+            super();
+            client.init(NAME, this);
+        }
+
+        public JsonNode getEntries() {
+            ServiceResultIterator resultItr = this.getServices().get(new RequestParameters());
+            try {
+                if (resultItr == null || ! resultItr.hasNext()) {
+                    return null;
+                }
+                return resultItr.next().getContent(new JacksonHandle()).get();
+            }
+            finally {
+                if (resultItr != null) {
+                    resultItr.close();
+                }
+            }
+        }
+
+        public void flush() {
+            this.getServices().delete(new RequestParameters(), new StringHandle());
+        }
+    }
+
 }
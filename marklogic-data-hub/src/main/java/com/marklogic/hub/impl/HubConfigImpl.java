@@ -125,6 +125,8 @@ public class HubConfigImpl implements HubConfig {
 
     private Boolean isHostLoadBalancer;
 
+    private Integer deployParallelism = 1;
+
     private Boolean isProvisionedEnvironment;
 
     protected String customForestPath = DEFAULT_CUSTOM_FOREST_PATH;
@@ -791,6 +793,15 @@ public class HubConfigImpl implements HubConfig {
         return isHostLoadBalancer;
     }
 
+    @Override
+    public Integer getDeployParallelism() {
+        return deployParallelism;
+    }
+
+    public void setDeployParallelism(Integer deployParallelism) {
+        this.deployParallelism = deployParallelism;
+    }
+
     @Override
     public Boolean getIsProvisionedEnvironment(){
         return isProvisionedEnvironment;
@@ -928,6 +939,8 @@ public class HubConfigImpl implements HubConfig {
             mlUsername = getEnvPropString(environmentProperties, "mlUsername", mlUsername);
             mlPassword = getEnvPropString(environmentProperties, "mlPassword", mlPassword);
 
+            deployParallelism = getEnvPropInteger(environmentProperties, "mlDeployParallelism", deployParallelism);
+
             isHostLoadBalancer = getEnvPropBoolean(environmentProperties, "mlIsHostLoadBalancer");
             String mlHost = getEnvPropString(environmentProperties, "mlHost", null);
             String lbh = getEnvPropString(environmentProperties, "mlLoadBalancerHosts", null);
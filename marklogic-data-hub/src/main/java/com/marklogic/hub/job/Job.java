@@ -30,13 +30,17 @@ public class Job {
     private String jobName;
     private Date startTime;
     private Date endTime;
+    private Date lastUpdated;
     private List<String> jobOutput;
+    private List<TuningDecision> tuningDecisions;
     private JobStatus status = JobStatus.STARTED;
 
     private long successfulEvents = 0;
     private long failedEvents = 0;
     private long successfulBatches = 0;
     private long failedBatches = 0;
+    private int percentComplete = 0;
+    private double docsPerSecond = 0;
 
     private Job() {
         this.startTime = new Date();
@@ -73,6 +77,11 @@ public class Job {
         return this;
     }
 
+    public Job withTuningDecisions(List<TuningDecision> tuningDecisions) {
+        this.tuningDecisions = tuningDecisions;
+        return this;
+    }
+
     public Job withStartTime(Date startTime) {
         this.startTime = startTime;
         return this;
@@ -83,6 +92,21 @@ public class Job {
         return this;
     }
 
+    public Job withLastUpdated(Date lastUpdated) {
+        this.lastUpdated = lastUpdated;
+        return this;
+    }
+
+    public Job withPercentComplete(int percentComplete) {
+        this.percentComplete = percentComplete;
+        return this;
+    }
+
+    public Job withDocsPerSecond(double docsPerSecond) {
+        this.docsPerSecond = docsPerSecond;
+        return this;
+    }
+
     public Job withStatus(JobStatus status) {
         this.status = status;
         return this;
@@ -125,6 +149,10 @@ public class Job {
         return this.endTime;
     }
 
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
     public JobStatus getStatus() {
         return status;
     }
@@ -133,6 +161,10 @@ public class Job {
         return jobOutput;
     }
 
+    public List<TuningDecision> getTuningDecisions() {
+        return tuningDecisions;
+    }
+
     public long getSuccessfulEvents() {
         return successfulEvents;
     }
@@ -148,4 +180,12 @@ public class Job {
     public long getFailedBatches() {
         return failedBatches;
     }
+
+    public int getPercentComplete() {
+        return percentComplete;
+    }
+
+    public double getDocsPerSecond() {
+        return docsPerSecond;
+    }
 }
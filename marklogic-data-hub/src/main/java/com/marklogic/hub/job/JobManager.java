@@ -37,6 +37,16 @@ public interface JobManager {
         return new JobManagerImpl(jobClient);
     }
 
+    /**
+     * Creates and returns a JobManager object that writes job documents to a sink
+     * @param jobClient the database client that is used to connect to the jobs database
+     * @param sink where job documents are written
+     * @return JobManager object
+     */
+    static JobManager create(DatabaseClient jobClient, JobSink sink){
+        return new JobManagerImpl(jobClient, sink);
+    }
+
     /**
      * Saves the job to the database
      * @param job - the job you want to save
@@ -50,6 +60,20 @@ public interface JobManager {
      */
     void saveJob(Job job, Transaction transaction);
 
+    /**
+     * Queues an update to a running job. Updates to the same job are coalesced and only the
+     * latest one is written, on an interval. An update that moves the job to a finished,
+     * failed, stopped or canceled status is written before this method returns, along with
+     * anything else that is queued.
+     * @param job - the job to update
+     */
+    void updateJob(Job job);
+
+    /**
+     * Writes every queued job update now
+     */
+    void flush();
+
     /**
      * @param jobIds comma-separated list of jobIds to delete.
      * @return comma-separated list of jobIds that were successfully deleted
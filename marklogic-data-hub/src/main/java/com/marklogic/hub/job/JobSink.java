@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.job;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.hub.job.impl.LocalLogJobSink;
+import com.marklogic.hub.job.impl.MarkLogicJobSink;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Where a {@link JobManager} writes job documents. The default sink writes them straight
+ * to the job database.
+ */
+public interface JobSink {
+
+    /**
+     * Creates a sink that writes job documents to the job database
+     * @param jobClient the database client that is used to connect to the jobs database
+     * @return the sink
+     */
+    static JobSink create(DatabaseClient jobClient) {
+        return new MarkLogicJobSink(jobClient);
+    }
+
+    /**
+     * Creates a sink that appends job documents to a compressed, segmented log on local disk,
+     * and a background shipper that bulk loads closed segments into the job database. Runs
+     * keep going at full speed while the job database is slow or unavailable, and the job
+     * documents catch up once it is back.
+     * @param logDir the directory the log segments are kept in
+     * @param jobClient the database client that is used to connect to the jobs database
+     * @return the sink, already shipping
+     */
+    static JobSink createLocalLog(Path logDir, DatabaseClient jobClient) {
+        return new LocalLogJobSink(logDir).startShipping(new MarkLogicJobSink(jobClient));
+    }
+
+    /**
+     * Writes a batch of job documents
+     * @param jobs the serialized job documents, keyed by job id
+     */
+    void write(Map<String, byte[]> jobs);
+
+    /**
+     * Makes everything written so far durable
+     */
+    default void flush() {}
+
+    /**
+     * Flushes and releases the sink
+     */
+    default void close() {}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.job;
+
+import java.util.Date;
+
+/**
+ * A change the flow runner made to the batch size or concurrency of an
+ * auto-tuned job, along with the measurements that led to it.
+ */
+public class TuningDecision {
+    private Date time;
+    private int batchSize;
+    private int threadCount;
+    private double docsPerSecond;
+    private long averageLatencyMillis;
+    private double errorRate;
+    private String reason;
+
+    public TuningDecision(int batchSize, int threadCount, double docsPerSecond, long averageLatencyMillis, double errorRate, String reason) {
+        this.time = new Date();
+        this.batchSize = batchSize;
+        this.threadCount = threadCount;
+        this.docsPerSecond = docsPerSecond;
+        this.averageLatencyMillis = averageLatencyMillis;
+        this.errorRate = errorRate;
+        this.reason = reason;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public double getDocsPerSecond() {
+        return docsPerSecond;
+    }
+
+    public long getAverageLatencyMillis() {
+        return averageLatencyMillis;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+}
@@ -16,20 +16,20 @@
 package com.marklogic.hub.job.impl;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.Transaction;
 import com.marklogic.client.datamovement.*;
-import com.marklogic.client.document.DocumentWriteSet;
-import com.marklogic.client.document.JSONDocumentManager;
+import com.marklogic.client.document.DocumentRecord;
 import com.marklogic.client.ext.datamovement.consumer.WriteToZipConsumer;
 import com.marklogic.client.extensions.ResourceManager;
 import com.marklogic.client.extensions.ResourceServices;
 import com.marklogic.client.io.DocumentMetadataHandle;
 import com.marklogic.client.io.Format;
-import com.marklogic.client.io.JacksonDatabindHandle;
+import com.marklogic.client.io.InputStreamHandle;
 import com.marklogic.client.io.StringHandle;
 import com.marklogic.client.query.*;
 import com.marklogic.client.util.RequestParameters;
@@ -38,25 +38,50 @@ import com.marklogic.hub.job.Job;
 import com.marklogic.hub.job.JobDeleteResponse;
 import com.marklogic.hub.job.JobExportResponse;
 import com.marklogic.hub.job.JobManager;
+import com.marklogic.hub.job.JobSink;
+import com.marklogic.hub.job.JobStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.xml.namespace.QName;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Scanner;
-import java.util.TimeZone;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class JobManagerImpl implements JobManager {
 
+    private static final Logger logger = LoggerFactory.getLogger(JobManagerImpl.class);
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 2000;
+    private static final Set<JobStatus> FINAL_STATUSES = EnumSet.of(JobStatus.FINISHED, JobStatus.FINISHED_WITH_ERRORS,
+        JobStatus.FAILED, JobStatus.STOP_ON_ERROR, JobStatus.CANCELED);
+
+    // a single daemon thread writes the queued updates of every job manager in the process
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "job-status-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private DatabaseClient jobClient;
-    private JSONDocumentManager docMgr;
+    private MarkLogicJobSink jobDatabase;
+    private JobSink sink;
     private JobDeleteResource jobDeleteRunner = null;
 
+    private final Map<String, Job> pendingJobs = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+
     private static final String ISO_8601_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
     private static SimpleDateFormat simpleDateFormat8601;
     static {
@@ -80,8 +105,17 @@ public class JobManagerImpl implements JobManager {
         .setDateFormat(simpleDateFormat8601);
 
     public JobManagerImpl(DatabaseClient jobClient) {
+        this(jobClient, null);
+    }
+
+    /**
+     * @param jobClient - the client for the job database, used for deleting, exporting and importing jobs
+     * @param sink - where job documents are written, or null to write them to the job database
+     */
+    public JobManagerImpl(DatabaseClient jobClient, JobSink sink) {
         this.jobClient = jobClient;
-        this.docMgr = jobClient.newJSONDocumentManager();
+        this.jobDatabase = new MarkLogicJobSink(jobClient);
+        this.sink = sink != null ? sink : jobDatabase;
         this.jobDeleteRunner = new JobDeleteResource(jobClient);
     }
 
@@ -89,14 +123,84 @@ public class JobManagerImpl implements JobManager {
         saveJob(job, null);
     }
 
-    @Override public void saveJob(Job job, Transaction transaction) {
-        JacksonDatabindHandle<Job> contentHandle = new JacksonDatabindHandle<>(job);
-        contentHandle.setMapper(objectMapper);
-        DocumentMetadataHandle metadataHandle = new DocumentMetadataHandle();
-        metadataHandle = metadataHandle.withCollections("job");
-        DocumentWriteSet writeSet = docMgr.newWriteSet();
-        writeSet.add("/jobs/" + job.getJobId() + ".json", metadataHandle, contentHandle);
-        docMgr.write(writeSet, transaction);
+    @Override public synchronized void saveJob(Job job, Transaction transaction) {
+        // anything queued for this job is older than what is about to be written. Holding the same
+        // monitor as flush keeps the background writer from landing a stale update after this one.
+        pendingJobs.remove(job.getJobId());
+        Map<String, byte[]> jobs = Collections.singletonMap(job.getJobId(), serialize(job));
+        if (transaction != null) {
+            // only the job database can take part in the caller's transaction
+            jobDatabase.write(jobs, transaction);
+        }
+        else {
+            sink.write(jobs);
+            sink.flush();
+        }
+    }
+
+    @Override public void updateJob(Job job) {
+        pendingJobs.put(job.getJobId(), job);
+        if (FINAL_STATUSES.contains(job.getStatus())) {
+            flush();
+        }
+        else if (flushScheduled.compareAndSet(false, true)) {
+            flusher.schedule(() -> {
+                flushScheduled.set(false);
+                try {
+                    flush();
+                }
+                catch (Exception e) {
+                    logger.warn("Unable to write job updates, will retry with the next update", e);
+                }
+            }, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override public synchronized void flush() {
+        if (pendingJobs.isEmpty()) {
+            return;
+        }
+        List<Job> jobs = new ArrayList<>();
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        for (String jobId : new ArrayList<>(pendingJobs.keySet())) {
+            Job job = pendingJobs.remove(jobId);
+            if (job != null) {
+                jobs.add(job);
+                contents.put(jobId, serialize(job));
+            }
+        }
+        try {
+            sink.write(contents);
+            sink.flush();
+        }
+        catch (RuntimeException e) {
+            // keep the updates unless a newer one for the same job has arrived meanwhile
+            jobs.forEach(job -> pendingJobs.putIfAbsent(job.getJobId(), job));
+            throw e;
+        }
+    }
+
+    /**
+     * Sets how long updates are held so that they can be coalesced before being written
+     * @param flushIntervalMillis - the interval in milliseconds
+     * @return this job manager
+     */
+    public JobManagerImpl withFlushInterval(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    private byte[] serialize(Job job) {
+        // runners keep updating the job while it is queued, so take a consistent copy of it now
+        synchronized (job) {
+            job.withLastUpdated(new Date());
+            try {
+                return objectMapper.writeValueAsBytes(job);
+            }
+            catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     @Override public JobDeleteResponse deleteJobs(String jobIds) {
@@ -109,61 +213,51 @@ public class JobManagerImpl implements JobManager {
 
         File zipFile = exportFilePath.toFile();
         WriteToZipConsumer zipConsumer = new WriteToZipConsumer(zipFile);
+        // both batchers write into the same zip, one entry per document
+        Consumer<DocumentRecord> zipWriter = record -> {
+            synchronized (zipConsumer) {
+                zipConsumer.accept(record);
+            }
+        };
 
         QueryManager qm = jobClient.newQueryManager();
-
-        // Build a query that will match everything
-        StringQueryDefinition emptyQuery = qm.newStringDefinition();
-        emptyQuery.setCriteria("");
-
-        // Get the job(s) document(s)
         StructuredQueryBuilder sqb = qm.newStructuredQueryBuilder();
-        DataMovementManager dmm = jobClient.newDataMovementManager();
-        QueryBatcher batcher = null;
-        StructuredQueryDefinition query = null;
+        StructuredQueryDefinition jobQuery;
+        StructuredQueryDefinition traceQuery;
         if (jobIds == null) {
-            batcher = dmm.newQueryBatcher(emptyQuery);
+            jobQuery = sqb.collection("job");
+            traceQuery = sqb.collection("trace");
         }
         else {
-            batcher = dmm.newQueryBatcher(sqb.value(sqb.jsonProperty("jobId"), jobIds));
+            jobQuery = sqb.value(sqb.jsonProperty("jobId"), jobIds);
+            traceQuery = sqb.value(sqb.element(new QName("jobId")), jobIds);
         }
-        batcher.onUrisReady(new ExportListener().onDocumentReady(zipConsumer));
-        JobTicket jobTicket = dmm.startJob(batcher);
 
-        batcher.awaitCompletion();
-        dmm.stopJob(batcher);
+        // export the jobs and their traces at the same time
+        DataMovementManager dmm = jobClient.newDataMovementManager();
+        QueryBatcher jobBatcher = dmm.newQueryBatcher(jobQuery)
+            .onUrisReady(new ExportListener().onDocumentReady(zipWriter));
+        QueryBatcher traceBatcher = dmm.newQueryBatcher(traceQuery)
+            .onUrisReady(new ExportListener().onDocumentReady(zipWriter));
+        JobTicket jobTicket = dmm.startJob(jobBatcher);
+        JobTicket traceTicket = dmm.startJob(traceBatcher);
+
+        jobBatcher.awaitCompletion();
+        traceBatcher.awaitCompletion();
+        dmm.stopJob(jobBatcher);
+        dmm.stopJob(traceBatcher);
+
+        long jobCount = dmm.getJobReport(jobTicket).getSuccessEventsCount();
+        long traceCount = dmm.getJobReport(traceTicket).getSuccessEventsCount();
         dmm.release();
 
-        JobReport report = dmm.getJobReport(jobTicket);
-        long jobCount = report.getSuccessEventsCount();
         response.totalJobs = jobCount;
-
+        zipConsumer.close();
         if (jobCount > 0) {
-
-            // Get the traces that go with the job(s)
-            dmm = this.jobClient.newDataMovementManager();
-            if (jobIds == null) {
-                batcher = dmm.newQueryBatcher(emptyQuery);
-            }
-            else {
-                batcher = dmm.newQueryBatcher(sqb.value(sqb.element(new QName("jobId")), jobIds));
-            }
-            batcher.onUrisReady(new ExportListener().onDocumentReady(zipConsumer));
-            jobTicket = dmm.startJob(batcher);
-
-            batcher.awaitCompletion();
-            dmm.stopJob(batcher);
-            dmm.release();
-
-            report = dmm.getJobReport(jobTicket);
-            long traceCount = report.getSuccessEventsCount();
             response.totalTraces = traceCount;
-
-            zipConsumer.close();
         }
         else {
-            // there were no jobs, so don't produce an empty zip file
-            zipConsumer.close();
+            // there were no jobs, so don't produce a zip file
             zipFile.delete();
         }
 
@@ -171,65 +265,39 @@ public class JobManagerImpl implements JobManager {
     }
 
     @Override public void importJobs(Path importFilePath) throws IOException {
-        ZipFile importZip = new ZipFile(importFilePath.toFile());
-        Enumeration<? extends ZipEntry> entries = importZip.entries();
-
-        DataMovementManager dmm = jobClient.newDataMovementManager();
-        WriteBatcher writer = dmm
-            .newWriteBatcher()
-            .withJobName("Load jobs")
-            .withBatchSize(50);
-        JobTicket ticket = dmm.startJob(writer);
-
-        // Add each Job entry to the writer; set aside the Trace entries.
-        ArrayList<ZipEntry> traceEntries = new ArrayList<ZipEntry>();
-        DocumentMetadataHandle jobMetadata = new DocumentMetadataHandle().withCollections("job");
-        while (entries.hasMoreElements()) {
-            ZipEntry entry = entries.nextElement();
-
-            if (entry.getName().startsWith("/jobs/")) {
-                // Delimiter = \A, which is the beginning of the input
-                Scanner s = new Scanner(importZip.getInputStream(entry)).useDelimiter("\\A");
-                String entryText = s.hasNext() ? s.next() : "";
-
-                writer.add(
-                    entry.getName(),
-                    jobMetadata,
-                    new StringHandle(entryText).withFormat(Format.JSON)
-                );
-            }
-            else {
-                traceEntries.add(entry);
-            }
-        }
-
-        writer.flushAndWait();
-        dmm.stopJob(ticket);
-        dmm.release();
-
-        if (traceEntries.size() > 0) {
-            dmm = this.jobClient.newDataMovementManager();
-            writer = dmm
+        try (ZipFile importZip = new ZipFile(importFilePath.toFile())) {
+            DataMovementManager dmm = jobClient.newDataMovementManager();
+            WriteBatcher jobWriter = dmm
+                .newWriteBatcher()
+                .withJobName("Load jobs")
+                .withBatchSize(50);
+            WriteBatcher traceWriter = dmm
                 .newWriteBatcher()
                 .withJobName("Load traces");
-            ticket = dmm.startJob(writer);
+            dmm.startJob(jobWriter);
+            dmm.startJob(traceWriter);
 
+            // entries are streamed from the zip as each batch is written, so nothing is held in memory
+            DocumentMetadataHandle jobMetadata = new DocumentMetadataHandle().withCollections("job");
             DocumentMetadataHandle traceMetadata = new DocumentMetadataHandle().withCollections("trace");
+            Enumeration<? extends ZipEntry> entries = importZip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                InputStreamHandle content = new InputStreamHandle(importZip.getInputStream(entry));
 
-            for (ZipEntry entry: traceEntries) {
-                // Delimiter = \A, which is the beginning of the input
-                Scanner s = new Scanner(importZip.getInputStream(entry)).useDelimiter("\\A");
-                String entryText = s.hasNext() ? s.next() : "";
-
-                writer.add(
-                    entry.getName(),
-                    traceMetadata,
-                    new StringHandle(entryText)
-                        .withFormat(entry.getName().endsWith(".json") ? Format.JSON : Format.XML)
-                );
+                if (entry.getName().startsWith("/jobs/")) {
+                    jobWriter.add(entry.getName(), jobMetadata, content.withFormat(Format.JSON));
+                }
+                else {
+                    traceWriter.add(entry.getName(), traceMetadata,
+                        content.withFormat(entry.getName().endsWith(".json") ? Format.JSON : Format.XML));
+                }
             }
-            writer.flushAndWait();
-            dmm.stopJob(ticket);
+
+            jobWriter.flushAndWait();
+            traceWriter.flushAndWait();
+            dmm.stopJob(jobWriter);
+            dmm.stopJob(traceWriter);
             dmm.release();
         }
     }
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.job.impl;
+
+import com.marklogic.hub.job.JobSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * An append-only job log on local disk.
+ *
+ * Job documents are appended to the active segment, a gzip stream that is sync-flushed
+ * after every batch so that a crash loses at most the batch being written. The active
+ * segment is rotated once it reaches a size or age limit, which closes the gzip stream
+ * and renames the file from <code>.log.gz.open</code> to <code>.log.gz</code>. Only
+ * closed segments are shipped. A segment left open by a process that died is closed
+ * when the log is next opened, and reading it stops at the last complete record.
+ *
+ * The shipper loads closed segments into a target sink oldest first, keeping only the
+ * latest document per job, and deletes each segment once it has been loaded. A segment
+ * that fails to load stays on disk and is loaded again on the next run, which is safe
+ * because job documents are written by uri.
+ */
+public class LocalLogJobSink implements JobSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalLogJobSink.class);
+
+    static final String SEGMENT_PREFIX = "jobs-";
+    static final String SEGMENT_SUFFIX = ".log.gz";
+    static final String OPEN_SUFFIX = SEGMENT_SUFFIX + ".open";
+
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_MAX_SEGMENT_AGE_MILLIS = 5000;
+    private static final long DEFAULT_SHIP_INTERVAL_MILLIS = 5000;
+    private static final int SHIP_BATCH_SIZE = 100;
+
+    private final Path dir;
+    private final Object shipLock = new Object();
+
+    private long maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private long maxSegmentAgeMillis = DEFAULT_MAX_SEGMENT_AGE_MILLIS;
+    private long shipIntervalMillis = DEFAULT_SHIP_INTERVAL_MILLIS;
+
+    private long nextSequence;
+    private Path activePath;
+    private DataOutputStream active;
+    private long activeBytes;
+    private long activeOpened;
+
+    private JobSink target;
+    private ScheduledExecutorService shipper;
+
+    /**
+     * Opens the log in a directory, closing any segment a previous process left open
+     * @param dir - the directory the segments are kept in
+     */
+    public LocalLogJobSink(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            long lastSequence = -1;
+            for (Path segment : listSegments(OPEN_SUFFIX)) {
+                Files.move(segment, closedPath(segment), StandardCopyOption.ATOMIC_MOVE);
+            }
+            for (Path segment : listSegments(SEGMENT_SUFFIX)) {
+                lastSequence = Math.max(lastSequence, sequenceOf(segment));
+            }
+            nextSequence = lastSequence + 1;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public LocalLogJobSink withMaxSegmentBytes(long maxSegmentBytes) {
+        this.maxSegmentBytes = maxSegmentBytes;
+        return this;
+    }
+
+    public LocalLogJobSink withMaxSegmentAge(long maxSegmentAgeMillis) {
+        this.maxSegmentAgeMillis = maxSegmentAgeMillis;
+        return this;
+    }
+
+    public LocalLogJobSink withShipInterval(long shipIntervalMillis) {
+        this.shipIntervalMillis = shipIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Starts shipping closed segments to a target sink in the background
+     * @param target - the sink the log is loaded into
+     * @return this sink
+     */
+    public synchronized LocalLogJobSink startShipping(JobSink target) {
+        if (shipper != null) {
+            throw new IllegalStateException("The job log in " + dir + " is already being shipped");
+        }
+        this.target = target;
+        shipper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "job-log-shipper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        shipper.scheduleWithFixedDelay(() -> {
+            try {
+                ship();
+            }
+            catch (Exception e) {
+                logger.warn("Unable to ship the job log in " + dir + ", will retry", e);
+            }
+        }, shipIntervalMillis, shipIntervalMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    @Override
+    public synchronized void write(Map<String, byte[]> jobs) {
+        try {
+            if (active == null) {
+                openSegment();
+            }
+            for (Map.Entry<String, byte[]> job : jobs.entrySet()) {
+                active.writeUTF(job.getKey());
+                active.writeInt(job.getValue().length);
+                active.write(job.getValue());
+                activeBytes += job.getValue().length;
+            }
+            active.flush();
+            if (activeBytes >= maxSegmentBytes) {
+                rotate();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (active != null) {
+            try {
+                active.flush();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Closes the active segment so that it can be shipped. The next write starts a new one.
+     */
+    public synchronized void rotate() {
+        if (active == null) {
+            return;
+        }
+        try {
+            active.close();
+            Files.move(activePath, closedPath(activePath), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            active = null;
+            activePath = null;
+        }
+    }
+
+    /**
+     * Rotates the active segment if it has reached its age limit, then loads every closed
+     * segment into the target sink, oldest first
+     */
+    public void ship() {
+        if (target == null) {
+            throw new IllegalStateException("No sink to ship the job log in " + dir + " to");
+        }
+        synchronized (this) {
+            if (active != null && System.currentTimeMillis() - activeOpened >= maxSegmentAgeMillis) {
+                rotate();
+            }
+        }
+        synchronized (shipLock) {
+            try {
+                for (Path segment : listSegments(SEGMENT_SUFFIX)) {
+                    Map<String, byte[]> batch = new LinkedHashMap<>();
+                    for (Map.Entry<String, byte[]> job : read(segment).entrySet()) {
+                        batch.put(job.getKey(), job.getValue());
+                        if (batch.size() >= SHIP_BATCH_SIZE) {
+                            target.write(batch);
+                            batch = new LinkedHashMap<>();
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        target.write(batch);
+                    }
+                    target.flush();
+                    Files.delete(segment);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Stops the shipper and ships whatever is left. Anything that can't be shipped now
+     * stays in the log for the next time it is opened.
+     */
+    @Override
+    public void close() {
+        ScheduledExecutorService shipper;
+        synchronized (this) {
+            shipper = this.shipper;
+            this.shipper = null;
+        }
+        if (shipper != null) {
+            shipper.shutdown();
+            try {
+                shipper.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        rotate();
+        if (target != null) {
+            try {
+                ship();
+            }
+            catch (Exception e) {
+                logger.warn("Unable to ship the job log in " + dir + ", it will be shipped when the log is next opened", e);
+            }
+        }
+    }
+
+    /**
+     * Reads a closed segment, keeping the latest document for each job. A segment that was
+     * cut short is read up to its last complete record.
+     * @param segment - the segment to read
+     * @return the job documents keyed by job id, in the order the jobs first appear
+     * @throws IOException if the segment can't be opened
+     */
+    static Map<String, byte[]> read(Path segment) throws IOException {
+        Map<String, byte[]> jobs = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(segment))))) {
+            while (true) {
+                String jobId = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                jobs.put(jobId, content);
+            }
+        }
+        catch (EOFException | ZipException e) {
+            // the end of the segment, or the end of what made it to disk
+        }
+        return jobs;
+    }
+
+    List<Path> listSegments(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                .filter(path -> {
+                    String name = path.getFileName().toString();
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(suffix);
+                })
+                .sorted()
+                .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private void openSegment() throws IOException {
+        activePath = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, OPEN_SUFFIX));
+        // sync flush so that every flushed batch can be read back even if the process dies
+        active = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(activePath), true)));
+        activeBytes = 0;
+        activeOpened = System.currentTimeMillis();
+    }
+
+    private static Path closedPath(Path openSegment) {
+        String name = openSegment.getFileName().toString();
+        return openSegment.resolveSibling(name.substring(0, name.length() - OPEN_SUFFIX.length()) + SEGMENT_SUFFIX);
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.job.impl;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.Transaction;
+import com.marklogic.client.document.DocumentWriteSet;
+import com.marklogic.client.document.JSONDocumentManager;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.Format;
+import com.marklogic.hub.job.JobSink;
+
+import java.util.Map;
+
+/**
+ * Writes job documents to the job database, one write set per batch
+ */
+public class MarkLogicJobSink implements JobSink {
+
+    private final JSONDocumentManager docMgr;
+
+    public MarkLogicJobSink(DatabaseClient jobClient) {
+        this.docMgr = jobClient.newJSONDocumentManager();
+    }
+
+    @Override
+    public void write(Map<String, byte[]> jobs) {
+        write(jobs, null);
+    }
+
+    /**
+     * Writes a batch of job documents as part of a transaction
+     * @param jobs the serialized job documents, keyed by job id
+     * @param transaction the transaction to write in, or null to commit on its own
+     */
+    public void write(Map<String, byte[]> jobs, Transaction transaction) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        DocumentMetadataHandle metadataHandle = new DocumentMetadataHandle().withCollections("job");
+        DocumentWriteSet writeSet = docMgr.newWriteSet();
+        jobs.forEach((jobId, content) ->
+            writeSet.add("/jobs/" + jobId + ".json", metadataHandle, new BytesHandle(content).withFormat(Format.JSON)));
+        docMgr.write(writeSet, transaction);
+    }
+}
@@ -21,15 +21,46 @@ import com.marklogic.client.ext.modulesloader.ModulesManager;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Decides which modules need to be redeployed by comparing a SHA-256 hash of each file against the hash recorded
+ * the last time it was loaded, so a checkout or clone that only touches mtimes doesn't force a full redeploy.
+ * <p>
+ * The index is kept in memory and only written by {@link #flush()}, once per deploy rather than once per module.
+ * The last loaded timestamp is still recorded under the file's key so the properties file stays readable by
+ * PropertiesModuleManager; hashes are stored alongside it under "sha256:" prefixed keys.
+ * </p>
+ */
 public class HubModuleManager extends LoggingObject implements ModulesManager {
     public static final String DEFAULT_FILE_PATH = "build/ml-javaclient-util/module-timestamps.properties";
 
+    private static final String HASH_KEY_PREFIX = "sha256:";
+
     private Properties props;
     private String propertiesFilePath;
     private long minimumFileTimestampToLoad;
+    private boolean initialized = false;
+    private boolean dirty = false;
+    // hashes computed while checking a file, so saving it right afterwards doesn't read it a second time
+    private Map<String, String> computedHashes = new HashMap<>();
 
     public HubModuleManager(String propertiesFilePath) {
         props = new Properties();
@@ -37,8 +68,16 @@ public class HubModuleManager extends LoggingObject implements ModulesManager {
         initialize();
     }
 
+    /**
+     * Loads the index from disk. The modules loader calls this before every loadModules call, so only the first
+     * call reads the file; after that the in memory index, which may hold unflushed entries, wins.
+     */
     @Override
-    public void initialize() {
+    public synchronized void initialize() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
         File propertiesFile = new File(propertiesFilePath);
         propertiesFile.getParentFile().mkdirs();
         if (propertiesFile.exists()) {
@@ -61,12 +100,14 @@ public class HubModuleManager extends LoggingObject implements ModulesManager {
         }
     }
 
-    public void deletePropertiesFile() {
+    public synchronized void deletePropertiesFile() {
         File propertiesFile = new File(propertiesFilePath);
         if (propertiesFile.exists()) {
             propertiesFile.delete();
-            props.clear();
         }
+        props.clear();
+        computedHashes.clear();
+        dirty = false;
     }
 
     public boolean hasFileBeenModifiedSinceLastLoaded(File file) {
@@ -79,10 +120,23 @@ public class HubModuleManager extends LoggingObject implements ModulesManager {
         }
 
         String key = buildKey(file);
-        return hasKeyBeenModified(key, file.lastModified());
+        String lastHash;
+        synchronized (this) {
+            lastHash = props.getProperty(HASH_KEY_PREFIX + key);
+        }
+        if (lastHash == null) {
+            // recorded before hashes were kept, or never loaded
+            return hasKeyBeenModified(key, file.lastModified());
+        }
+
+        String hash = hash(file);
+        synchronized (this) {
+            computedHashes.put(key, hash);
+        }
+        return !lastHash.equals(hash);
     }
 
-    public boolean hasKeyBeenModified(String key, long lastModified) {
+    public synchronized boolean hasKeyBeenModified(String key, long lastModified) {
         String value = props.getProperty(key);
         if (value != null) {
             long lastLoaded = Long.parseLong(value);
@@ -93,23 +147,128 @@ public class HubModuleManager extends LoggingObject implements ModulesManager {
 
     public void saveLastLoadedTimestamp(File file, Date date) {
         String key = buildKey(file);
-        saveLastLoadedTimestamp(key, date);
+        String hash;
+        synchronized (this) {
+            hash = computedHashes.remove(key);
+        }
+        if (hash == null) {
+            hash = hash(file);
+        }
+        synchronized (this) {
+            props.setProperty(HASH_KEY_PREFIX + key, hash);
+            saveLastLoadedTimestamp(key, date);
+        }
     }
 
-    public void saveLastLoadedTimestamp(String key, Date date) {
+    public synchronized void saveLastLoadedTimestamp(String key, Date date) {
         props.setProperty(key, date.getTime() + "");
-        FileWriter fw = null;
+        dirty = true;
+    }
+
+    /**
+     * Writes the index to disk if anything was saved since the last flush. The file is written next to the
+     * existing one and moved into place so a failed deploy never leaves a truncated index behind.
+     */
+    public synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        File propertiesFile = new File(propertiesFilePath);
+        File tempFile = new File(propertiesFilePath + ".tmp");
         try {
-            fw = new FileWriter(new File(propertiesFilePath));
-            props.store(fw, "");
+            try (Writer fw = new FileWriter(tempFile)) {
+                props.store(fw, "");
+            }
+            Files.move(tempFile.toPath(), propertiesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
         } catch (Exception e) {
             logger.warn("Unable to store properties, cause: " + e.getMessage());
-        } finally {
-            try {
-                fw.close();
-            } catch (Exception e) {
-                logger.warn(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a manifest of every file under <code>dir</code>, keyed by its path relative to <code>dir</code>, so
+     * it can be kept with a build and compared against a later checkout with {@link #changedSince(Path, Path)}.
+     *
+     * @param manifest - the manifest file to write
+     * @param dir - the directory to hash, usually the project's plugins directory
+     */
+    public static void writeManifest(Path manifest, Path dir) {
+        Properties entries = new Properties();
+        for (Path file : listFiles(dir)) {
+            entries.setProperty(relativeKey(dir, file), hash(file.toFile()));
+        }
+        try {
+            if (manifest.getParent() != null) {
+                Files.createDirectories(manifest.getParent());
+            }
+            try (Writer writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+                entries.store(writer, "");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lists the files under <code>dir</code> that were added or whose contents differ from a manifest written by
+     * {@link #writeManifest(Path, Path)}. Only content is compared, so a fresh clone reports nothing unless
+     * something really changed.
+     *
+     * @param manifest - a manifest from an earlier build; if it doesn't exist every file is reported
+     * @param dir - the directory to compare, relative to which the manifest was written
+     * @return the changed files, in path order
+     */
+    public static List<Path> changedSince(Path manifest, Path dir) {
+        Properties entries = new Properties();
+        if (Files.exists(manifest)) {
+            try (Reader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+                entries.load(reader);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        List<Path> changed = new ArrayList<>();
+        for (Path file : listFiles(dir)) {
+            String lastHash = entries.getProperty(relativeKey(dir, file));
+            if (lastHash == null || !lastHash.equals(hash(file.toFile()))) {
+                changed.add(file);
+            }
+        }
+        return changed;
+    }
+
+    private static List<Path> listFiles(Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String relativeKey(Path dir, Path file) {
+        return dir.relativize(file).toString().replace('\\', '/');
+    }
+
+    private static String hash(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
             }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
     }
 
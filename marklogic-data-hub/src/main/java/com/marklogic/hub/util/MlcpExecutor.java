@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.util;
+
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs mlcp inside the current JVM. When one is set on an {@link MlcpRunner} the runner
+ * hands it the mlcp arguments instead of forking a java process and reading its output.
+ */
+public interface MlcpExecutor {
+
+    /**
+     * Runs an mlcp command to completion
+     * @param args - the mlcp arguments, starting with the command name
+     * @param progress - receives the percent complete while mlcp runs
+     * @return the counters mlcp reported when it finished, such as OUTPUT_RECORDS_COMMITTED, by name
+     * @throws Exception if mlcp could not be run
+     */
+    Map<String, Long> execute(String[] args, IntConsumer progress) throws Exception;
+
+    /**
+     * Stops the mlcp command this executor is running, if any
+     * @param force - true to stop it even if that means abandoning work in progress
+     */
+    default void cancel(boolean force) {
+    }
+}
@@ -20,6 +20,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.contentpump.bean.MlcpBean;
 import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.flow.CancellableJob;
 import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.flow.FlowStatusListener;
 import com.marklogic.hub.job.Job;
@@ -35,9 +36,11 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
-public class MlcpRunner extends ProcessRunner {
+public class MlcpRunner extends ProcessRunner implements CancellableJob {
 
     private static Logger logger = LoggerFactory.getLogger(MlcpRunner.class);
+    private static final String OUTPUT_RECORDS_COMMITTED = "OUTPUT_RECORDS_COMMITTED";
+    private static final String OUTPUT_RECORDS_FAILED = "OUTPUT_RECORDS_FAILED";
     private JobManager jobManager;
     private Flow flow;
     private JsonNode mlcpOptions;
@@ -49,6 +52,9 @@ public class MlcpRunner extends ProcessRunner {
     private String mainClass;
     private DatabaseClient databaseClient;
     private String database = null;
+    private Job job;
+    private MlcpExecutor executor = null;
+    private volatile boolean canceled = false;
 
     public MlcpRunner(String mlcpPath, String mainClass, HubConfig hubConfig, Flow flow, DatabaseClient databaseClient, JsonNode mlcpOptions, FlowStatusListener statusListener) {
         super();
@@ -64,19 +70,37 @@ public class MlcpRunner extends ProcessRunner {
         this.databaseClient = databaseClient;
     }
 
+    @Override
     public String getJobId() {
         return jobId;
     }
 
+    @Override
+    public void cancel(boolean force) {
+        canceled = true;
+        if (executor != null) {
+            executor.cancel(force);
+        }
+        else {
+            stopProcess(force);
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        return getState() == State.TERMINATED;
+    }
+
     // TODO: add destination database here
     @Override
     public void run() {
         HubConfig hubConfig = getHubConfig();
 
-        Job job = Job.withFlow(flow)
+        job = Job.withFlow(flow)
             .withJobId(jobId);
         jobManager.saveJob(job);
 
+        boolean failed = false;
         try {
             MlcpBean bean = new ObjectMapper().readerFor(MlcpBean.class).readValue(mlcpOptions);
             bean.setHost(databaseClient.getHost());
@@ -99,22 +123,39 @@ public class MlcpRunner extends ProcessRunner {
                 bean.setRestrict_hosts(true);
             }
 
-            buildCommand(bean);
-
-            super.run();
+            if (executor != null) {
+                runInProcess(bean);
+            }
+            else {
+                buildCommand(bean);
+                super.run();
+            }
 
             if (flowStatusListener != null) {
                 flowStatusListener.onStatusChange(jobId, 100, "");
             }
 
         } catch (Exception e) {
+            // the job is written with its final status below
+            failed = true;
             job.withStatus(JobStatus.FAILED)
                 .withEndTime(new Date());
-            jobManager.saveJob(job);
-            throw new RuntimeException(e);
+            if (executor != null) {
+                // there is no process output to keep, so keep the reason instead
+                job.withJobOutput(e.toString());
+            }
+            if (!canceled) {
+                throw new RuntimeException(e);
+            }
         } finally {
             JobStatus status;
-            if (failedEvents.get() > 0 && successfulEvents.get() > 0) {
+            if (canceled) {
+                status = JobStatus.CANCELED;
+            }
+            else if (failed) {
+                status = JobStatus.FAILED;
+            }
+            else if (failedEvents.get() > 0 && successfulEvents.get() > 0) {
                 status = JobStatus.FINISHED_WITH_ERRORS;
             }
             else if (failedEvents.get() == 0 && successfulEvents.get() > 0) {
@@ -125,8 +166,10 @@ public class MlcpRunner extends ProcessRunner {
             }
 
             // store the thing in MarkLogic
-            job.withJobOutput(getProcessOutput())
-                .withStatus(status)
+            if (executor == null) {
+                job.withJobOutput(getProcessOutput());
+            }
+            job.withStatus(status)
                 .setCounts(successfulEvents.get(), failedEvents.get(), 0, 0)
                 .withEndTime(new Date());
             jobManager.saveJob(job);
@@ -237,7 +280,35 @@ public class MlcpRunner extends ProcessRunner {
         this.withArgs(args);
 
         this.withStreamConsumer(new MlcpConsumer(successfulEvents,
-            failedEvents, flowStatusListener, jobId));
+            failedEvents, this::onStatusChange, jobId));
+    }
+
+    private void runInProcess(MlcpBean bean) throws Exception {
+        Map<String, Long> counters = executor.execute(bean.buildArgs(),
+            percentComplete -> onStatusChange(jobId, percentComplete, ""));
+        successfulEvents.addAndGet(counters.getOrDefault(OUTPUT_RECORDS_COMMITTED, 0L));
+        failedEvents.addAndGet(counters.getOrDefault(OUTPUT_RECORDS_FAILED, 0L));
+    }
+
+    private void onStatusChange(String jobId, int percentComplete, String message) {
+        if (job != null && percentComplete != job.getPercentComplete()) {
+            // the job manager coalesces these, so the job document is only written every few seconds
+            synchronized (job) {
+                job.withPercentComplete(percentComplete);
+            }
+            jobManager.updateJob(job);
+        }
+        if (flowStatusListener != null) {
+            flowStatusListener.onStatusChange(jobId, percentComplete, message);
+        }
+    }
+
+    /**
+     * Runs mlcp in this JVM with the given executor instead of forking a new java process
+     * @param executor the executor to run mlcp with, or null to fork a process
+     */
+    public void setExecutor(MlcpExecutor executor) {
+        this.executor = executor;
     }
 
     /**
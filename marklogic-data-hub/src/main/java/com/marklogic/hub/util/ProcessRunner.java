@@ -33,6 +33,7 @@ public class ProcessRunner extends Thread {
 
     private List<String> args;
     private Consumer<String> consumer;
+    private volatile Process process = null;
 
     public HubConfig getHubConfig() {
         return hubConfig;
@@ -71,7 +72,7 @@ public class ProcessRunner extends Thread {
             logger.error(String.join(" ", args));
             ProcessBuilder pb = new ProcessBuilder(args);
             pb.redirectErrorStream(true);
-            Process process = pb.start();
+            process = pb.start();
 
             StreamGobbler gobbler = new StreamGobbler(process.getInputStream(), status -> {
                 synchronized (processOutput) {
@@ -86,4 +87,20 @@ public class ProcessRunner extends Thread {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Stops the child process if it is running
+     * @param force - true to kill the process outright, false to ask it to shut down
+     */
+    public void stopProcess(boolean force) {
+        Process running = process;
+        if (running != null && running.isAlive()) {
+            if (force) {
+                running.destroyForcibly();
+            }
+            else {
+                running.destroy();
+            }
+        }
+    }
 }
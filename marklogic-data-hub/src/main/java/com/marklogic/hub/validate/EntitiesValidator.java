@@ -41,6 +41,14 @@ public interface EntitiesValidator {
      */
     JsonNode validateAll();
 
+    /**
+     * Validates the collector and plugins of a single flow, returning errors in the same shape as validateAll
+     * @param entity - name of the entity the flow belongs to
+     * @param flow - name of the flow to validate
+     * @return JsonNode from jackson showing if the flow's modules are valid or not
+     */
+    JsonNode validateFlow(String entity, String flow);
+
     /**
      * Creates and returns a an EntityValidator object
      * @param  entity - name of the entity you are attempting to validate
@@ -42,6 +42,18 @@ public class EntitiesValidatorImpl extends ResourceManager implements EntitiesVa
         return res.getContent(new JacksonHandle()).get();
     }
 
+    @Override public JsonNode validateFlow(String entity, String flow) {
+        RequestParameters params = new RequestParameters();
+        params.add("entity", entity);
+        params.add("flow", flow);
+        ResourceServices.ServiceResultIterator resultItr = this.getServices().get(params);
+        if (resultItr == null || ! resultItr.hasNext()) {
+            return null;
+        }
+        ResourceServices.ServiceResult res = resultItr.next();
+        return res.getContent(new JacksonHandle()).get();
+    }
+
     @Override public JsonNode validate(String entity, String flow, String plugin, String type, String content) {
         RequestParameters params = new RequestParameters();
         params.add("entity", entity);
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import com.marklogic.hub.FlowManager;
+import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.HubTestBase;
+import com.marklogic.hub.flow.*;
+import com.marklogic.hub.scaffold.Scaffolding;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CollectorOptionsTest extends HubTestBase {
+
+    private static final String ENTITY = "streamentity";
+    private static final String FLOW = "testharmonize";
+    private static Path projectDir = Paths.get(".", "ye-olde-project");
+
+    @Before
+    public void setup() throws IOException {
+        XMLUnit.setIgnoreWhitespace(true);
+        deleteProjectDir();
+
+        createProjectDir();
+
+        Scaffolding scaffolding = Scaffolding.create(projectDir.toString(), stagingClient);
+        scaffolding.createEntity(ENTITY);
+        scaffolding.createFlow(ENTITY, FLOW, FlowType.HARMONIZE,
+            CodeFormat.XQUERY, DataFormat.XML, false);
+
+        clearUserModules();
+        installUserModules(getHubAdminConfig(), true);
+        clearDatabases(HubConfig.DEFAULT_STAGING_NAME, HubConfig.DEFAULT_FINAL_NAME, HubConfig.DEFAULT_JOB_NAME);
+
+        installModule("/entities/" + ENTITY + "/harmonize/" + FLOW + "/collector.xqy", "collector-test/collector-with-options.xqy");
+    }
+
+    private HashMap<String, Object> newOptions() {
+        HashMap<String, Object> options = new HashMap<>();
+        options.put("prefix", "/d\u00e9j\u00e0 vu/");
+        options.put("count", 3);
+        // far longer than a url can carry, so the options have to travel in the request body
+        char[] padding = new char[100000];
+        Arrays.fill(padding, 'x');
+        options.put("padding", new String(padding));
+        return options;
+    }
+
+    private List<String> expectedUris() {
+        return Arrays.asList("/d\u00e9j\u00e0 vu/1", "/d\u00e9j\u00e0 vu/2", "/d\u00e9j\u00e0 vu/3", "padding-100000");
+    }
+
+    private Collector newCollector() {
+        HubConfig hubConfig = getHubFlowRunnerConfig();
+        Flow harmonizeFlow = FlowManager.create(hubConfig).getFlow(ENTITY, FLOW, FlowType.HARMONIZE);
+        Collector collector = harmonizeFlow.getCollector();
+        collector.setHubConfig(hubConfig);
+        collector.setClient(hubConfig.newStagingClient());
+        return collector;
+    }
+
+    @Test
+    public void runCollectorWithOptions() {
+        List<String> uris = new ArrayList<>();
+        newCollector().run("options-job", ENTITY, FLOW, 1, newOptions()).iterator().forEachRemaining(uris::add);
+        assertEquals(expectedUris(), uris);
+    }
+
+    @Test
+    public void streamCollectorWithOptions() {
+        StreamingDiskQueue queue = new StreamingDiskQueue(100);
+        newCollector().run("options-job", ENTITY, FLOW, 1, newOptions(), queue);
+
+        List<String> uris = new ArrayList<>();
+        queue.iterator().forEachRemaining(uris::add);
+        assertEquals(expectedUris(), uris);
+    }
+}
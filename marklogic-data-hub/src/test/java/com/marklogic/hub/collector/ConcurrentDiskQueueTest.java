@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import org.junit.Test;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentDiskQueueTest {
+
+    @Test(expected = InvalidParameterException.class)
+    public void testSizeTooSmall() {
+        new ConcurrentDiskQueue(0);
+    }
+
+    @Test
+    public void testSpillsAndKeepsOrder() {
+        ConcurrentDiskQueue instance = new ConcurrentDiskQueue(2);
+        for (int i = 0; i < 100; i++) {
+            instance.add(Integer.toString(i));
+        }
+        assertEquals(100, instance.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.toString(i), instance.poll());
+        }
+        for (int i = 100; i < 150; i++) {
+            instance.add(Integer.toString(i));
+        }
+        for (int i = 50; i < 150; i++) {
+            assertEquals(Integer.toString(i), instance.poll());
+        }
+        assertNull(instance.poll());
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void testDrainTo() {
+        ConcurrentDiskQueue instance = new ConcurrentDiskQueue(4);
+        for (int i = 0; i < 10; i++) {
+            instance.add(Integer.toString(i));
+        }
+        String[] batch = new String[8];
+        assertEquals(8, instance.drainTo(batch, 8));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(Integer.toString(i), batch[i]);
+        }
+        assertEquals(2, instance.drainTo(batch, 8));
+        assertEquals(0, instance.drainTo(batch, 8));
+    }
+
+    @Test
+    public void testIteratorStopsOnceClosed() {
+        ConcurrentDiskQueue instance = new ConcurrentDiskQueue(1);
+        instance.add("1");
+        instance.add("2");
+        instance.close();
+        Iterator<String> iterator = instance.iterator();
+        assertEquals("1", iterator.next());
+        assertEquals("2", iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterClose() {
+        ConcurrentDiskQueue instance = new ConcurrentDiskQueue(1);
+        instance.close();
+        instance.add("1");
+    }
+
+    @Test
+    public void testOneProducerManyConsumers() throws InterruptedException {
+        ConcurrentDiskQueue instance = new ConcurrentDiskQueue(64);
+        int count = 200000;
+        int consumerCount = 8;
+
+        List<List<String>> results = new ArrayList<>();
+        List<Thread> consumers = new ArrayList<>();
+        for (int c = 0; c < consumerCount; c++) {
+            List<String> consumed = new ArrayList<>();
+            results.add(consumed);
+            Thread consumer = new Thread(() -> {
+                String[] batch = new String[10];
+                try {
+                    int n;
+                    while ((n = instance.take(batch, batch.length)) > 0) {
+                        for (int i = 0; i < n; i++) {
+                            consumed.add(batch[i]);
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            consumers.add(consumer);
+            consumer.start();
+        }
+
+        for (int i = 0; i < count; i++) {
+            instance.add(Integer.toString(i));
+        }
+        instance.close();
+        for (Thread consumer : consumers) {
+            consumer.join(30000);
+            assertFalse(consumer.isAlive());
+        }
+
+        BitSet seen = new BitSet(count);
+        int total = 0;
+        for (List<String> consumed : results) {
+            int previous = -1;
+            for (String s : consumed) {
+                int value = Integer.parseInt(s);
+                assertFalse("duplicate " + value, seen.get(value));
+                seen.set(value);
+                // each consumer sees elements in the order they were added
+                assertTrue(value > previous);
+                previous = value;
+                total++;
+            }
+        }
+        assertEquals(count, total);
+        assertEquals(count, instance.getAddedCount());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class MappedSegmentStoreTest {
+
+    @Test
+    public void testRollsOverAndRecyclesSegments() throws IOException {
+        MappedSegmentStore store = new MappedSegmentStore(null, 64);
+        String[] batch = new String[7];
+        int next = 0;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                store.write("/uri/" + (round * 20 + i) + ".json");
+            }
+            assertEquals(20, store.size());
+            int read;
+            while ((read = store.read(batch, 0, batch.length)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    assertEquals("/uri/" + next++ + ".json", batch[i]);
+                }
+            }
+            assertTrue(store.isEmpty());
+        }
+        assertEquals(100, next);
+        store.close();
+    }
+
+    @Test
+    public void testRecordLargerThanSegment() throws IOException {
+        MappedSegmentStore store = new MappedSegmentStore(null, 32);
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            big.append("\u00e9\u4e2d");
+        }
+        store.write("small");
+        store.write(big.toString());
+        store.write("after");
+
+        String[] batch = new String[3];
+        assertEquals(3, store.read(batch, 0, 3));
+        assertEquals("small", batch[0]);
+        assertEquals(big.toString(), batch[1]);
+        assertEquals("after", batch[2]);
+        store.close();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.*;
+
+public class StreamingDiskQueueTest {
+
+    @Test
+    public void testIteratorDrainsAfterClose() {
+        StreamingDiskQueue instance = new StreamingDiskQueue(1);
+        instance.add("1");
+        instance.add("2");
+        instance.add("3");
+        instance.close();
+
+        Iterator<String> iterator = instance.iterator();
+        assertEquals("1", iterator.next());
+        assertEquals("2", iterator.next());
+        assertEquals("3", iterator.next());
+        assertFalse(iterator.hasNext());
+        assertEquals(3, instance.getAddedCount());
+    }
+
+    @Test
+    public void testConsumerRunsWhileProducerFills() throws InterruptedException {
+        StreamingDiskQueue instance = new StreamingDiskQueue(10);
+        int count = 100000;
+
+        List<String> results = new ArrayList<>();
+        Thread consumer = new Thread(() -> instance.forEach(results::add));
+        consumer.start();
+
+        for (int i = 0; i < count; i++) {
+            instance.add(Integer.toString(i));
+        }
+        instance.close();
+        consumer.join(10000);
+
+        assertFalse(consumer.isAlive());
+        assertEquals(count, results.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.toString(i), results.get(i));
+        }
+    }
+
+    @Test
+    public void testFailClosesQueue() {
+        StreamingDiskQueue instance = new StreamingDiskQueue(1);
+        instance.add("1");
+        RuntimeException failure = new RuntimeException("collector failed");
+        instance.fail(failure);
+
+        assertTrue(instance.isClosed());
+        assertSame(failure, instance.getFailure());
+
+        Iterator<String> iterator = instance.iterator();
+        assertEquals("1", iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterClose() {
+        StreamingDiskQueue instance = new StreamingDiskQueue(1);
+        instance.close();
+        instance.add("1");
+    }
+
+    @Test
+    public void testCancelStopsProducer() {
+        StreamingDiskQueue instance = new StreamingDiskQueue(1);
+        instance.add("1");
+        instance.cancel();
+
+        assertTrue(instance.isClosed());
+        assertTrue(instance.isCanceled());
+        assertNull(instance.getFailure());
+        try {
+            instance.add("2");
+            fail("add should fail once the queue is canceled");
+        }
+        catch (CancellationException e) {
+            // expected
+        }
+        assertEquals(1, instance.getAddedCount());
+    }
+}
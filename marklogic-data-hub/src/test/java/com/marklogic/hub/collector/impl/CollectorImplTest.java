@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector.impl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class CollectorImplTest {
+
+    private String chunk(String... uris) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(String.join("\n", uris).getBytes(StandardCharsets.UTF_8));
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    private List<String> read(String body, boolean compressed) throws IOException {
+        List<String> uris = new ArrayList<>();
+        CollectorImpl.readUris(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), compressed, uris::add);
+        return uris;
+    }
+
+    @Test
+    public void testReadsCompressedChunks() throws IOException {
+        String body = chunk("/a.json", "/b.json") + "\n" + chunk("/d\u00e9j\u00e0 vu.json");
+        assertEquals(Arrays.asList("/a.json", "/b.json", "/d\u00e9j\u00e0 vu.json"), read(body, true));
+    }
+
+    @Test
+    public void testReadsPlainUris() throws IOException {
+        assertEquals(Arrays.asList("/a.json", "/b.json"), read("/a.json\n/b.json", false));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.deploy.util;
+
+import com.marklogic.appdeployer.command.AbstractCommand;
+import com.marklogic.appdeployer.command.CommandContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ParallelCommandExecutorTest {
+
+    private static class RecordingCommand extends AbstractCommand {
+        private final String name;
+        private final List<String> log;
+        private final CountDownLatch latch;
+
+        RecordingCommand(String name, int sortOrder, List<String> log, CountDownLatch latch) {
+            this.name = name;
+            this.log = log;
+            this.latch = latch;
+            setExecuteSortOrder(sortOrder);
+        }
+
+        @Override
+        public void execute(CommandContext context) {
+            log.add("start " + name);
+            if (latch != null) {
+                latch.countDown();
+                try {
+                    // only returns once every command in the latch group is running at the same time
+                    assertTrue(latch.await(10, TimeUnit.SECONDS));
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            log.add("end " + name);
+        }
+    }
+
+    // distinct classes so the executor treats them as independent resources
+    private static class FirstCommand extends RecordingCommand {
+        FirstCommand(int sortOrder, List<String> log, CountDownLatch latch) { super("first", sortOrder, log, latch); }
+    }
+
+    private static class SecondCommand extends RecordingCommand {
+        SecondCommand(int sortOrder, List<String> log, CountDownLatch latch) { super("second", sortOrder, log, latch); }
+    }
+
+    private static class ThirdCommand extends RecordingCommand {
+        ThirdCommand(int sortOrder, List<String> log, CountDownLatch latch) { super("third", sortOrder, log, latch); }
+    }
+
+    @Test
+    public void testSameSortOrderRunsConcurrently() {
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(2);
+        new ParallelCommandExecutor(4)
+            .addCommands(Arrays.asList(new ThirdCommand(20, log, null), new FirstCommand(10, log, latch)), null)
+            .addCommands(Arrays.asList(new SecondCommand(10, log, latch)), null)
+            .run(null);
+
+        assertEquals(6, log.size());
+        // the sort order 20 command waits for both of the sort order 10 commands
+        assertEquals(Arrays.asList("start third", "end third"), log.subList(4, 6));
+    }
+
+    @Test
+    public void testSameResourceRunsSerially() {
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        new ParallelCommandExecutor(4)
+            .addCommands(Arrays.asList(new RecordingCommand("final", 10, log, null)), null)
+            .addCommands(Arrays.asList(new RecordingCommand("staging", 10, log, null)), null)
+            .run(null);
+
+        assertEquals(Arrays.asList("start final", "end final", "start staging", "end staging"), log);
+    }
+
+    @Test
+    public void testSingleThreadKeepsSerialOrder() {
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        List<String> started = new ArrayList<>();
+        AtomicInteger finished = new AtomicInteger();
+        new ParallelCommandExecutor(1)
+            .addCommands(Arrays.asList(new ThirdCommand(30, log, null), new FirstCommand(10, log, null)), null)
+            .addCommands(Arrays.asList(new SecondCommand(20, log, null)), null)
+            .run(new ParallelCommandExecutor.StepListener() {
+                @Override
+                public void onStepStarted(ParallelCommandExecutor.Step step, int startedCount, int finishedCount, int total) {
+                    started.add(step.getSortOrder() + ":" + startedCount + "/" + total);
+                }
+
+                @Override
+                public void onStepFinished(ParallelCommandExecutor.Step step, int finishedCount, int total) {
+                    finished.set(finishedCount);
+                }
+            });
+
+        // each list runs on its own in sort order, the way final and then staging were deployed
+        assertEquals(Arrays.asList("start first", "end first", "start third", "end third", "start second", "end second"), log);
+        assertEquals(Arrays.asList("10:1/3", "30:2/3", "20:3/3"), started);
+        assertEquals(3, finished.get());
+    }
+
+    @Test
+    public void testFailureStopsLaterCommands() {
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        RecordingCommand failing = new RecordingCommand("failing", 10, log, null) {
+            @Override
+            public void execute(CommandContext context) {
+                throw new IllegalStateException("boom");
+            }
+        };
+        try {
+            new ParallelCommandExecutor(2)
+                .addCommands(Arrays.asList(failing, new SecondCommand(20, log, null)), null)
+                .run(null);
+            fail("expected the command failure to be rethrown");
+        }
+        catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertTrue(log.isEmpty());
+    }
+}
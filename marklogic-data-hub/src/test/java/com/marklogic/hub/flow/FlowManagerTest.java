@@ -15,6 +15,7 @@
  */
 package com.marklogic.hub.flow;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.marklogic.client.io.DOMHandle;
 import com.marklogic.client.io.DocumentMetadataHandle;
 import com.marklogic.hub.FlowManager;
@@ -38,12 +39,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.marklogic.client.io.DocumentMetadataHandle.Capability.*;
 import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 public class FlowManagerTest extends HubTestBase {
 
@@ -276,6 +280,23 @@ public class FlowManagerTest extends HubTestBase {
         assertEquals("/entities/test/harmonize/my-test-flow1/main.sjs", main.getModule());
     }
 
+    @Test
+    public void testFlushFlowCache() {
+        installModule("/entities/test/harmonize/my-test-flow1/my-test-flow1.xml", "flow-manager-test/my-test-flow1/my-test-flow1-json.xml");
+
+        FlowManager fm = FlowManager.create(getHubAdminConfig());
+        fm.flushFlowCache();
+        assertEquals(0, fm.getFlowCache().size());
+
+        assertNotNull(fm.getFlow("test", "my-test-flow1", FlowType.HARMONIZE));
+        JsonNode cache = fm.getFlowCache();
+        assertEquals(1, cache.size());
+        assertEquals("/entities/test/harmonize/my-test-flow1/my-test-flow1.xml", cache.get(0).get("uris").get(0).asText());
+
+        fm.flushFlowCache();
+        assertEquals(0, fm.getFlowCache().size());
+    }
+
     @Test
     public void testRunFlow() throws SAXException, IOException, ParserConfigurationException, XMLStreamException {
         addStagingDocs();
@@ -300,6 +321,93 @@ public class FlowManagerTest extends HubTestBase {
         assertEquals("Default permissions on harmonized documents should contain harmonized-updater/update", permissions.get("harmonized-updater").toString(), "[UPDATE]");
     }
 
+    @Test
+    public void testRunPartitionedFlow() {
+        addStagingDocs();
+        installModules();
+        installModule("/entities/test/harmonize/my-test-flow1/collector.xqy", "flow-manager-test/my-test-flow1/collector-partitioned.xqy");
+        installModule("/entities/test/harmonize/my-test-flow1/my-test-flow1.xml", "flow-manager-test/my-test-flow1/my-test-flow1-partitioned.xml");
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        fm.flushFlowCache();
+        Flow flow1 = fm.getFlow("test", "my-test-flow1");
+        assertTrue(flow1.getCollector().isPartitioned());
+
+        AtomicInteger completed = new AtomicInteger();
+        FlowRunner flowRunner = fm.newFlowRunner()
+            .withFlow(flow1)
+            .withBatchSize(10)
+            .withThreadCount(4)
+            .onItemComplete((jobId, itemId) -> completed.incrementAndGet());
+        flowRunner.run();
+        flowRunner.awaitCompletion();
+        // each forest reports only its own uris, so nothing is harmonized twice
+        assertEquals(2, completed.get());
+        assertEquals(2, getFinalDocCount());
+    }
+
+    @Test
+    public void testRunQueryFlow() {
+        addStagingDocs();
+        installModules();
+        // the collector would fail, so the uris can only come from the query
+        installModule("/entities/test/harmonize/my-test-flow1/collector.xqy", "e2e-test/xqy-flow/collector-syntax-error.xqy");
+        installModule("/entities/test/harmonize/my-test-flow1/my-test-flow1.xml", "flow-manager-test/my-test-flow1/my-test-flow1-query.xml");
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        fm.flushFlowCache();
+        Flow flow1 = fm.getFlow("test", "my-test-flow1");
+        assertNotNull(flow1.getCollectorQuery());
+
+        AtomicInteger completed = new AtomicInteger();
+        FlowRunner flowRunner = fm.newFlowRunner()
+            .withFlow(flow1)
+            .withBatchSize(1)
+            .withThreadCount(2)
+            .onItemComplete((jobId, itemId) -> completed.incrementAndGet());
+        flowRunner.run();
+        flowRunner.awaitCompletion();
+        assertEquals(2, completed.get());
+        assertEquals(2, getFinalDocCount());
+    }
+
+    @Test
+    public void testCancelQueryFlow() {
+        addStagingDocs();
+        installModules();
+        installModule("/entities/test/harmonize/my-test-flow1/my-test-flow1.xml", "flow-manager-test/my-test-flow1/my-test-flow1-query.xml");
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        fm.flushFlowCache();
+        Flow flow1 = fm.getFlow("test", "my-test-flow1");
+
+        AtomicInteger completed = new AtomicInteger();
+        FlowRunner flowRunner = fm.newFlowRunner()
+            .withFlow(flow1)
+            .withBatchSize(1)
+            .withThreadCount(1);
+        // the batcher pages through the query on its own, so it has to be stopped once the first batch is done
+        flowRunner.onItemComplete((jobId, itemId) -> {
+            completed.incrementAndGet();
+            flowRunner.getJob(jobId).cancel(false);
+        });
+        flowRunner.run();
+        flowRunner.awaitCompletion();
+        assertEquals(1, completed.get());
+        assertEquals(1, getFinalDocCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRunQueryFlowWithCheckpointing() {
+        installModules();
+        installModule("/entities/test/harmonize/my-test-flow1/my-test-flow1.xml", "flow-manager-test/my-test-flow1/my-test-flow1-query.xml");
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        fm.flushFlowCache();
+        Flow flow1 = fm.getFlow("test", "my-test-flow1");
+
+        fm.newFlowRunner()
+            .withFlow(flow1)
+            .withCheckpointing(true)
+            .run();
+    }
+
     @Test
     public void testRunFlowWithBackwards() throws SAXException, IOException, ParserConfigurationException, XMLStreamException {
         addFinalDocs();
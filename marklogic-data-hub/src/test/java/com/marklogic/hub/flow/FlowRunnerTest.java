@@ -163,6 +163,34 @@ public class FlowRunnerTest extends HubTestBase {
         assertNotNull(jsonEnvelope.get("envelope").get("attachments"));
     }
 
+    @Test
+    public void testBulkHarmonizeSJS() throws IOException {
+        scaffolding.createFlow(ENTITY, "testharmonize-sjs-bulk", FlowType.HARMONIZE,
+            CodeFormat.JAVASCRIPT, DataFormat.JSON, false);
+        Files.copy(getResourceStream("flow-runner-test/collector.sjs"),
+            projectDir.resolve("plugins/entities/" + ENTITY + "/harmonize/testharmonize-sjs-bulk/collector.sjs"),
+            StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(getResourceStream("flow-runner-test/contentTestingEnvelope.sjs"),
+            projectDir.resolve("plugins/entities/" + ENTITY + "/harmonize/testharmonize-sjs-bulk/content.sjs"),
+            StandardCopyOption.REPLACE_EXISTING);
+
+        installUserModules(getHubAdminConfig(), false);
+
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        Flow harmonizeFlow = fm.getFlow(ENTITY, "testharmonize-sjs-bulk",
+            FlowType.HARMONIZE);
+        FlowRunner flowRunner = fm.newFlowRunner()
+            .withFlow(harmonizeFlow)
+            .withBatchSize(10)
+            .withThreadCount(1)
+            .withBulkHarmonize(true);
+        flowRunner.run();
+        flowRunner.awaitCompletion();
+
+        JsonNode jsonEnvelope = finalDocMgr.read("1.json").next().getContent(new JacksonHandle()).get();
+        assertNotNull(jsonEnvelope.get("envelope").get("attachments"));
+    }
+
     @Test
     public void testEnvelopeXQY() throws IOException {
 
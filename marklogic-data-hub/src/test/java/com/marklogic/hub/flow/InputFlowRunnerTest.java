@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.marklogic.client.io.JacksonHandle;
+import com.marklogic.hub.FlowManager;
+import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.HubTestBase;
+import com.marklogic.hub.scaffold.Scaffolding;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class InputFlowRunnerTest extends HubTestBase {
+    private static final String ENTITY = "e2eentity";
+    private static final String INPUT_FLOW = "testinput";
+    private static Path projectDir = Paths.get(".", "ye-olde-project");
+    private static final int DOC_COUNT = 25;
+
+    private Path inputDir;
+
+    @Before
+    public void setup() throws IOException {
+        deleteProjectDir();
+        createProjectDir();
+
+        Scaffolding scaffolding = Scaffolding.create(projectDir.toString(), stagingClient);
+        scaffolding.createEntity(ENTITY);
+        scaffolding.createFlow(ENTITY, INPUT_FLOW, FlowType.INPUT, CodeFormat.JAVASCRIPT, DataFormat.JSON, false);
+        clearUserModules();
+        installUserModules(getHubAdminConfig(), false);
+        clearDatabases(HubConfig.DEFAULT_STAGING_NAME, HubConfig.DEFAULT_JOB_NAME);
+
+        inputDir = Files.createTempDirectory("input-flow");
+        Files.createDirectories(inputDir.resolve("nested"));
+        for (int i = 0; i < DOC_COUNT; i++) {
+            Path parent = i % 2 == 0 ? inputDir : inputDir.resolve("nested");
+            Files.write(parent.resolve("doc" + i + ".json"), ("{\"id\": " + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.walk(inputDir)
+            .sorted((a, b) -> b.compareTo(a))
+            .forEach(path -> path.toFile().delete());
+    }
+
+    private JsonNode runInputFlow(Path inputPath) {
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        Flow inputFlow = fm.getFlow(ENTITY, INPUT_FLOW, FlowType.INPUT);
+        InputFlowRunner runner = fm.newInputFlowRunner()
+            .withFlow(inputFlow)
+            .withInputPath(inputPath)
+            .withUriPrefix("/input/")
+            .withBatchSize(10)
+            .withThreadCount(2);
+        String jobId = runner.run().getJobId();
+        runner.awaitCompletion();
+
+        return jobClient.newJSONDocumentManager().read("/jobs/" + jobId + ".json", new JacksonHandle()).get();
+    }
+
+    @Test
+    public void testLoadDirectory() {
+        JsonNode job = runInputFlow(inputDir);
+
+        assertEquals(DOC_COUNT, getStagingDocCount());
+        assertEquals("FINISHED", job.get("status").asText());
+        assertEquals(DOC_COUNT, job.get("successfulEvents").asInt());
+        assertEquals(0, job.get("failedEvents").asInt());
+        assertEquals(3, job.get("successfulBatches").asInt());
+    }
+
+    @Test
+    public void testLoadZip() throws IOException {
+        Path zip = inputDir.resolve("input.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (int i = 0; i < DOC_COUNT; i++) {
+                out.putNextEntry(new ZipEntry("zipped/doc" + i + ".json"));
+                out.write(("{\"id\": " + i + "}").getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+
+        JsonNode job = runInputFlow(zip);
+
+        assertEquals(DOC_COUNT, getStagingDocCount());
+        assertEquals("FINISHED", job.get("status").asText());
+        assertEquals(DOC_COUNT, job.get("successfulEvents").asInt());
+    }
+}
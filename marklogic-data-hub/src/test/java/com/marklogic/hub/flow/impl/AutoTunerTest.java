@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.marklogic.hub.flow.AutoTuning;
+import com.marklogic.hub.flow.RunFlowResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AutoTunerTest {
+
+    private AutoTuning newTuning() {
+        return new AutoTuning()
+            .withMinBatchSize(10)
+            .withMaxBatchSize(1000)
+            .withBatchSizeIncrement(10)
+            .withMaxThreadCount(8)
+            .withMaxErrorRate(0.05)
+            .withWindowSize(2);
+    }
+
+    private RunFlowResponse response(long totalCount, long errorCount) {
+        RunFlowResponse response = new RunFlowResponse();
+        response.totalCount = totalCount;
+        response.errorCount = errorCount;
+        return response;
+    }
+
+    @Test
+    public void testGrowsWhileItemsSucceed() {
+        AutoTuner tuner = new AutoTuner(newTuning(), 100, 4);
+        tuner.run(100, () -> response(100, 0));
+        tuner.run(100, () -> response(100, 1));
+
+        assertEquals(110, tuner.getBatchSize());
+        assertEquals(5, tuner.getThreadCount());
+    }
+
+    @Test
+    public void testBacksOffWhenTheFlowReportsErrors() {
+        // every request comes back, but a tenth of the items fail inside the flow
+        AutoTuner tuner = new AutoTuner(newTuning(), 100, 4);
+        tuner.run(100, () -> response(100, 10));
+        tuner.run(100, () -> response(100, 10));
+
+        assertEquals(50, tuner.getBatchSize());
+        assertEquals(2, tuner.getThreadCount());
+        assertEquals(0.1, tuner.getDecisions().get(1).getErrorRate(), 0.0001);
+    }
+
+    @Test
+    public void testFailedRequestsCountEveryItem() {
+        AutoTuner tuner = new AutoTuner(newTuning(), 100, 4);
+        tuner.run(100, () -> response(100, 0));
+        try {
+            tuner.run(100, () -> {
+                throw new RuntimeException("request failed");
+            });
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+
+        assertEquals(0.5, tuner.getDecisions().get(1).getErrorRate(), 0.0001);
+        assertEquals(50, tuner.getBatchSize());
+    }
+}
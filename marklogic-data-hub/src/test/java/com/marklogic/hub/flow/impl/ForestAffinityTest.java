@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ForestAffinityTest {
+
+    private Map<String, String> forestHosts() {
+        Map<String, String> hosts = new HashMap<>();
+        hosts.put("1", "host-a");
+        hosts.put("2", "host-b");
+        return hosts;
+    }
+
+    // even uris live on host-a, odd ones on host-b, and /missing has no document
+    private Map<String, String> lookup(List<String> uris) {
+        Map<String, String> forests = new HashMap<>();
+        for (String uri : uris) {
+            if (!uri.equals("/missing")) {
+                forests.put(uri, Integer.parseInt(uri.substring(1)) % 2 == 0 ? "1" : "2");
+            }
+        }
+        return forests;
+    }
+
+    @Test
+    public void testBatchesFollowTheirHost() {
+        ForestAffinity affinity = new ForestAffinity(this::lookup, forestHosts(), 2);
+        List<String> uris = Arrays.asList("/0", "/1", "/missing", "/3", "/2", "/5", "/4");
+        Iterator<String> grouped = affinity.group(uris.iterator());
+
+        List<String[]> batches = new ArrayList<>();
+        while (grouped.hasNext()) {
+            String first = grouped.next();
+            batches.add(grouped.hasNext() ? new String[] { first, grouped.next() } : new String[] { first });
+        }
+
+        assertArrayEquals(new String[] { "/1", "/3" }, batches.get(0));
+        assertEquals("host-b", affinity.getHost(batches.get(0)));
+        assertArrayEquals(new String[] { "/0", "/2" }, batches.get(1));
+        assertEquals("host-a", affinity.getHost(batches.get(1)));
+
+        // the leftovers of each group are released together once the collector is done
+        assertArrayEquals(new String[] { "/4", "/5" }, batches.get(2));
+        assertEquals("host-a", affinity.getHost(batches.get(2)));
+        assertArrayEquals(new String[] { "/missing" }, batches.get(3));
+        assertNull(affinity.getHost(batches.get(3)));
+        assertFalse(grouped.hasNext());
+    }
+
+    @Test
+    public void testDuplicateUris() {
+        ForestAffinity affinity = new ForestAffinity(this::lookup, forestHosts(), 2);
+        // both copies of /0 start a batch while they are waiting to be handed out
+        Iterator<String> grouped = affinity.group(Arrays.asList("/0", "/2", "/0", "/2", "/1").iterator());
+
+        List<String> uris = new ArrayList<>();
+        grouped.forEachRemaining(uris::add);
+        assertEquals(Arrays.asList("/0", "/2", "/0", "/2", "/1"), uris);
+        assertEquals("host-a", affinity.getHost(new String[] { "/0", "/2" }));
+        assertEquals("host-b", affinity.getHost(new String[] { "/1" }));
+    }
+}
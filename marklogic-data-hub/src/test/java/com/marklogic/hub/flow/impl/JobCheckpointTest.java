@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.marklogic.hub.flow.AutoTuning;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JobCheckpointTest {
+
+    private Path baseDir;
+
+    @Before
+    public void setup() throws IOException {
+        baseDir = Files.createTempDirectory("checkpoints");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        if (Files.exists(baseDir)) {
+            Files.walk(baseDir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private JobCheckpoint.State newState(String jobId) {
+        JobCheckpoint.State state = new JobCheckpoint.State();
+        state.jobId = jobId;
+        state.entityName = "entity";
+        state.flowName = "flow";
+        state.batchSize = 2;
+        return state;
+    }
+
+    @Test
+    public void testResumeSkipsCompletedBatches() {
+        JobCheckpoint checkpoint = JobCheckpoint.create(baseDir, newState("job1"));
+        for (int i = 0; i < 8; i++) {
+            checkpoint.recordUri("/doc" + i + ".json");
+        }
+        checkpoint.markCollected();
+
+        Iterator<String> uris = checkpoint.remaining();
+        String[][] batches = new String[4][];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = new String[] { uris.next(), uris.next() };
+        }
+        assertFalse(uris.hasNext());
+
+        // batches finish out of order and the second one never comes back
+        checkpoint.complete(batches[0], 2, 0, 1, 0);
+        checkpoint.complete(batches[3], 1, 1, 1, 0);
+        checkpoint.save();
+
+        JobCheckpoint resumed = JobCheckpoint.open(baseDir, "job1");
+        assertTrue(resumed.getState().collected);
+        assertEquals(8, resumed.getState().uriCount);
+        assertEquals(2, resumed.getState().completedThrough);
+        assertEquals(Arrays.asList(6L, 7L), resumed.getState().completedAbove);
+        assertEquals(3, resumed.getState().successfulEvents);
+        assertEquals(1, resumed.getState().failedEvents);
+        assertEquals(2, resumed.getState().successfulBatches);
+
+        List<String> remaining = new ArrayList<>();
+        resumed.remaining().forEachRemaining(remaining::add);
+        assertEquals(Arrays.asList("/doc2.json", "/doc3.json", "/doc4.json", "/doc5.json"), remaining);
+
+        resumed.complete(remaining.toArray(new String[0]), 4, 0, 2, 0);
+        assertEquals(8, resumed.getState().completedThrough);
+
+        resumed.delete();
+        assertFalse(Files.exists(baseDir.resolve("job1")));
+    }
+
+    @Test
+    public void testTrackLogsUrisAsTheyAreTaken() {
+        JobCheckpoint checkpoint = JobCheckpoint.create(baseDir, newState("job2"));
+        Iterator<String> tracked = checkpoint.track(Arrays.asList("a", "b", "c").iterator());
+        String[] batch = new String[] { tracked.next(), tracked.next() };
+        checkpoint.complete(batch, 2, 0, 1, 0);
+        assertEquals(2, checkpoint.getState().completedThrough);
+
+        tracked.forEachRemaining(uri -> {});
+        checkpoint.markCollected();
+
+        List<String> remaining = new ArrayList<>();
+        JobCheckpoint.open(baseDir, "job2").remaining().forEachRemaining(remaining::add);
+        assertEquals(Arrays.asList("c"), remaining);
+    }
+
+    @Test
+    public void testLogsUrisLongerThan64k() {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, '\u00e9');
+        String longUri = "/" + new String(chars);
+
+        JobCheckpoint checkpoint = JobCheckpoint.create(baseDir, newState("job3"));
+        checkpoint.recordUri(longUri);
+        checkpoint.recordUri("/short.json");
+        checkpoint.markCollected();
+
+        List<String> remaining = new ArrayList<>();
+        JobCheckpoint.open(baseDir, "job3").remaining().forEachRemaining(remaining::add);
+        assertEquals(Arrays.asList(longUri, "/short.json"), remaining);
+    }
+
+    @Test
+    public void testKeepsJobSettings() {
+        JobCheckpoint.State state = newState("job4");
+        state.bulkHarmonize = true;
+        state.forestAffinity = true;
+        state.startTime = new Date(1000);
+        state.autoTuning = JobCheckpoint.AutoTuningState.from(new AutoTuning().withMaxBatchSize(500).withMaxErrorRate(0.1));
+        JobCheckpoint.create(baseDir, state).save();
+
+        JobCheckpoint.State resumed = JobCheckpoint.open(baseDir, "job4").getState();
+        assertTrue(resumed.bulkHarmonize);
+        assertTrue(resumed.forestAffinity);
+        assertEquals(new Date(1000), resumed.startTime);
+        AutoTuning autoTuning = resumed.autoTuning.toAutoTuning();
+        assertEquals(500, autoTuning.getMaxBatchSize());
+        assertEquals(0.1, autoTuning.getMaxErrorRate(), 0);
+        assertEquals(new AutoTuning().getWindowSize(), autoTuning.getWindowSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOpenWithoutCheckpoint() {
+        JobCheckpoint.open(baseDir, "missing");
+    }
+}
@@ -15,7 +15,9 @@
  */
 package com.marklogic.hub.job;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.marklogic.client.eval.EvalResultIterator;
+import com.marklogic.client.io.JacksonHandle;
 import com.marklogic.hub.FlowManager;
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.HubTestBase;
@@ -297,4 +299,24 @@ public class JobManagerTest extends HubTestBase {
             fail("Trace document was not loaded as XML");
         }
     }
+
+    @Test
+    public void updateJobCoalescesUntilFinished() {
+        Flow harmonizeFlow = FlowManager.create(getHubFlowRunnerConfig()).getFlow(ENTITY, HARMONIZE_FLOW_XML, FlowType.HARMONIZE);
+        Job job = Job.withFlow(harmonizeFlow).withJobId("coalesced-job");
+        for (int i = 1; i <= 10; i++) {
+            jobManager.updateJob(job.withStatus(JobStatus.RUNNING_HARMONIZE).setCounts(i, 0, i, 0));
+        }
+        assertEquals(4, getJobDocCount());
+
+        jobManager.flush();
+        assertEquals(5, getJobDocCount());
+        JsonNode saved = jobClient.newJSONDocumentManager().read("/jobs/coalesced-job.json", new JacksonHandle()).get();
+        assertEquals(10, saved.get("successfulEvents").asInt());
+
+        jobManager.updateJob(job.withStatus(JobStatus.FINISHED).setCounts(11, 0, 11, 0));
+        saved = jobClient.newJSONDocumentManager().read("/jobs/coalesced-job.json", new JacksonHandle()).get();
+        assertEquals("FINISHED", saved.get("status").asText());
+        assertEquals(11, saved.get("successfulEvents").asInt());
+    }
 }
@@ -28,6 +28,7 @@ import com.marklogic.hub.HubTestBase;
 import com.marklogic.hub.Tracing;
 import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.flow.FlowRunner;
+import com.marklogic.hub.flow.TraceMode;
 import org.custommonkey.xmlunit.XMLUnit;
 import org.junit.After;
 import org.junit.Assert;
@@ -250,6 +251,53 @@ public class TracingTest extends HubTestBase {
         assertEquals(6, getTracingDocCount());
     }
 
+    @Test
+    public void runJSONFlowWithFullTraceMode() {
+        assertEquals(0, getFinalDocCount());
+        assertEquals(0, getTracingDocCount());
+
+        Tracing t = Tracing.create(flowRunnerClient);
+        assertFalse(t.isEnabled());
+
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        Flow flow = fm.getFlow("trace-entity", "tracemeJSON");
+
+        FlowRunner flowRunner = fm.newFlowRunner()
+            .withFlow(flow)
+            .withBatchSize(10)
+            .withThreadCount(1)
+            .withTraceMode(TraceMode.FULL);
+        flowRunner.run();
+        flowRunner.awaitCompletion();
+
+        // the collector isn't part of the job's batches, so only the items are traced
+        assertEquals(5, getFinalDocCount());
+        assertEquals(5, getTracingDocCount());
+    }
+
+    @Test
+    public void runXMLFlowWithErrorsTraceMode() {
+        assertEquals(0, getFinalDocCount());
+        assertEquals(0, getTracingDocCount());
+
+        enableTracing();
+
+        FlowManager fm = FlowManager.create(getHubFlowRunnerConfig());
+        Flow flow = fm.getFlow("trace-entity", "tracemeXML");
+
+        FlowRunner flowRunner = fm.newFlowRunner()
+            .withFlow(flow)
+            .withBatchSize(10)
+            .withThreadCount(1)
+            .withTraceMode(TraceMode.ERRORS);
+        flowRunner.run();
+        flowRunner.awaitCompletion();
+
+        // only the collector's trace, since none of the items failed
+        assertEquals(5, getFinalDocCount());
+        assertEquals(1, getTracingDocCount());
+    }
+
 
     @Test
     public void runSjsJsonFlowWithBinaryContent() {
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.job.impl;
+
+import com.marklogic.hub.job.JobSink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LocalLogJobSinkTest {
+
+    private Path logDir;
+
+    @Before
+    public void setup() throws IOException {
+        logDir = Files.createTempDirectory("job-log");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.walk(logDir)
+            .sorted((a, b) -> b.compareTo(a))
+            .forEach(path -> path.toFile().delete());
+    }
+
+    private static Map<String, byte[]> job(String jobId, String status) {
+        return Collections.singletonMap(jobId, ("{\"jobId\":\"" + jobId + "\",\"status\":\"" + status + "\"}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class RecordingSink implements JobSink {
+        List<Map<String, String>> batches = new ArrayList<>();
+
+        @Override
+        public void write(Map<String, byte[]> jobs) {
+            Map<String, String> batch = new LinkedHashMap<>();
+            jobs.forEach((jobId, content) -> batch.put(jobId, new String(content, StandardCharsets.UTF_8)));
+            batches.add(batch);
+        }
+    }
+
+    @Test
+    public void testShipsLatestDocumentPerJob() throws IOException {
+        RecordingSink target = new RecordingSink();
+        LocalLogJobSink log = new LocalLogJobSink(logDir).withShipInterval(60000).startShipping(target);
+        log.write(job("a", "STARTED"));
+        log.write(job("b", "STARTED"));
+        log.write(job("a", "FINISHED"));
+
+        // the active segment isn't shipped until it is rotated
+        assertEquals(1, log.listSegments(LocalLogJobSink.OPEN_SUFFIX).size());
+        log.rotate();
+        log.ship();
+
+        assertEquals(1, target.batches.size());
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(target.batches.get(0).keySet()));
+        assertTrue(target.batches.get(0).get("a").contains("FINISHED"));
+        assertTrue(log.listSegments(LocalLogJobSink.SEGMENT_SUFFIX).isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void testRotatesOnSize() throws IOException {
+        LocalLogJobSink log = new LocalLogJobSink(logDir).withMaxSegmentBytes(1);
+        log.write(job("a", "STARTED"));
+        log.write(job("b", "STARTED"));
+
+        List<Path> segments = log.listSegments(LocalLogJobSink.SEGMENT_SUFFIX);
+        assertEquals(2, segments.size());
+        assertEquals(Collections.singleton("a"), LocalLogJobSink.read(segments.get(0)).keySet());
+        assertEquals(Collections.singleton("b"), LocalLogJobSink.read(segments.get(1)).keySet());
+    }
+
+    @Test
+    public void testRecoversSegmentLeftOpen() throws IOException {
+        LocalLogJobSink crashed = new LocalLogJobSink(logDir);
+        crashed.write(job("a", "RUNNING_HARMONIZE"));
+        crashed.write(job("b", "RUNNING_HARMONIZE"));
+        // never closed, as if the process died
+
+        RecordingSink target = new RecordingSink();
+        LocalLogJobSink reopened = new LocalLogJobSink(logDir).withShipInterval(60000).startShipping(target);
+        assertTrue(reopened.listSegments(LocalLogJobSink.OPEN_SUFFIX).isEmpty());
+        reopened.write(job("c", "STARTED"));
+        reopened.close();
+
+        Set<String> shipped = new HashSet<>();
+        target.batches.forEach(batch -> shipped.addAll(batch.keySet()));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), shipped);
+        assertTrue(reopened.listSegments(LocalLogJobSink.SEGMENT_SUFFIX).isEmpty());
+    }
+
+    @Test
+    public void testFailedShipmentIsKept() throws IOException {
+        JobSink failing = jobs -> {
+            throw new RuntimeException("job database unavailable");
+        };
+        LocalLogJobSink log = new LocalLogJobSink(logDir).withShipInterval(60000).startShipping(failing);
+        log.write(job("a", "STARTED"));
+        log.rotate();
+        try {
+            log.ship();
+            fail("expected the shipment to fail");
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(1, log.listSegments(LocalLogJobSink.SEGMENT_SUFFIX).size());
+    }
+}
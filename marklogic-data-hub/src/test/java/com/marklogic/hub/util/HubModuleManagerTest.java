@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class HubModuleManagerTest {
+
+    private Path baseDir;
+    private String propertiesFile;
+
+    @Before
+    public void setup() throws IOException {
+        baseDir = Files.createTempDirectory("hub-module-manager");
+        propertiesFile = baseDir.resolve("build/module-timestamps.properties").toString();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.walk(baseDir)
+            .sorted((a, b) -> b.compareTo(a))
+            .forEach(path -> path.toFile().delete());
+    }
+
+    private File writeModule(String name, String contents) throws IOException {
+        Path path = baseDir.resolve("plugins").resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+        return path.toFile();
+    }
+
+    @Test
+    public void testTouchedFileIsNotModified() throws IOException {
+        File module = writeModule("lib.sjs", "module.exports = {};");
+        HubModuleManager manager = new HubModuleManager(propertiesFile);
+        assertTrue(manager.hasFileBeenModifiedSinceLastLoaded(module));
+        manager.saveLastLoadedTimestamp(module, new Date());
+
+        // nothing is written until the deploy flushes
+        assertFalse(new File(propertiesFile).exists());
+        manager.flush();
+        assertTrue(new File(propertiesFile).exists());
+
+        // a fresh checkout gives the file a new mtime but the same contents
+        assertTrue(module.setLastModified(System.currentTimeMillis() + 60000));
+        HubModuleManager reloaded = new HubModuleManager(propertiesFile);
+        assertFalse(reloaded.hasFileBeenModifiedSinceLastLoaded(module));
+
+        writeModule("lib.sjs", "module.exports = { changed: true };");
+        assertTrue(reloaded.hasFileBeenModifiedSinceLastLoaded(module));
+    }
+
+    @Test
+    public void testInitializeKeepsUnflushedEntries() throws IOException {
+        File module = writeModule("lib.xqy", "xquery version '1.0-ml';");
+        HubModuleManager manager = new HubModuleManager(propertiesFile);
+        manager.saveLastLoadedTimestamp(module, new Date());
+        manager.initialize();
+        assertFalse(manager.hasFileBeenModifiedSinceLastLoaded(module));
+    }
+
+    @Test
+    public void testChangedSinceManifest() throws IOException {
+        writeModule("a.sjs", "a");
+        writeModule("entities/b.sjs", "b");
+        Path plugins = baseDir.resolve("plugins");
+        Path manifest = baseDir.resolve("build/manifest.properties");
+        HubModuleManager.writeManifest(manifest, plugins);
+
+        assertTrue(HubModuleManager.changedSince(manifest, plugins).isEmpty());
+
+        writeModule("entities/b.sjs", "b2");
+        writeModule("entities/c.sjs", "c");
+        assertEquals(Arrays.asList(plugins.resolve("entities/b.sjs"), plugins.resolve("entities/c.sjs")),
+            HubModuleManager.changedSince(manifest, plugins));
+    }
+}
@@ -56,6 +56,27 @@ class RunFlowTask extends HubTask {
     @Input
     public Boolean failHard
 
+    @Input
+    public Boolean autoTune
+
+    @Input
+    public Boolean checkpoint
+
+    @Input
+    public String resumeJobId
+
+    @Input
+    public String traceMode
+
+    @Input
+    public Integer traceSampleRate
+
+    @Input
+    public Boolean bulk
+
+    @Input
+    public Boolean forestAffinity
+
     @TaskAction
     void runFlow() {
         if (entityName == null) {
@@ -103,6 +124,33 @@ class RunFlowTask extends HubTask {
                 Boolean.parseBoolean(project.property("failHard")) : false
         }
 
+        if (autoTune == null) {
+            autoTune = project.hasProperty("autoTune") ?
+                Boolean.parseBoolean(project.property("autoTune")) : false
+        }
+        if (checkpoint == null) {
+            checkpoint = project.hasProperty("checkpoint") ?
+                Boolean.parseBoolean(project.property("checkpoint")) : false
+        }
+        if (resumeJobId == null) {
+            resumeJobId = project.hasProperty("resumeJobId") ? project.property("resumeJobId") : null
+        }
+        if (traceMode == null) {
+            traceMode = project.hasProperty("traceMode") ? project.property("traceMode") : null
+        }
+        if (traceSampleRate == null) {
+            traceSampleRate = project.hasProperty("traceSampleRate") ?
+                Integer.parseInt(project.property("traceSampleRate")) : null
+        }
+        if (bulk == null) {
+            bulk = project.hasProperty("bulk") ?
+                Boolean.parseBoolean(project.property("bulk")) : false
+        }
+        if (forestAffinity == null) {
+            forestAffinity = project.hasProperty("forestAffinity") ?
+                Boolean.parseBoolean(project.property("forestAffinity")) : false
+        }
+
         if (!isHubInstalled()) {
             throw new HubNotInstalledException()
         }
@@ -122,6 +170,12 @@ class RunFlowTask extends HubTask {
         println("Running Flow: [" + entityName + ":" + flowName + "]" +
             "\n\twith batch size: " + batchSize +
             "\n\twith thread count: " + threadCount +
+            (autoTune ? "\n\twith auto tuning" : "") +
+            (checkpoint ? "\n\twith checkpointing" : "") +
+            (resumeJobId != null ? "\n\tresuming job: " + resumeJobId : "") +
+            (traceMode != null ? "\n\twith tracing: " + traceMode : "") +
+            (bulk ? "\n\twith bulk harmonization" : "") +
+            (forestAffinity ? "\n\twith forest affinity" : "") +
             "\n\twith Source DB: " + sourceClient.database +
             "\n\twith Destination DB: " + destDB.toString())
 
@@ -153,7 +207,19 @@ class RunFlowTask extends HubTask {
                     failed.add(itemId)
                 }
             })
-        JobTicket jobTicket = flowRunner.run()
+        if (autoTune) {
+            flowRunner.withAutoTuning(new AutoTuning())
+        }
+        if (traceMode != null) {
+            flowRunner.withTraceMode(TraceMode.getTraceMode(traceMode))
+        }
+        if (traceSampleRate != null) {
+            flowRunner.withTraceSampleRate(traceSampleRate)
+        }
+        flowRunner.withCheckpointing(checkpoint)
+        flowRunner.withBulkHarmonize(bulk)
+        flowRunner.withForestAffinity(forestAffinity)
+        JobTicket jobTicket = resumeJobId != null ? flowRunner.resume(resumeJobId) : flowRunner.run()
         flowRunner.awaitCompletion()
 
         def jobDocMgr = getHubConfig().newJobDbClient().newDocumentManager()
@@ -21,6 +21,13 @@ public class JobStatusMessage extends StatusMessage {
     public String jobId;
     public String jobType;
 
+    // filled in by the progress service; null when not known for this kind of job
+    public Long successfulEvents;
+    public Long failedEvents;
+    public Double docsPerSecond;
+    public Long etaSeconds;
+    public Double errorRate;
+
     public JobStatusMessage(String jobId, int percentComplete, String message, String jobType) {
         super(percentComplete, message);
         this.jobId = jobId;
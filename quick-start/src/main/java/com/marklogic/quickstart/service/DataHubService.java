@@ -16,6 +16,8 @@
  */
 package com.marklogic.quickstart.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.marklogic.appdeployer.command.Command;
 import com.marklogic.appdeployer.impl.SimpleAppDeployer;
 import com.marklogic.hub.DataHub;
@@ -41,15 +43,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class DataHubService {
 
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    // the latest validation results per project, so validating one flow can update them in place
+    private final Map<String, ObjectNode> lastValidation = new ConcurrentHashMap<>();
+
     public boolean install(HubConfig config, HubDeployStatusListener listener) throws DataHubException {
         logger.info("Installing Data Hub");
         DataHub dataHub = DataHub.create(config);
@@ -88,7 +95,7 @@ public class DataHubService {
         long startTime = PerformanceLogger.monitorTimeInsideMethod();
 
         try {
-            installUserModules(config, forceLoad, deployListener);
+            installUserModules(config, forceLoad, null, deployListener);
             validateUserModules(config, validateListener);
         } catch (Throwable e) {
             throw new DataHubException(e.getMessage(), e);
@@ -96,6 +103,27 @@ public class DataHubService {
         PerformanceLogger.logTimeInsideMethod(startTime, "DataHubService.installUserModules");
     }
 
+    /**
+     * Deploys just the given paths and validates just the flows they belong to. Used by the file watcher so a
+     * save only pushes what changed.
+     * @param config - the hub config of the project
+     * @param changedPaths - the files and directories that changed
+     * @param deployListener - told when the deploy is done
+     * @param validateListener - receives the updated validation results
+     */
+    @Async
+    public void installChangedUserModulesAsync(HubConfig config, Set<Path> changedPaths, DeployUserModulesListener deployListener, ValidateListener validateListener) {
+        long startTime = PerformanceLogger.monitorTimeInsideMethod();
+
+        try {
+            installUserModules(config, false, changedPaths, deployListener);
+            validateChangedFlows(config, changedPaths, validateListener);
+        } catch (Throwable e) {
+            throw new DataHubException(e.getMessage(), e);
+        }
+        PerformanceLogger.logTimeInsideMethod(startTime, "DataHubService.installChangedUserModules");
+    }
+
     @Async
     public void reinstallUserModules(HubConfig config, DeployUserModulesListener deployListener, ValidateListener validateListener) {
         long startTime = PerformanceLogger.monitorTimeInsideMethod();
@@ -103,7 +131,7 @@ public class DataHubService {
         DataHub dataHub = DataHub.create(config);
         try {
             dataHub.clearUserModules();
-            installUserModules(config, true, deployListener);
+            installUserModules(config, true, null, deployListener);
             if(validateListener != null) {
                 validateUserModules(config, validateListener);
             }
@@ -135,10 +163,75 @@ public class DataHubService {
     @Async
     public void validateUserModules(HubConfig hubConfig, ValidateListener validateListener) {
         EntitiesValidator ev = EntitiesValidator.create(hubConfig.newStagingClient());
-        validateListener.onValidate(ev.validateAll());
+        JsonNode validation = ev.validateAll();
+        if (validation instanceof ObjectNode) {
+            lastValidation.put(hubConfig.getProjectDir(), (ObjectNode) validation);
+        }
+        validateListener.onValidate(validation);
 
     }
 
+    private void validateChangedFlows(HubConfig hubConfig, Set<Path> changedPaths, ValidateListener validateListener) {
+        if (validateListener == null) {
+            return;
+        }
+        Set<List<String>> flows = getChangedFlows(hubConfig, changedPaths);
+        ObjectNode previous = lastValidation.get(hubConfig.getProjectDir());
+        if (flows == null || previous == null) {
+            validateUserModules(hubConfig, validateListener);
+            return;
+        }
+
+        EntitiesValidator ev = EntitiesValidator.create(hubConfig.newStagingClient());
+        ObjectNode validation = previous.deepCopy();
+        ObjectNode errors = validation.with("errors");
+        for (List<String> flow : flows) {
+            String entityName = flow.get(0);
+            String flowName = flow.get(1);
+            JsonNode result = ev.validateFlow(entityName, flowName);
+
+            ObjectNode entityErrors = errors.with(entityName);
+            entityErrors.remove(flowName);
+            JsonNode flowErrors = result == null ? null : result.path("errors").path(entityName).get(flowName);
+            if (flowErrors != null) {
+                entityErrors.set(flowName, flowErrors);
+            }
+            if (entityErrors.size() == 0) {
+                errors.remove(entityName);
+            }
+        }
+        lastValidation.put(hubConfig.getProjectDir(), validation);
+        validateListener.onValidate(validation);
+    }
+
+    /**
+     * Maps changed paths to the [entity, flow] pairs they belong to.
+     * @return the flows, or null if something outside of a flow changed and everything needs validating
+     */
+    private Set<List<String>> getChangedFlows(HubConfig hubConfig, Set<Path> changedPaths) {
+        Path entitiesDir = hubConfig.getHubEntitiesDir().toAbsolutePath().normalize();
+        Set<List<String>> flows = new LinkedHashSet<>();
+        for (Path changed : changedPaths) {
+            if (!changed.startsWith(entitiesDir)) {
+                return null;
+            }
+            Path relative = entitiesDir.relativize(changed);
+            if (relative.getNameCount() < 3) {
+                return null;
+            }
+            String flowType = relative.getName(1).toString();
+            String flowName = relative.getName(2).toString();
+            if (!(flowType.equals("input") || flowType.equals("harmonize"))) {
+                return null;
+            }
+            // REST extensions aren't part of any flow
+            if (!flowName.equals("REST")) {
+                flows.add(Arrays.asList(relative.getName(0).toString(), flowName));
+            }
+        }
+        return flows;
+    }
+
     public void uninstall(HubConfig config, HubDeployStatusListener listener) throws DataHubException {
         DataHub dataHub = DataHub.create(config);
         try {
@@ -178,16 +271,20 @@ public class DataHubService {
         dataHub.clearDatabase(database);
     }
 
-    private void installUserModules(HubConfig hubConfig, boolean forceLoad, DeployUserModulesListener deployListener) {
+    private void installUserModules(HubConfig hubConfig, boolean forceLoad, Set<Path> changedPaths, DeployUserModulesListener deployListener) {
         List<Command> commands = new ArrayList<>();
         LoadUserStagingModulesCommand loadUserModulesCommand = new LoadUserStagingModulesCommand(hubConfig);
         loadUserModulesCommand.setForceLoad(forceLoad);
+        loadUserModulesCommand.setChangedPaths(changedPaths);
         commands.add(loadUserModulesCommand);
 
         SimpleAppDeployer deployer = new SimpleAppDeployer(((HubConfigImpl)hubConfig).getManageClient(), ((HubConfigImpl)hubConfig).getAdminManager());
         deployer.setCommands(commands);
         deployer.deploy(hubConfig.getStagingAppConfig());
-        deployer.deploy(hubConfig.getFinalAppConfig());
+        // a targeted deploy has already pushed everything it was given
+        if (changedPaths == null) {
+            deployer.deploy(hubConfig.getFinalAppConfig());
+        }
         if(deployListener != null) {
             deployListener.onDeploy(getLastDeployed(hubConfig));
         }
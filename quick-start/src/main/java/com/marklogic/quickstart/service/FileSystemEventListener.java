@@ -19,8 +19,23 @@ package com.marklogic.quickstart.service;
 import com.marklogic.hub.HubConfig;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.Path;
+import java.util.Set;
+
 @Component
 public interface FileSystemEventListener {
 
     void onWatchEvent(HubConfig hubConfig);
+
+    /**
+     * Called once per debounce window with every path that was created, modified or deleted during it.
+     * Listeners that can act on just those paths should override this; by default it falls back to
+     * {@link #onWatchEvent(HubConfig)}.
+     * @param hubConfig - the hub config of the watched project
+     * @param changedPaths - absolute paths that changed; empty if the watcher lost track (an overflow) and
+     *                     everything should be treated as changed
+     */
+    default void onWatchEvent(HubConfig hubConfig, Set<Path> changedPaths) {
+        onWatchEvent(hubConfig);
+    }
 }
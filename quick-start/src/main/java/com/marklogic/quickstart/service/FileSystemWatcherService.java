@@ -28,6 +28,10 @@ import java.nio.file.*;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class FileSystemWatcherService extends EnvironmentAware implements DisposableBean {
@@ -72,12 +76,12 @@ public class FileSystemWatcherService extends EnvironmentAware implements Dispos
         listeners.remove(listener);
     }
 
-    private void notifyListeners(HubConfig hubConfig) {
+    private void notifyListeners(HubConfig hubConfig, Set<Path> changedPaths) {
         // notify global listeners
         synchronized (listeners) {
             for (FileSystemEventListener listener : listeners) {
                 try {
-                    listener.onWatchEvent(hubConfig);
+                    listener.onWatchEvent(hubConfig, changedPaths);
                 }
                 catch (Exception e) {
                     logger.error("Exception occured on listener", e);
@@ -159,28 +163,57 @@ public class FileSystemWatcherService extends EnvironmentAware implements Dispos
         private HubConfig hubConfig;
         private final int DELAY = 1000;
 
-        Timer processDelayTimer = null;
+        // one scheduler for the life of the thread; each event just pushes the pending reload back
+        private final ScheduledExecutorService processDelayScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "directory-watcher-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private ScheduledFuture<?> pendingReload = null;
+        private Set<Path> changedPaths = new LinkedHashSet<>();
+        private boolean overflowed = false;
 
         DirectoryWatcherThread(String name, HubConfig hubConfig) {
             super(name);
             this.hubConfig = hubConfig;
         }
 
-        private synchronized void queueReload() {
-            if (processDelayTimer != null) {
-                processDelayTimer.cancel();
+        private synchronized void queueReload(Path changedPath) {
+            if (changedPath == null) {
+                overflowed = true;
             }
-            processDelayTimer = new Timer();
-            processDelayTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    notifyListeners(hubConfig);
-                }
-            }, DELAY);
+            else {
+                changedPaths.add(changedPath);
+            }
+            if (pendingReload != null) {
+                pendingReload.cancel(false);
+            }
+            pendingReload = processDelayScheduler.schedule(this::reload, DELAY, TimeUnit.MILLISECONDS);
+        }
+
+        private void reload() {
+            Set<Path> paths;
+            synchronized (this) {
+                paths = overflowed ? Collections.emptySet() : Collections.unmodifiableSet(changedPaths);
+                changedPaths = new LinkedHashSet<>();
+                overflowed = false;
+                pendingReload = null;
+            }
+            notifyListeners(hubConfig, paths);
         }
 
         @Override
         public void run() {
+            try {
+                watch();
+            }
+            finally {
+                // a reload already pending still runs, then the scheduler's thread ends with this one
+                processDelayScheduler.shutdown();
+            }
+        }
+
+        private void watch() {
             for (;;) {
                 // wait for key to be signaled
                 WatchKey key;
@@ -198,21 +231,21 @@ public class FileSystemWatcherService extends EnvironmentAware implements Dispos
 
                 for (WatchEvent<?> event: key.pollEvents()) {
                     Kind<?> kind = event.kind();
-//                    if (kind == StandardWatchEventKinds.OVERFLOW) {
-//                        continue;
-//                    }
+                    if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        // events were dropped, so we no longer know exactly what changed
+                        queueReload(null);
+                        continue;
+                    }
 
-                    queueReload();
+                    // Context for directory entry event is the file name of entry
+                    @SuppressWarnings("unchecked")
+                    WatchEvent<Path> ev = (WatchEvent<Path>)event;
+                    Path child = dir.resolve(ev.context());
+                    queueReload(child.toAbsolutePath().normalize());
 
                     // if directory is created, then register it and its sub-directories
                     // we are always listening recursively
                     if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                        // Context for directory entry event is the file name of entry
-                        @SuppressWarnings("unchecked")
-                        WatchEvent<Path> ev = (WatchEvent<Path>)event;
-                        Path context = ev.context();
-                        Path child = dir.resolve(context);
-
                         try {
                             // print out event
                             logger.debug("Event received: {} for: {}", event.kind().name(), child);
@@ -26,12 +26,14 @@ import com.marklogic.hub.flow.FlowRunner;
 import com.marklogic.hub.flow.FlowStatusListener;
 import com.marklogic.hub.flow.FlowType;
 import com.marklogic.hub.util.MlcpRunner;
+import com.marklogic.quickstart.util.InProcessMlcpExecutor;
 import com.marklogic.quickstart.EnvironmentAware;
 import com.marklogic.quickstart.model.FlowModel;
 import com.marklogic.quickstart.model.PluginModel;
 import com.marklogic.hub.util.FileUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.BufferedWriter;
@@ -51,6 +53,9 @@ public class FlowManagerService extends EnvironmentAware {
 
     private FlowManager flowManager;
 
+    @Autowired
+    private JobRegistryService jobRegistry;
+
     // before login, flowManager is null, so check each time.
     private FlowManager flowManager() {
         flowManager = FlowManager.create(envConfig().getMlSettings());
@@ -111,7 +116,26 @@ public class FlowManagerService extends EnvironmentAware {
             .withBatchSize(batchSize)
             .withThreadCount(threadCount)
             .onStatusChanged(statusListener);
-        return flowRunner.run();
+        return run(flowRunner);
+    }
+
+    public JobTicket runFlow(Flow flow, int batchSize, int threadCount, Map<String, Object> options, FlowProgressService.ProgressTracker tracker) {
+
+        FlowRunner flowRunner = flowManager().newFlowRunner()
+            .withFlow(flow)
+            .withOptions(options)
+            .withBatchSize(batchSize)
+            .withThreadCount(threadCount)
+            .onStatusChanged(tracker)
+            .onItemComplete(tracker)
+            .onItemFailed(tracker);
+        return run(flowRunner);
+    }
+
+    private JobTicket run(FlowRunner flowRunner) {
+        JobTicket ticket = flowRunner.run();
+        jobRegistry.register(flowRunner.getJob(ticket.getJobId()));
+        return ticket;
     }
 
     private Path getHarmonizeOptionsFilePath(Path destFolder, String entityName, String flowName) {
@@ -179,6 +203,11 @@ public class FlowManagerService extends EnvironmentAware {
         String mlcpPath = json.get("mlcpPath").textValue();
         HubConfig hubConfig = envConfig().getMlSettings();
         MlcpRunner runner = new MlcpRunner(mlcpPath, "com.marklogic.contentpump.ContentPump", hubConfig, flow, hubConfig.newStagingClient(), json.get("mlcpOptions"), statusListener);
+        if (mlcpPath == null || mlcpPath.isEmpty()) {
+            // no external mlcp install was given, so run the bundled one without forking a JVM
+            runner.setExecutor(new InProcessMlcpExecutor());
+        }
+        jobRegistry.register(runner);
         runner.start();
     }
 
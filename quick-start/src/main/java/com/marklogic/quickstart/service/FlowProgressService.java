@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.quickstart.service;
+
+import com.marklogic.hub.flow.FlowItemCompleteListener;
+import com.marklogic.hub.flow.FlowItemFailureListener;
+import com.marklogic.hub.flow.FlowStatusListener;
+import com.marklogic.quickstart.model.JobStatusMessage;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Collects the progress of running flows and mlcp jobs and publishes it to /topic/flow-status at a fixed
+ * rate, one coalesced message per job, rather than passing on every status change as it happens.
+ * Each message also carries the job's throughput, an estimate of the time left and its error rate.
+ * A job is dropped once it reports 100%, or once it has gone quiet for {@link #IDLE_EXPIRY_MILLIS}, which
+ * is how jobs that fail or are canceled without reaching 100% stop being tracked.
+ */
+@Service
+public class FlowProgressService implements DisposableBean {
+
+    static final long SAMPLE_INTERVAL_MILLIS = 500;
+
+    // mlcp can print a lot between samples; past this the oldest lines are dropped
+    static final int MAX_PENDING_LINES = 500;
+
+    // a job with no progress for this long is no longer tracked; any later update starts tracking it again
+    static final long IDLE_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // weight given to the latest sample when smoothing the docs/sec figure
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final Consumer<JobStatusMessage> publisher;
+    private final Map<String, JobProgress> jobs = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sampler;
+
+    @Autowired
+    public FlowProgressService(SimpMessagingTemplate template) {
+        this(status -> template.convertAndSend("/topic/flow-status", status));
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "flow-progress-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> sample(System.nanoTime()),
+            SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    FlowProgressService(Consumer<JobStatusMessage> publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Creates a tracker for one run. Hand it to the flow runner as its status, item complete
+     * and item failure listener, or to mlcp as its status listener.
+     * @param jobType - the type of flow being run, sent along with every update
+     * @return the tracker
+     */
+    public ProgressTracker newTracker(String jobType) {
+        return new ProgressTracker(jobType);
+    }
+
+    void sample(long now) {
+        for (JobProgress progress : jobs.values()) {
+            if (progress.isIdle(now)) {
+                jobs.remove(progress.jobId, progress);
+            }
+            else {
+                progress.publish(now, false);
+            }
+        }
+    }
+
+    int getRunningJobCount() {
+        return jobs.size();
+    }
+
+    @Override
+    public void destroy() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+    }
+
+    public class ProgressTracker implements FlowStatusListener, FlowItemCompleteListener, FlowItemFailureListener {
+
+        private final String jobType;
+        private final Set<String> finishedJobs = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        private ProgressTracker(String jobType) {
+            this.jobType = jobType;
+        }
+
+        @Override
+        public void onStatusChange(String jobId, int percentComplete, String message) {
+            JobProgress progress = progress(jobId);
+            if (progress == null) {
+                return;
+            }
+            progress.update(percentComplete, message);
+            if (percentComplete == 100) {
+                // the ui treats 100% as finished, so send it straight away along with anything still waiting
+                finishedJobs.add(jobId);
+                jobs.remove(jobId);
+                progress.publish(System.nanoTime(), true);
+            }
+        }
+
+        @Override
+        public void processCompletion(String jobId, String itemId) {
+            JobProgress progress = progress(jobId);
+            if (progress != null) {
+                progress.successfulEvents.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void processFailure(String jobId, String itemId) {
+            JobProgress progress = progress(jobId);
+            if (progress != null) {
+                progress.failedEvents.incrementAndGet();
+            }
+        }
+
+        private JobProgress progress(String jobId) {
+            if (finishedJobs.contains(jobId)) {
+                return null;
+            }
+            return jobs.computeIfAbsent(jobId, id -> new JobProgress(id, jobType, System.nanoTime()));
+        }
+    }
+
+    private class JobProgress {
+
+        private final String jobId;
+        private final String jobType;
+        private final long started;
+        private final AtomicLong successfulEvents = new AtomicLong();
+        private final AtomicLong failedEvents = new AtomicLong();
+
+        // everything below is guarded by this
+        private int percentComplete = 0;
+        private final Deque<String> pendingLines = new ArrayDeque<>();
+        private boolean changed = true;
+        private boolean finished = false;
+        private long lastSampled;
+        private long lastPublished;
+        private long lastProcessed = 0;
+        private Double docsPerSecond = null;
+
+        JobProgress(String jobId, String jobType, long started) {
+            this.jobId = jobId;
+            this.jobType = jobType;
+            this.started = started;
+            this.lastSampled = started;
+            this.lastPublished = started;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return now - lastPublished > TimeUnit.MILLISECONDS.toNanos(IDLE_EXPIRY_MILLIS);
+        }
+
+        synchronized void update(int percentComplete, String message) {
+            this.percentComplete = percentComplete;
+            if (message != null && !message.isEmpty()) {
+                if (pendingLines.size() == MAX_PENDING_LINES) {
+                    pendingLines.removeFirst();
+                }
+                pendingLines.addLast(message);
+            }
+            changed = true;
+        }
+
+        /**
+         * Publishes the job's progress if anything has moved since the last sample. Publishing happens
+         * under the lock so a sample can never overtake the final 100% message.
+         */
+        synchronized void publish(long now, boolean finishing) {
+            if (finished) {
+                return;
+            }
+            long successful = successfulEvents.get();
+            long failed = failedEvents.get();
+            long processed = successful + failed;
+            if (!changed && processed == lastProcessed && !finishing) {
+                return;
+            }
+
+            double seconds = (now - lastSampled) / 1_000_000_000.0;
+            if (seconds > 0 && (docsPerSecond != null || processed > lastProcessed)) {
+                double current = (processed - lastProcessed) / seconds;
+                docsPerSecond = docsPerSecond == null ? current :
+                    RATE_SMOOTHING * current + (1 - RATE_SMOOTHING) * docsPerSecond;
+            }
+            lastSampled = now;
+            lastPublished = now;
+            lastProcessed = processed;
+            changed = false;
+            finished = finishing;
+
+            JobStatusMessage status = new JobStatusMessage(jobId, finishing ? 100 : percentComplete,
+                String.join("\n", pendingLines), jobType);
+            pendingLines.clear();
+            if (processed > 0) {
+                // mlcp only reports its counts once it is done, so these stay empty for input flows
+                status.successfulEvents = successful;
+                status.failedEvents = failed;
+                status.errorRate = (double) failed / processed;
+            }
+            status.docsPerSecond = docsPerSecond;
+            if (finishing) {
+                status.etaSeconds = 0L;
+            }
+            else if (percentComplete > 0 && percentComplete < 100) {
+                double elapsed = (now - started) / 1_000_000_000.0;
+                status.etaSeconds = Math.round(elapsed * (100 - percentComplete) / percentComplete);
+            }
+            publisher.accept(status);
+        }
+    }
+}
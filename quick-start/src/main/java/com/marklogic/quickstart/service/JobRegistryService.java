@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.quickstart.service;
+
+import com.marklogic.hub.flow.CancellableJob;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the flows and mlcp jobs QuickStart started, by job id, so they can be canceled while they run.
+ */
+@Service
+public class JobRegistryService {
+
+    private final Map<String, CancellableJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Tracks a job until it finishes
+     * @param job - the job to track; null is ignored
+     */
+    public void register(CancellableJob job) {
+        if (job == null) {
+            return;
+        }
+        // finished jobs are dropped here rather than through a listener so nothing holds on to them for long
+        jobs.values().removeIf(CancellableJob::isDone);
+        jobs.put(job.getJobId(), job);
+    }
+
+    /**
+     * Cancels a running job
+     * @param jobId - the id of the job to cancel
+     * @param force - true to stop it without waiting for the work in flight
+     * @return false if no job with that id is running
+     */
+    public boolean cancel(String jobId, boolean force) {
+        CancellableJob job = jobs.get(jobId);
+        if (job == null || job.isDone()) {
+            jobs.remove(jobId);
+            return false;
+        }
+        job.cancel(force);
+        return true;
+    }
+}
@@ -103,8 +103,4 @@ public class JobService extends SearchableService {
         File zipfile = new File(jobExportResponse.fullPath);
         return zipfile;
     }
-
-    public void cancelJob(long jobId) {
-
-    }
 }
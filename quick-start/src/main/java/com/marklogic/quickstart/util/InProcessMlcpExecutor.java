@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.marklogic.quickstart.util;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import com.marklogic.contentpump.ContentPump;
+import com.marklogic.contentpump.LocalJobRunner;
+import com.marklogic.hub.util.MlcpExecutor;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs mlcp imports on a dedicated thread inside QuickStart instead of forking a JVM for each one.
+ *
+ * mlcp keeps its counters in the reporter of a local job runner that runCommand never exposes,
+ * so the only place they and the progress can be read is the log of that runner. While a job
+ * runs an appender picks out the progress messages and mlcp's own counters, by name, from that
+ * logger. mlcp's abort flag is process wide too, which is why imports are run one at a time.
+ */
+public class InProcessMlcpExecutor implements MlcpExecutor {
+
+    private static final String COMPLETED = " completed ";
+
+    // the MarkLogicCounter values mlcp logs as "NAME: value" when a job finishes
+    private static final Set<String> COUNTER_NAMES = new HashSet<>(Arrays.asList(
+        "INPUT_RECORDS", "OUTPUT_RECORDS", "OUTPUT_RECORDS_COMMITTED", "OUTPUT_RECORDS_FAILED"));
+
+    // guards mlcp's abort flag and which executor's import is running
+    private static final Object LOCK = new Object();
+    private static InProcessMlcpExecutor running = null;
+
+    private static final ExecutorService pool = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mlcp-in-process");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Future<Map<String, Long>> current = null;
+    private boolean canceled = false;
+
+    @Override
+    public Map<String, Long> execute(String[] args, IntConsumer progress) throws Exception {
+        Future<Map<String, Long>> result = pool.submit(() -> run(args, progress));
+        synchronized (LOCK) {
+            current = result;
+        }
+        try {
+            return result.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        finally {
+            synchronized (LOCK) {
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Sets mlcp's abort flag, the same one its shutdown hook uses. Every map task stops after the
+     * record it is on and mlcp returns once they have, so the import isn't reported as done while
+     * it is still writing. mlcp has no harder stop, so force makes no difference. An import still
+     * waiting for the thread never starts.
+     */
+    @Override
+    public void cancel(boolean force) {
+        synchronized (LOCK) {
+            canceled = true;
+            if (running == this) {
+                ContentPump.shutdown = true;
+            }
+            else if (current != null) {
+                current.cancel(false);
+            }
+        }
+    }
+
+    private Map<String, Long> run(String[] args, IntConsumer progress) throws Exception {
+        Map<String, Long> counters = new ConcurrentHashMap<>();
+        Logger runnerLogger = (Logger) LoggerFactory.getLogger(LocalJobRunner.class);
+        AppenderBase<ILoggingEvent> appender = new AppenderBase<ILoggingEvent>() {
+            private int previousPercent = 0;
+
+            @Override
+            protected void append(ILoggingEvent event) {
+                String message = event.getFormattedMessage();
+                if (message == null) {
+                    return;
+                }
+                if (message.startsWith(COMPLETED) && message.endsWith("%")) {
+                    int percent = (int) Double.parseDouble(message.substring(COMPLETED.length(), message.length() - 1).trim());
+                    // don't send 100% because more stuff happens after mlcp reports it
+                    if (percent > previousPercent && percent < 100) {
+                        previousPercent = percent;
+                        progress.accept(percent);
+                    }
+                    return;
+                }
+                int separator = message.indexOf(':');
+                if (separator > 0) {
+                    String name = message.substring(0, separator).trim();
+                    String value = message.substring(separator + 1).trim();
+                    if (COUNTER_NAMES.contains(name) && !value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+                        counters.put(name, Long.parseLong(value));
+                    }
+                }
+            }
+        };
+
+        synchronized (LOCK) {
+            if (canceled) {
+                throw new CancellationException();
+            }
+            // a previous import may have been aborted
+            ContentPump.shutdown = false;
+            running = this;
+        }
+
+        Level previousLevel = runnerLogger.getLevel();
+        if (!runnerLogger.isInfoEnabled()) {
+            runnerLogger.setLevel(Level.INFO);
+        }
+        appender.setContext(runnerLogger.getLoggerContext());
+        appender.start();
+        runnerLogger.addAppender(appender);
+        try {
+            // mlcp reports most failures, like bad options or an unreachable host, through its return code
+            int returnCode = ContentPump.runCommand(args);
+            if (returnCode != 0) {
+                throw new RuntimeException("mlcp failed with return code " + returnCode);
+            }
+            return counters;
+        }
+        finally {
+            synchronized (LOCK) {
+                running = null;
+                ContentPump.shutdown = false;
+            }
+            runnerLogger.detachAppender(appender);
+            appender.stop();
+            runnerLogger.setLevel(previousLevel);
+        }
+    }
+}
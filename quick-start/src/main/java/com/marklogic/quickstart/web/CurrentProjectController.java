@@ -54,8 +54,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.Set;
 
 @Controller
 @RequestMapping(value = "/api/current-project")
@@ -256,6 +258,23 @@ public class CurrentProjectController extends EnvironmentAware implements FileSy
         installUserModules(hubConfig, false);
     }
 
+    /**
+     * Called when the filesystem watcher detects file changes. Only the changed modules are deployed and only
+     * the flows they belong to are validated.
+     * @param hubConfig - must pass the hub config because this runs in a separate thread and doesn't
+     *                  have access to the current spring boot context
+     * @param changedPaths - the paths that changed since the last event, empty if unknown
+     */
+    @Override
+    public void onWatchEvent(HubConfig hubConfig, Set<Path> changedPaths) {
+        if (changedPaths.isEmpty()) {
+            installUserModules(hubConfig, false);
+        }
+        else {
+            dataHubService.installChangedUserModulesAsync(hubConfig, changedPaths, this, this);
+        }
+    }
+
     @Override
     public void onDeploy(String status) {
         template.convertAndSend("/topic/deploy-status", status);
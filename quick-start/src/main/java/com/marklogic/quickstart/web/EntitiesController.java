@@ -21,17 +21,16 @@ import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.flow.FlowType;
 import com.marklogic.quickstart.EnvironmentAware;
 import com.marklogic.quickstart.model.FlowModel;
-import com.marklogic.quickstart.model.JobStatusMessage;
 import com.marklogic.quickstart.model.PluginModel;
 import com.marklogic.quickstart.model.entity_services.EntityModel;
 import com.marklogic.quickstart.service.DataHubService;
 import com.marklogic.quickstart.service.EntityManagerService;
 import com.marklogic.quickstart.service.FlowManagerService;
-import com.marklogic.quickstart.service.JobService;
+import com.marklogic.quickstart.service.FlowProgressService;
+import com.marklogic.quickstart.service.JobRegistryService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
@@ -51,7 +50,10 @@ class EntitiesController extends EnvironmentAware {
     private FlowManagerService flowManagerService;
 
     @Autowired
-    private SimpMessagingTemplate template;
+    private FlowProgressService flowProgressService;
+
+    @Autowired
+    private JobRegistryService jobRegistry;
 
     @RequestMapping(value = "/entities/create", method = RequestMethod.POST)
     @ResponseBody
@@ -158,9 +160,8 @@ class EntitiesController extends EnvironmentAware {
             resp = new ResponseEntity<>(HttpStatus.CONFLICT);
         }
         else {
-            flowManagerService.runFlow(flow, batchSize, threadCount, options, (jobId, percentComplete, message) -> {
-                template.convertAndSend("/topic/flow-status", new JobStatusMessage(jobId, percentComplete, message, FlowType.HARMONIZE.toString()));
-            });
+            flowManagerService.runFlow(flow, batchSize, threadCount, options,
+                flowProgressService.newTracker(FlowType.HARMONIZE.toString()));
             resp = new ResponseEntity<>(HttpStatus.OK);
         }
 
@@ -234,7 +235,7 @@ class EntitiesController extends EnvironmentAware {
             flowManagerService.saveOrUpdateFlowMlcpOptionsToFile(entityName,
                 flowName, mlcpOptions);
 
-            flowManagerService.runMlcp(flow, json, (jobId, percentComplete, message) -> template.convertAndSend("/topic/flow-status", new JobStatusMessage(jobId, percentComplete, message, FlowType.INPUT.toString())));
+            flowManagerService.runMlcp(flow, json, flowProgressService.newTracker(FlowType.INPUT.toString()));
             resp = new ResponseEntity<>(HttpStatus.NO_CONTENT);
         }
 
@@ -245,10 +246,11 @@ class EntitiesController extends EnvironmentAware {
     public ResponseEntity<?> cancelFlow(
             @PathVariable String entityName,
             @PathVariable String flowName,
-            @PathVariable String jobId) throws IOException {
-        JobService jm = new JobService(envConfig().getJobClient());
-        jm.cancelJob(Long.parseLong(jobId));
-
+            @PathVariable String jobId,
+            @RequestParam(defaultValue = "false") boolean force) {
+        if (!jobRegistry.cancel(jobId, force)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
         return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
 
@@ -2,4 +2,10 @@ export class FlowStatus {
   jobId: string;
   percentComplete: number;
   message: string;
+  jobType?: string;
+  successfulEvents?: number;
+  failedEvents?: number;
+  docsPerSecond?: number;
+  etaSeconds?: number;
+  errorRate?: number;
 }
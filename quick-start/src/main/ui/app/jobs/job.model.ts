@@ -10,6 +10,8 @@ export class Job {
 
   entity: string;
   flow: string;
+  entityName: string;
+  flowName: string;
   jobOutput: string;
   mlcpOptions: string;
 }
@@ -178,6 +178,21 @@ export class JobsComponent implements OnChanges, OnDestroy, OnInit {
     }
   }
 
+  isRunning(job: Job): boolean {
+    return ['STARTED', 'RUNNING_COLLECTOR', 'RUNNING_HARMONIZE'].indexOf(job.status) !== -1;
+  }
+
+  // a plain stop lets the batches in flight finish; shift-click kills the job outright
+  cancelJob(job: Job, force: boolean) {
+    this.jobService.cancelJob(job, force)
+      .subscribe(() => {
+          this.getJobs();
+        },
+        () => {
+          this.dialogService.alert('The job is no longer running');
+        });
+  }
+
   deleteJobs() {
     if (this.selectedJobs.length > 0) {
       let message = 'Delete ' + this.selectedJobs.length +
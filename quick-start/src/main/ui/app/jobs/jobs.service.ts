@@ -1,5 +1,6 @@
 import { Injectable } from '@angular/core';
 import { Headers, Http, RequestOptions, Response, ResponseContentType} from '@angular/http';
+import { Job } from './job.model';
 
 @Injectable()
 export class JobService {
@@ -27,6 +28,11 @@ export class JobService {
     return this.http.post('/api/jobs/delete', jobIds.join(","));
   }
 
+  cancelJob(job: Job, force: boolean) {
+    return this.http.delete(
+      `/api/current-project/entities/${job.entityName}/flows/${job.flowName}/cancel/${job.jobId}?force=${force}`);
+  }
+
   exportJobs(jobIds: string[]) {
     let options: RequestOptions = new RequestOptions();
     options.responseType = ResponseContentType.Blob;
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.quickstart.service;
+
+import com.marklogic.quickstart.model.JobStatusMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlowProgressServiceTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private List<JobStatusMessage> published = new ArrayList<>();
+    private FlowProgressService service = new FlowProgressService(published::add);
+
+    @Test
+    public void coalescesUpdatesBetweenSamples() {
+        FlowProgressService.ProgressTracker tracker = service.newTracker("input");
+        for (int i = 1; i <= 1000; i++) {
+            tracker.onStatusChange("job1", 10, "line " + i);
+        }
+        service.sample(System.nanoTime());
+
+        assertEquals(1, published.size());
+        JobStatusMessage status = published.get(0);
+        assertEquals("job1", status.jobId);
+        assertEquals(10, status.percentComplete);
+        String[] lines = status.message.split("\n");
+        assertEquals(FlowProgressService.MAX_PENDING_LINES, lines.length);
+        assertEquals("line 1000", lines[lines.length - 1]);
+
+        // nothing moved, so nothing is sent
+        service.sample(System.nanoTime());
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    public void computesRateAndErrors() {
+        FlowProgressService.ProgressTracker tracker = service.newTracker("harmonize");
+        tracker.onStatusChange("job2", 0, "starting harmonization");
+        long start = System.nanoTime();
+        for (int i = 0; i < 90; i++) {
+            tracker.processCompletion("job2", "item" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            tracker.processFailure("job2", "bad" + i);
+        }
+        tracker.onStatusChange("job2", 50, "");
+        service.sample(start + 2 * SECOND);
+
+        JobStatusMessage status = published.get(published.size() - 1);
+        assertEquals(Long.valueOf(90), status.successfulEvents);
+        assertEquals(Long.valueOf(10), status.failedEvents);
+        assertEquals(0.1, status.errorRate, 0.0001);
+        assertTrue(status.docsPerSecond > 0);
+        assertNotNull(status.etaSeconds);
+    }
+
+    @Test
+    public void finishesStraightAway() {
+        FlowProgressService.ProgressTracker tracker = service.newTracker("harmonize");
+        tracker.onStatusChange("job3", 50, "");
+        tracker.onStatusChange("job3", 100, "");
+
+        assertEquals(1, published.size());
+        assertEquals(100, published.get(0).percentComplete);
+        assertEquals(Long.valueOf(0), published.get(0).etaSeconds);
+        assertEquals(0, service.getRunningJobCount());
+
+        // late callbacks for a finished job are ignored
+        tracker.processCompletion("job3", "late");
+        tracker.onStatusChange("job3", 100, "");
+        service.sample(System.nanoTime());
+        assertEquals(1, published.size());
+        assertEquals(0, service.getRunningJobCount());
+    }
+
+    @Test
+    public void dropsIdleJobs() {
+        FlowProgressService.ProgressTracker tracker = service.newTracker("input");
+        tracker.onStatusChange("job5", 20, "");
+        long start = System.nanoTime();
+        service.sample(start);
+        assertEquals(1, service.getRunningJobCount());
+
+        // a job that failed or was canceled before reaching 100% never reports again
+        service.sample(start + TimeUnit.MILLISECONDS.toNanos(FlowProgressService.IDLE_EXPIRY_MILLIS) + SECOND);
+        assertEquals(0, service.getRunningJobCount());
+        assertEquals(1, published.size());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012-2018 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.quickstart.service;
+
+import com.marklogic.hub.flow.CancellableJob;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JobRegistryServiceTest {
+
+    private JobRegistryService registry = new JobRegistryService();
+
+    private static class TestJob implements CancellableJob {
+        private final String jobId;
+        Boolean canceledWith = null;
+        boolean done = false;
+
+        TestJob(String jobId) {
+            this.jobId = jobId;
+        }
+
+        @Override
+        public String getJobId() {
+            return jobId;
+        }
+
+        @Override
+        public void cancel(boolean force) {
+            canceledWith = force;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    @Test
+    public void cancelsRunningJobs() {
+        TestJob job = new TestJob("job1");
+        registry.register(job);
+        registry.register(null);
+
+        assertTrue(registry.cancel("job1", true));
+        assertEquals(Boolean.TRUE, job.canceledWith);
+        assertFalse(registry.cancel("missing", false));
+    }
+
+    @Test
+    public void ignoresFinishedJobs() {
+        TestJob job = new TestJob("job1");
+        registry.register(job);
+        job.done = true;
+
+        assertFalse(registry.cancel("job1", false));
+        assertNull(job.canceledWith);
+    }
+}